@@ -32,6 +32,16 @@ public interface KVCommInterface {
 	 */
 	public KVMessage put(String key, String value) throws Exception;
 
+	/**
+	 * Inserts a key-value pair into the KVServer that expires after
+	 * /ttlMillis/ ms; from then on the key reads as not found.
+	 *
+	 * @param ttlMillis
+	 *            time to live in ms; 0 if the pair never expires.
+	 * @see #put(String, String)
+	 */
+	public KVMessage put(String key, String value, long ttlMillis) throws Exception;
+
 	/**
 	 * Retrieves the value for a given key from the KVServer.
 	 *
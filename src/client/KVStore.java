@@ -110,6 +110,11 @@ public class KVStore implements KVCommInterface {
 
 	@Override
 	public KVMessage put(String key, String value) throws Exception {
+		return put(key, value, 0);
+	}
+
+	@Override
+	public KVMessage put(String key, String value, long ttlMillis) throws Exception {
 		boolean retransmit = true;
 
 		UnifiedMessage request = new UnifiedMessage.Builder()
@@ -117,6 +122,7 @@ public class KVStore implements KVCommInterface {
 			.withMessageType(MessageType.CLIENT_TO_SERVER)
 			.withKey(key)
 			.withValue(value)
+			.withTtl(ttlMillis > 0 ? ttlMillis : null)
 			.withStatusType(KVMessage.StatusType.PUT)
 			.build();
 
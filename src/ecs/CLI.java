@@ -2,6 +2,7 @@ package ecs;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import shared.messages.CacheReport;
 import shared.messages.KVDataSet;
 
 import java.util.*;
@@ -23,6 +24,11 @@ public class CLI {
 	private static final String SERVER_DATA = "data";
 	private static final String SERVER_REPLICA_DATA = "rdata";
 	private static final String REPLICATION = "show_replication";
+	private static final String STORAGE_ENGINE = "storage_engine";
+	private static final Set<String> STORAGE_ENGINES = new HashSet<>(Arrays.asList("LOG", "LSM"));
+	private static final String CACHE_BYTES = "cache_bytes";
+	private static final String CACHE_WRITE_BACK = "cache_write_back";
+	private static final String CACHE_STATS = "cache_stats";
 
 	private ECSClient client = null;
 
@@ -96,6 +102,14 @@ public class CLI {
 		}
 	}
 
+	private void handleCacheStats(String serverName) {
+		CacheReport report = client.getCacheStats(serverName);
+		logger.info("Received cache stats from {}", serverName);
+		if (Objects.nonNull(report)) {
+			logger.info(report.print(serverName));
+		}
+	}
+
 	private void handleServerReplicaData(String replicaName, String coordinatorName) {
 		KVDataSet dataSet = client.getServerReplicaData(replicaName, coordinatorName);
 		logger.info("Received data from {}", replicaName);
@@ -110,6 +124,42 @@ public class CLI {
 		client.getReplicatedData(serverName);
 	}
 
+	private void handleStorageEngine(String engine) {
+		if (!STORAGE_ENGINES.contains(engine)) {
+			System.out.format("ERROR: Unknown storage engine '%s', expected one of %s\n",
+				engine, STORAGE_ENGINES);
+			return;
+		}
+		client.setServerStorageEngine(engine);
+		System.out.format("SUCCESS: Nodes added from now on use storage engine %s\n", engine);
+	}
+
+	private void handleCacheBytes(String bytes) {
+		long cacheMaxBytes;
+		try {
+			cacheMaxBytes = Long.parseLong(bytes);
+		} catch (NumberFormatException e) {
+			cacheMaxBytes = -1;
+		}
+		if (cacheMaxBytes < 0) {
+			System.out.format("ERROR: Invalid cache size in bytes '%s'\n", bytes);
+			return;
+		}
+		client.setServerCacheMaxBytes(cacheMaxBytes);
+		System.out.format("SUCCESS: Nodes added from now on cache at most %d bytes%s\n",
+			cacheMaxBytes, cacheMaxBytes == 0 ? " (no limit)" : "");
+	}
+
+	private void handleCacheWriteBack(String mode) {
+		if (!mode.equals("on") && !mode.equals("off")) {
+			System.out.format("ERROR: Invalid write-back mode '%s', expected on or off\n", mode);
+			return;
+		}
+		client.setServerCacheWriteBack(mode.equals("on"));
+		System.out.format("SUCCESS: Nodes added from now on write %s\n",
+			mode.equals("on") ? "back" : "through");
+	}
+
 	/**
 	 * Prints out help text
 	 */
@@ -212,6 +262,22 @@ public class CLI {
 			if (assertNumParameters(2, tokens.length))
 				handleShowReplication(tokens[1]);
 		}
+		else if (cmd.equals(STORAGE_ENGINE)) {
+			if (assertNumParameters(2, tokens.length))
+				handleStorageEngine(tokens[1]);
+		}
+		else if (cmd.equals(CACHE_BYTES)) {
+			if (assertNumParameters(2, tokens.length))
+				handleCacheBytes(tokens[1]);
+		}
+		else if (cmd.equals(CACHE_WRITE_BACK)) {
+			if (assertNumParameters(2, tokens.length))
+				handleCacheWriteBack(tokens[1]);
+		}
+		else if (cmd.equals(CACHE_STATS)) {
+			if (assertNumParameters(2, tokens.length))
+				handleCacheStats(tokens[1]);
+		}
 		else {
 			logger.info("ERROR: Invalid command!");
 			printHelp();
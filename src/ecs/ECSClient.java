@@ -15,6 +15,7 @@ import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import shared.messages.CacheReport;
 import shared.messages.KVDataSet;
 import shared.messages.KVMessage;
 import shared.messages.MessageType;
@@ -33,6 +34,15 @@ public class ECSClient implements IECSClient {
     private List<ECSNode> allNodes = new ArrayList<>();
     private int serverCacheSize = 50000;
     private String serverCacheStrategy = "FIFO";
+    /*
+     * Storage engine of the servers added from now on, see
+     * setServerStorageEngine; null to keep the engine of each server
+     */
+    private String serverStorageEngine = null;
+    /* Cache capacity in bytes of the servers added from now on; null for the server default */
+    private Long serverCacheMaxBytes = null;
+    /* Whether the servers added from now on cache writes back; null for the server default */
+    private Boolean serverCacheWriteBack = null;
 
     private HashRing ring;
     private HeartbeatMonitor heartbeatMonitor;
@@ -53,6 +63,32 @@ public class ECSClient implements IECSClient {
         }));
     }
 
+    /**
+     * Sets the storage engine ("LOG" or "LSM") of the servers added
+     * from now on. Servers that already hold data keep their engine.
+     */
+    public void setServerStorageEngine(String storageEngine) {
+        serverStorageEngine = storageEngine;
+    }
+
+    /**
+     * Sets the cache capacity in bytes of the servers added from now
+     * on, on top of their capacity in entries. 0 leaves only the
+     * entry count; null uses the default of the server.
+     */
+    public void setServerCacheMaxBytes(Long cacheMaxBytes) {
+        serverCacheMaxBytes = cacheMaxBytes;
+    }
+
+    /**
+     * Sets whether the servers added from now on cache writes back
+     * (acknowledge puts before they reach disk, see DSCache) or
+     * write them through. null uses the default of the server.
+     */
+    public void setServerCacheWriteBack(Boolean cacheWriteBack) {
+        serverCacheWriteBack = cacheWriteBack;
+    }
+
     public void quit() {
         heartbeatMonitor.interrupt();
         /*
@@ -212,6 +248,9 @@ public class ECSClient implements IECSClient {
         nodeToAdd.setEcsNodeFlag(IECSNode.ECSNodeFlag.IDLE_START);
         nodeToAdd.setCacheStrategy(cacheStrategy);
         nodeToAdd.setCacheSize(cacheSize);
+        nodeToAdd.setStorageEngine(serverStorageEngine);
+        nodeToAdd.setCacheMaxBytes(serverCacheMaxBytes);
+        nodeToAdd.setCacheWriteBack(serverCacheWriteBack);
         ring.updateRing();
 
         TCPSockModule newNodeConn;
@@ -231,6 +270,9 @@ public class ECSClient implements IECSClient {
                 .withStatusType(KVMessage.StatusType.SERVER_INIT)
                 .withCacheSize(cacheSize)
                 .withCacheStrategy(cacheStrategy)
+                .withStorageEngine(nodeToAdd.getStorageEngine())
+                .withCacheMaxBytes(nodeToAdd.getCacheMaxBytes())
+                .withCacheWriteBack(nodeToAdd.getCacheWriteBack())
                 .withMetadata(new ServerMetadataImpl(
                     nodeToAdd.getNodeName(),
                     nodeToAdd.getNodeHost(),
@@ -402,6 +444,21 @@ public class ECSClient implements IECSClient {
         }
     }
 
+    public CacheReport getCacheStats(String serverName) {
+        ECSNode node = ring.getServerByName(serverName);
+        if (Objects.isNull(node)) {
+            logger.info("SERVER: '{}' does not exist..", serverName);
+            return null;
+        }
+
+        try {
+            return ECSRequestsLib.getCacheStats(node);
+        } catch (Exception e) {
+            logger.error("Failed to get cache stats of {}", serverName, e);
+            return null;
+        }
+    }
+
     public KVDataSet getServerReplicaData(String replicaName, String coordinatorName) {
         ECSNode replica = ring.getServerByName(replicaName);
         ECSNode coord = ring.getServerByName(coordinatorName);
@@ -534,6 +591,9 @@ public class ECSClient implements IECSClient {
             try {
                 ECSRequestsLib.initServer(S_n,
                     S_i.getCacheStrategy(), S_i.getCacheSize(),
+                    S_i.getStorageEngine(),
+                    S_i.getCacheMaxBytes(),
+                    S_i.getCacheWriteBack(),
                     new ServerMetadataImpl(
                         S_n.getNodeName(),
                         S_n.getNodeHost(),
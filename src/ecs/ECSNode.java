@@ -24,6 +24,12 @@ public class ECSNode implements IECSNode {
     private String cacheStrategy;
     @Expose
     private int cacheSize;
+    @Expose
+    private String storageEngine;
+    @Expose
+    private Long cacheMaxBytes;
+    @Expose
+    private Boolean cacheWriteBack;
 
     public ECSNode(String name, String host, int port) {
         this.uuid = String.format("%s:%d", host, port);
@@ -83,6 +89,33 @@ public class ECSNode implements IECSNode {
         return this;
     }
 
+    public String getStorageEngine() {
+        return storageEngine;
+    }
+
+    public ECSNode setStorageEngine(String storageEngine) {
+        this.storageEngine = storageEngine;
+        return this;
+    }
+
+    public Long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public ECSNode setCacheMaxBytes(Long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+        return this;
+    }
+
+    public Boolean getCacheWriteBack() {
+        return cacheWriteBack;
+    }
+
+    public ECSNode setCacheWriteBack(Boolean cacheWriteBack) {
+        this.cacheWriteBack = cacheWriteBack;
+        return this;
+    }
+
     public ECSNodeFlag getEcsNodeFlag() {
         return ecsNodeFlag;
     }
@@ -2,6 +2,7 @@ package ecs;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import shared.messages.CacheReport;
 import shared.messages.KVDataSet;
 import shared.messages.KVMessage;
 import shared.messages.MessageType;
@@ -170,12 +171,18 @@ public class ECSRequestsLib {
     public static void initServer(ECSNode server,
                                   String cacheStrategy,
                                   int cacheSize,
+                                  String storageEngine,
+                                  Long cacheMaxBytes,
+                                  Boolean cacheWriteBack,
                                   ServerMetadata metadata) throws Exception {
         UnifiedMessage msg = new UnifiedMessage.Builder()
             .withMessageType(MessageType.ECS_TO_SERVER)
             .withStatusType(KVMessage.StatusType.SERVER_INIT)
             .withCacheSize(cacheSize)
             .withCacheStrategy(cacheStrategy)
+            .withStorageEngine(storageEngine)
+            .withCacheMaxBytes(cacheMaxBytes)
+            .withCacheWriteBack(cacheWriteBack)
             .withMetadata(metadata)
             .build();
 
@@ -214,6 +221,15 @@ public class ECSRequestsLib {
         return send(server, msg).getDataSet();
     }
 
+    public static CacheReport getCacheStats(ECSNode server) throws Exception {
+        UnifiedMessage msg = new UnifiedMessage.Builder()
+            .withMessageType(MessageType.ECS_TO_SERVER)
+            .withStatusType(KVMessage.StatusType.SERVER_CACHE_STATS)
+            .build();
+
+        return send(server, msg).getCacheReport();
+    }
+
     public static KVDataSet getServerReplicaData(ECSNode replica,
                                                  ECSNode coordinator) throws Exception {
         UnifiedMessage msg = new UnifiedMessage.Builder()
@@ -25,7 +25,8 @@ import java.util.function.Predicate;
  */
 public abstract class HashRing {
     private static Logger logger = Logger.getLogger(HashRing.class);
-    private static MessageDigest md;
+    /* MessageDigest is not thread safe; one per thread */
+    private static ThreadLocal<MessageDigest> md;
 
     private static byte[] MAX_MD5_HASH_BYTES = {
         (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
@@ -43,15 +44,18 @@ public abstract class HashRing {
     private static Hash MAX_MD5_HASH = new Hash(MAX_MD5_HASH_BYTES);
 
     static {
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            logger.error("No such algorithm: MD5");
-        }
+        md = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                logger.error("No such algorithm: MD5");
+                return null;
+            }
+        });
     }
 
     public static byte[] md5(String stringToHash) {
-        return md.digest(stringToHash.getBytes());
+        return md.get().digest(stringToHash.getBytes());
     }
 
     /**
@@ -141,6 +145,10 @@ public abstract class HashRing {
             return DatatypeConverter.printHexBinary(hashBytes);
         }
 
+        public byte[] getHashBytes() {
+            return hashBytes;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (o instanceof Hash) {
@@ -0,0 +1,103 @@
+package server;
+
+import java.io.*;
+
+/**
+ * Bloom filter over the keys of an SSTable. Answers "definitely not
+ * in the table" without touching the disk; "maybe in the table" is
+ * wrong with probability ~fpRate.
+ *
+ * The k bit positions of a key are derived from its MD5 ring hash,
+ * which HashedKey already carries, by double hashing:
+ *      bit_i = h1 + i * h2   (mod m)
+ * with h1, h2 the two halves of the hash. No extra hashing is done.
+ *
+ * Persisted next to the table it belongs to:
+ *      <name>/L<level>_<id>.bloom
+ */
+class BloomFilter {
+    static final String SUFFIX = ".bloom";
+
+    private long[] bits;
+    private int numBits;
+    private int numHashes;
+
+    private BloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numBits = bits.length * Long.SIZE;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Sizes the filter for /expectedKeys/ at the given false positive
+     * rate: m = -n ln(p) / ln(2)^2 bits, k = m/n ln(2) hashes.
+     */
+    BloomFilter(int expectedKeys, double fpRate) {
+        int n = Math.max(expectedKeys, 1);
+        long m = (long) Math.ceil(-n * Math.log(fpRate) / (Math.log(2) * Math.log(2)));
+        int numLongs = (int) Math.max(1, Math.min((m + Long.SIZE - 1) / Long.SIZE, Integer.MAX_VALUE / Long.SIZE));
+        this.bits = new long[numLongs];
+        this.numBits = numLongs * Long.SIZE;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    private static long half(byte[] bytes, int from) {
+        long h = 0;
+        for (int i = from; i < from + 8 && i < bytes.length; i++) {
+            h = (h << 8) | (bytes[i] & 0xFF);
+        }
+        return h;
+    }
+
+    private int bit(long h1, long h2, int i) {
+        return (int) Math.floorMod(h1 + i * h2, (long) numBits);
+    }
+
+    void add(HashedKey key) {
+        byte[] hash = key.hash.getHashBytes();
+        long h1 = half(hash, 0), h2 = half(hash, 8);
+        int b;
+        for (int i = 0; i < numHashes; i++) {
+            b = bit(h1, h2, i);
+            bits[b >>> 6] |= 1L << (b & 63);
+        }
+    }
+
+    boolean mightContain(HashedKey key) {
+        byte[] hash = key.hash.getHashBytes();
+        long h1 = half(hash, 0), h2 = half(hash, 8);
+        int b;
+        for (int i = 0; i < numHashes; i++) {
+            b = bit(h1, h2, i);
+            if ((bits[b >>> 6] & (1L << (b & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void write(File file) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(numHashes);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+    }
+
+    static BloomFilter read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)))) {
+            int numHashes = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new BloomFilter(bits, numHashes);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background thread that writes the dirty entries of a write-back
+ * DSCache to disk (see {@link DSCache#flushDue()}). Every
+ * FLUSH_PERIOD_MS it flushes the entries that have been dirty for
+ * long enough, in batches, so that updates to a hot key in between
+ * reach disk as one write.
+ *
+ * shutdown wakes the thread instead of interrupting it: an interrupt
+ * during a flush would close the file channels of the store.
+ */
+public class CacheFlusher extends Thread {
+	private static final Logger logger = LoggerFactory.getLogger(CacheFlusher.class);
+	private static final String LOG_PREFIX = "[CACHE_FLUSHER]";
+	public static final long FLUSH_PERIOD_MS = 100;
+
+	private DSCache cache;
+	private volatile boolean isRunning;
+	private long flushPeriodMS;
+
+	public CacheFlusher(DSCache cache) {
+		this(cache, FLUSH_PERIOD_MS);
+	}
+
+	public CacheFlusher(DSCache cache, long flushPeriodMS) {
+		this.cache = cache;
+		this.isRunning = true;
+		this.flushPeriodMS = flushPeriodMS;
+		setName("cache-flusher");
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		int flushed;
+		while (isRunning) {
+			try {
+				flushed = cache.flushDue();
+				if (flushed > 0) {
+					logger.debug("{}: Flushed {} entries", LOG_PREFIX, flushed);
+				}
+			} catch (Exception e) {
+				logger.error("{}: Flush failed", LOG_PREFIX, e);
+			}
+
+			if (!sleepFor(flushPeriodMS)) {
+				logger.debug("{}: Thread interrupted, exiting", LOG_PREFIX);
+				isRunning = false;
+			}
+		}
+	}
+
+	public synchronized void shutdown() {
+		isRunning = false;
+		notifyAll();
+	}
+
+	private synchronized boolean sleepFor(long ms) {
+		try {
+			if (isRunning) {
+				wait(Math.max(ms, 1));
+			}
+		} catch (Exception e) {
+			return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,1047 @@
+package server;
+
+import server.DSCache.CacheEntry;
+import shared.Pair;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One shard of a DSCache: caches the keys that hash to it, with its
+ * own lock, capacity and replacement policy. The global lock (gl)
+ * below is global to the shard only.
+ *
+ * Hits do not take the global lock. They look the entry up in the
+ * concurrent map, lock only the entry, and record the access in a
+ * read buffer instead of telling the policy right away. The buffer
+ * is drained into the policy, under the global lock, by the next
+ * write, or by a hit that finds it full and the lock free (as in
+ * Caffeine). The policy therefore sees accesses a little late and
+ * may drop some when the buffer overflows, which is fine for
+ * deciding what to evict.
+ *
+ * Write-back (writeThrough off): puts only update the cache, and the
+ * entry joins the dirty list of the shard, oldest first. flush
+ * writes the oldest dirty entries to disk in one batch; the
+ * CacheFlusher calls it by age and dirty-byte watermark, and
+ * writers call it themselves while too much is dirty (see
+ * applyBackpressure). An entry updated many times before it is
+ * flushed is written once.
+ *
+ * Misses are cached too: the keys last found on neither cache nor
+ * disk, up to missesMax of them, oldest forgotten first. A get of
+ * such a key is answered without the global lock or a disk read.
+ *
+ * Misses load from disk without the global lock, and only once per
+ * key at a time: the first miss registers a Load, and concurrent
+ * misses of the key wait for its result instead of reading the disk
+ * again. Every write of a key, under the global lock, forgets its
+ * cached miss and marks its Load stale; a stale Load still answers
+ * its waiters, but neither caches its value nor records its miss,
+ * so neither can shadow the newer write.
+ */
+class CacheShard {
+    private static Logger logger = Logger.getLogger(CacheShard.class);
+    /* Hits buffered before a drain is attempted */
+    static final int READ_BUFFER_DRAIN = 64;
+    /* Hits beyond this are not recorded until the buffer is drained */
+    static final int READ_BUFFER_MAX = 4 * READ_BUFFER_DRAIN;
+    /* Most entries written by one flush */
+    static final int FLUSH_BATCH_MAX = 1024;
+
+    /* Written under gl; read without it by hits */
+    private Map<String, CacheEntry> _cache;
+    private DSCache.Policy policy;
+    private int cacheSize;
+    /* Capacity in bytes (see DSCache.weigh), and bytes cached */
+    private long maxWeight;
+    private long totalWeight;
+    private boolean writeThrough;
+    private Lock gl;
+    private StorageEngine disk;
+
+    /* Write-back: dirty entries -> when they became dirty, oldest first */
+    private LinkedHashMap<CacheEntry, Long> dirty;
+    private volatile long dirtyWeight;
+    private long maxDirtyWeight;
+
+    /* Negative cache: written under gl; read without it by gets */
+    private Set<String> misses;
+    private Deque<String> missOrder;
+    private int missesMax;
+
+    private CacheStats stats;
+
+    /* Disk reads in flight, by key; written under gl */
+    private Map<String, Load> loading;
+
+    /* Hits not yet reported to the policy */
+    private Queue<CacheEntry> readBuffer;
+    private AtomicInteger readBuffered;
+
+    /* Monotonically non-decreasing number -> enforces FIFO ordering */
+    private int n = 0;
+
+    /**
+     * @param maxBytes capacity in bytes; 0 to only limit the number
+     *                 of entries
+     * @param maxDirtyBytes write-back: writers flush while more than
+     *                      this many bytes are dirty
+     * @param maxMisses number of misses remembered; 0 to not cache
+     *                  misses
+     * @param stats counters of the cache, shared by its shards
+     */
+    CacheShard(int size, long maxBytes, DSCache.Policy policy, StorageEngine disk,
+               boolean writeThrough, long maxDirtyBytes, int maxMisses,
+               CacheStats stats) {
+        this.policy = policy;
+        this.maxWeight = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.totalWeight = 0;
+        this.writeThrough = writeThrough;
+        this.disk = disk;
+        this.stats = stats;
+        this.dirty = new LinkedHashMap<>();
+        this.dirtyWeight = 0;
+        this.maxDirtyWeight = maxDirtyBytes;
+        _cache = new ConcurrentHashMap<>();
+        cacheSize = size;
+        gl = new ReentrantLock();
+        readBuffer = new ConcurrentLinkedQueue<>();
+        readBuffered = new AtomicInteger(0);
+        misses = ConcurrentHashMap.newKeySet();
+        missOrder = new ArrayDeque<>();
+        missesMax = maxMisses;
+        loading = new HashMap<>();
+    }
+
+    /**
+     * A disk read of a key, shared by the misses of the key while it
+     * is in flight (see get)
+     */
+    private static class Load {
+        final CompletableFuture<String> value = new CompletableFuture<>();
+        /* The key was written since the read started; under gl */
+        boolean stale = false;
+    }
+
+    void clearCache(boolean isThreadSafe) throws Exception {
+        /* GLOBAL CRITICAL REGION - START */
+        if (!isThreadSafe) {
+            gl.lock();
+        }
+
+        /* Flush all cache entries to disk */
+        int cnt = 0;
+        try {
+            for (CacheEntry entry : _cache.values()) {
+                if (entry.dirty) {
+                    disk.putKV(entry.key, entry.data, entry.expiresAt);
+                }
+                cnt++;
+            }
+        } catch (Exception e) {
+            if (!isThreadSafe) {
+                gl.unlock();
+            }
+            /* GLOBAL CRITICAL REGION - END */
+
+            throw new Exception(String.format(
+                "Deleted %d elements. Error: %s",
+                cnt, e.getMessage())
+            );
+        }
+
+        assert(cnt == _cache.size());
+        _cache.clear();
+        totalWeight = 0;
+        dirty.clear();
+        dirtyWeight = 0;
+        misses.clear();
+        missOrder.clear();
+        for (Load load : loading.values()) {
+            load.stale = true;
+        }
+        loading.clear();
+        policy.onClear();
+        readBuffer.clear();
+        readBuffered.set(0);
+
+        if (!isThreadSafe) {
+            gl.unlock();
+        }
+        /* GLOBAL CRITICAL REGION - END */
+    }
+
+    int getCacheCapacity() {
+        return cacheSize;
+    }
+
+    int size() {
+        return _cache.size();
+    }
+
+    long getWeight() {
+        return totalWeight;
+    }
+
+    long getDirtyWeight() {
+        return dirtyWeight;
+    }
+
+    /**
+     * Lock-free: _cache is a concurrent map.
+     */
+    boolean inCache(String key) {
+        CacheEntry entry = _cache.get(key);
+        return Objects.nonNull(entry)
+            && !entry.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Lock-free, as inCache. A cached entry is the latest version of
+     * its key, even if it is not written back yet; an entry is
+     * written back before it leaves the cache, so a key that is not
+     * cached is as current on disk.
+     */
+    boolean contains(String key) {
+        CacheEntry entry = _cache.get(key);
+        if (Objects.nonNull(entry)) {
+            return !entry.isExpired(System.currentTimeMillis());
+        }
+        return disk.inStorage(key);
+    }
+
+    List<Pair<String, String>> getAll() {
+        /* GLOBAL CRITICAL REGION - START */
+        gl.lock();
+
+        List<Pair<String, String>> entries = new ArrayList<>();
+        Iterator<Map.Entry<String, CacheEntry>> it = _cache.entrySet().iterator();
+        Map.Entry<String, CacheEntry> entry;
+        long now = System.currentTimeMillis();
+        while (it.hasNext()) {
+            entry = it.next();
+            if (entry.getValue().isExpired(now)) {
+                continue;
+            }
+            entries.add(new Pair<>(
+                entry.getKey(),
+                entry.getValue().data)
+            );
+        }
+
+        gl.unlock();
+        /* GLOBAL CRITICAL REGION - END */
+
+        return entries;
+    }
+    /*
+     * Held by DSCache across operations that span all shards
+     */
+
+    void lock() {
+        gl.lock();
+    }
+
+    void unlock() {
+        gl.unlock();
+    }
+
+    /**
+     * Locking scheme:
+     * ------------------------------------------------------------------
+     * (0) Hit: look the entry up without the global lock, lock the
+     *     entry, and check that it is still cached. Deletes unlink
+     *     the entry while holding its lock, so once the entry is
+     *     locked and still cached, its data is current. The access is
+     *     buffered for the policy (see recordRead).
+     *     Anything else (a miss, an expired entry) takes the slow path:
+     * (1) Lock global -> guarantees 'get' from $ is atomic
+     * (2) If entry exists, then lock entry. Note that the entry is lock-
+     *     ed while global is still locked. The global lock ensures that
+     *     no other threads evict the entry between the time when entry
+     *     is accessed from $ and when the entry is locked.
+     * (3) Unlock global -> once entry is locked, the entry can no longer
+     *     be evicted. We can safely perform entry-wise operations.
+     *
+     * GetKV involves cache and disk coordination. Here's the algorithm:
+     * (1) Search _cache for matching key
+     * (2) If matching key, return that object, unless it has expired,
+     *     in which case it is dropped from the cache
+     * (2) If no matching key, and the key is a cached miss, return
+     *     null
+     * (3) If another miss of the key is reading it from disk, wait
+     *     for and return its result
+     * (4) Otherwise go to disk and fetch object, without the global
+     *     lock (see load)
+     *
+     * @return the value; null if the key is not found
+     * @throws Exception Generic program runtime error. This should be
+     * handled gracefully.
+     * @throws AssertionError Assert returned false.
+     * !!CRASH THE PROGRAM!!
+     */
+    String get(String key) throws AssertionError, Exception {
+        CacheEntry entry;
+        String data = null;
+
+        /* Fast path: hit */
+        if (Objects.nonNull(entry = _cache.get(key))) {
+            /* ENTRY CRITICAL REGION - START */
+            entry.l.lock();
+            if (_cache.get(key) == entry
+                && !entry.isExpired(System.currentTimeMillis())) {
+                entry.updateAccessTime();
+                entry.accessFrequency++;
+                data = entry.data;
+            }
+            entry.l.unlock();
+            /* ENTRY CRITICAL REGION - END */
+
+            if (Objects.nonNull(data)) {
+                recordRead(entry);
+                stats.recordHit();
+                return data;
+            }
+        } else if (misses.contains(key)) {
+            stats.recordNegativeHit();
+            return null;
+        }
+
+        /* GLOBAL CRITICAL REGION - START */
+        gl.lock();
+        drainReads();
+
+        /* Expired: the disk has expired it too, so it is a miss */
+        if (Objects.nonNull(entry = _cache.get(key))
+            && entry.isExpired(System.currentTimeMillis())) {
+            remove(entry);
+            entry = null;
+        }
+
+        if (Objects.nonNull(entry)) {
+            /* ENTRY CRITICAL REGION - START */
+            entry.l.lock();
+            policy.onAccess(entry);
+
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+
+            entry.updateAccessTime();
+            entry.accessFrequency++;
+            data = entry.data;
+
+            entry.l.unlock();
+            /* ENTRY CRITICAL REGION - END */
+
+            stats.recordHit();
+            return data;
+        }
+
+        if (misses.contains(key)) {
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+            stats.recordNegativeHit();
+            return null;
+        }
+
+        Load load = loading.get(key);
+        if (Objects.nonNull(load)) {
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+            stats.recordCoalescedMiss();
+
+            try {
+                return load.value.get();
+            } catch (ExecutionException e) {
+                throw new Exception(String.format(
+                    "Error loading object with key %s -> %s",
+                    key, e.getCause().getMessage()
+                ));
+            }
+        }
+
+        load = new Load();
+        loading.put(key, load);
+        gl.unlock();
+        /* GLOBAL CRITICAL REGION - END */
+
+        return load(key, load);
+    }
+
+    /**
+     * Reads /key/ from disk for the Load registered by get, then
+     * caches the value, or records the miss, unless the key was
+     * written meanwhile. Yes, we are essentially doing an evict-put
+     * (same as putKV), but can't call putKV because a write that
+     * came after the read must win, so have to replicate putKV code
+     * here.
+     *
+     * Called without the global lock.
+     */
+    private String load(String key, Load load) throws Exception {
+        Pair<String, Long> found;
+        long start = System.nanoTime();
+        try {
+            found = disk.getWithExpiry(key);
+            stats.recordLoad(System.nanoTime() - start);
+        } catch (Exception e) {
+            /* GLOBAL CRITICAL REGION - START */
+            gl.lock();
+            loading.remove(key, load);
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+
+            load.value.completeExceptionally(e);
+            throw e;
+        }
+        String data = Objects.nonNull(found) ? found.getKey() : null;
+
+        /* GLOBAL CRITICAL REGION - START */
+        gl.lock();
+        try {
+            loading.remove(key, load);
+            if (load.stale) {
+                /* Overtaken by a write; answer, but do not cache */
+            } else if (Objects.isNull(data)) {
+                /* Element doesn't exist anywhere */
+                recordMiss(key);
+                logger.debug(String.format("Key not found: %s", key));
+            } else if (cacheSize != 0 && DSCache.weigh(key, data) <= maxWeight
+                && !_cache.containsKey(key)) {
+                /* Unless no cache is used, or it is too large to cache */
+                CacheEntry entry = new CacheEntry(key, data, n, false, found.getValue());
+                n++;
+                try {
+                    makeRoom(key, entry.weight);
+                    insert(entry);
+                } catch (Exception e) {
+                    n--;
+                    logger.error(String.format(
+                        "Error upon evicting object with key %s -> %s",
+                        key, e.getMessage()
+                    ));
+                }
+            }
+        } finally {
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+
+            load.value.complete(data);
+        }
+
+        return data;
+    }
+
+    /**
+     * PutKV involves cache and disk coordination. Here's the algorithm:
+     * (1) Search _cache for matching key/entry
+     * (2) If entry is present, update that entry
+     * (3) If entry is not present, insert that entry
+     * (4) If entry is present, and value is NULL, delete that entry
+     *     from cache and disk.
+     *
+     * Note: Synchronization is guaranteed; The configured replacement
+     * policy is respected when the cache is full.
+     *
+     * @param ttlMillis 0 if the pair never expires
+     * @throws AssertionError Assert returned false.
+     * !!CRASH THE PROGRAM!!
+     */
+    int putKV(String key, String value, long ttlMillis) throws AssertionError, Exception {
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        if (key.equals("")) {
+            throw new Exception(String.format(
+                "Key: %s cannot be an empty string", key)
+            );
+        }
+
+        /* GLOBAL CRITICAL REGION - START */
+        gl.lock();
+        drainReads();
+        invalidate(key);
+
+        /* DELETE */
+        if (Objects.isNull(value) || value.equals("null") ||
+            value.trim().equals("")) {
+
+            CacheEntry deleteEntry = _cache.get(key);
+            if (Objects.nonNull(deleteEntry)) {
+                /* ENTRY CRITICAL REGION - START */
+                deleteEntry.l.lock();
+            }
+
+            try {
+                /* Do DELETE */
+                boolean result = disk.putKV(key, null);
+                if (!result && Objects.isNull(deleteEntry)) {
+                    throw new Exception(String.format(
+                        "Key to delete: %s does not exist",
+                        key
+                    ));
+                }
+            } catch (Exception e) {
+                if (Objects.nonNull(deleteEntry)) {
+                    deleteEntry.l.unlock();
+                }
+                gl.unlock();
+                /* GLOBAL/ENTRY CRITICAL REGION - END */
+
+                logger.error(String.format(
+                    "Error deleting disk object: %s. %s",
+                    key, e.getMessage()
+                ));
+                throw e;
+            }
+
+            if (Objects.nonNull(deleteEntry)) {
+                remove(deleteEntry);
+                deleteEntry.l.unlock();
+                /* ENTRY CRITICAL REGION - END */
+            }
+
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+
+            return DSCache.CODE_DELETE_SUCCESS;
+        }
+
+        /*
+         * 2 Cases in general:
+         * (1) Entry with 'key' already exists in cache -> update
+         * (2) Entry with 'key' does not yet exist in cache -> insert
+         */
+
+        // (1)
+        CacheEntry entry;
+        if (Objects.nonNull(entry = _cache.get(key))) {
+            /*
+             * A heavier value needs room like an insert does. If it
+             * does not fit, or the policy would evict the entry
+             * itself to make room, the entry is dropped and the value
+             * written around the cache.
+             */
+            policy.onAccess(entry);
+            long weight = DSCache.weigh(key, value);
+            boolean fits;
+            try {
+                fits = weight <= maxWeight
+                    && (weight <= entry.weight || makeRoom(key, weight - entry.weight));
+            } catch (Exception e) {
+                gl.unlock();
+                /* GLOBAL CRITICAL REGION - END */
+
+                logger.error(String.format(
+                    "Error evicting object: %s. %s",
+                    key, e.getMessage()
+                ));
+                return DSCache.CODE_PUT_ERROR;
+            }
+            if (!fits) {
+                /* ENTRY CRITICAL REGION - START */
+                entry.l.lock();
+                remove(entry);
+                entry.l.unlock();
+                /* ENTRY CRITICAL REGION - END */
+
+                gl.unlock();
+                /* GLOBAL CRITICAL REGION - END */
+
+                writeAround(key, value, expiresAt);
+                return DSCache.CODE_PUT_UPDATE;
+            }
+
+            /* ENTRY CRITICAL REGION - START */
+            entry.l.lock();
+            totalWeight += weight - entry.weight;
+            if (dirty.containsKey(entry)) {
+                dirtyWeight += weight - entry.weight;
+            }
+            entry.weight = weight;
+            if (!writeThrough) {
+                markDirty(entry);
+            }
+
+            /* Update */
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+
+            /* Write-through to DISK */
+            if (writeThrough) {
+                try {
+                    disk.putKV(key, value, expiresAt);
+                } catch (Exception e) {
+                    entry.l.unlock();
+                    /* ENTRY CRITICAL REGION - END */
+
+                    logger.error(String.format(
+                        "Error updating entry to disk: %s->%s. %s",
+                        key, value, e.getMessage()
+                    ));
+                    throw e;
+                }
+            }
+
+            entry.data = value;
+            entry.expiresAt = expiresAt;
+            entry.accessFrequency++;
+            entry.updateAccessTime();
+            entry.dirty = !writeThrough;
+
+            entry.l.unlock();
+            /* ENTRY CRITICAL REGION - END */
+
+            return DSCache.CODE_PUT_UPDATE;
+        }
+
+        // (2)
+        long weight = DSCache.weigh(key, value);
+        if (_cache.size() < cacheSize && totalWeight + weight <= maxWeight) {
+            entry = new CacheEntry(key, value, n, !writeThrough, expiresAt);
+            n++;
+            insertAndWrite(entry);
+            return DSCache.CODE_PUT_SUCCESS;
+        }
+
+        /*
+         * Special case: cacheSize is 0 means we're caching -> persist
+         * data directly to disk. There is no cache state to protect,
+         * so the write does not need the global lock. Same for a
+         * value that is larger than the whole cache.
+         */
+        if (cacheSize == 0 || weight > maxWeight) {
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+
+            writeAround(key, value, expiresAt);
+            return DSCache.CODE_PUT_SUCCESS;
+        }
+
+        /*
+         * Cache has been filled, need to evict entries (one, or more
+         * if the new entry is heavier than the victim). Assumes
+         * disk handles its own synchronization. Notice that evict
+         * is locked and unlocked. This is to prevent read/write race
+         * conditions during eviction.
+         *
+         * IMPORTANT: Always lock the entry before evicting! Acquiring
+         * the lock guarantees that no other threads are working on the
+         * entry to be evicted.
+         *
+         * 01/24/2020: Requirements state that if the entry is either
+         * in disk or cache, it should be an UPDATE op, and differentiate
+         * to the caller if it's a PUT or UPDATE. However, in this case
+         * (when entry is not in cache), we have to seek disk to find
+         * whether the concerning 'key' exists in the system.
+         *
+         * This obviously poses significant performance overhead with no
+         * added functionality, so the team decided to tentatively
+         * exclude this "feature".
+         */
+        try {
+            makeRoom(key, weight);
+        } catch (Exception e) {
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+
+            logger.error(String.format(
+                "Error evicting object: %s. %s",
+                key, e.getMessage()
+            ));
+            return DSCache.CODE_PUT_ERROR;
+        }
+
+        entry = new CacheEntry(key, value, n, !writeThrough, expiresAt);
+        n++;
+        try {
+            insertAndWrite(entry);
+        } catch (Exception e) {
+            return DSCache.CODE_PUT_ERROR;
+        }
+
+        return DSCache.CODE_PUT_SUCCESS;
+    }
+
+    /**
+     * Inserts a new entry into the cache, then writes it through to
+     * disk WITHOUT holding the global lock, so that concurrent puts
+     * can share a disk commit (see Disk.putKV).
+     *
+     * The entry is inserted locked: until the disk write completes,
+     * other threads that find the entry wait on it instead of seeing
+     * a value that is not yet durable. If the write fails, the entry
+     * is taken back out of the cache.
+     *
+     * Assumes the global lock is held; releases it.
+     */
+    private void insertAndWrite(CacheEntry entry) throws Exception {
+        /* ENTRY CRITICAL REGION - START */
+        entry.l.lock();
+        insert(entry);
+        if (_cache.size() > cacheSize) {
+            logger.fatal(String.format(
+                "Expecting cache size to be at most: %d, actual: %d",
+                cacheSize, _cache.size()
+            ));
+        }
+        assert(_cache.size() <= cacheSize);
+
+        gl.unlock();
+        /* GLOBAL CRITICAL REGION - END */
+
+        if (!writeThrough) {
+            entry.l.unlock();
+            /* ENTRY CRITICAL REGION - END */
+            return;
+        }
+
+        /* Write-through to DISK */
+        try {
+            disk.putKV(entry.key, entry.data, entry.expiresAt);
+        } catch (Exception e) {
+            entry.l.unlock();
+            /* ENTRY CRITICAL REGION - END */
+
+            logger.error(String.format(
+                "Error write entry to disk: %s->%s. %s",
+                entry.key, entry.data, e.getMessage()
+            ));
+
+            /* GLOBAL CRITICAL REGION - START */
+            gl.lock();
+            if (_cache.get(entry.key) == entry) {
+                remove(entry);
+            }
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+            throw e;
+        }
+
+        entry.l.unlock();
+        /* ENTRY CRITICAL REGION - END */
+    }
+
+    /**
+     * Bulk load: stores every pair of /entries/ on disk in one batch
+     * (see {@link StorageEngine#putAll(List, long[])}). A null value deletes
+     * its key; unlike putKV, deleting a key that DNE is not an error.
+     *
+     * The pairs are not cached: a bulk load is a transfer of data
+     * that was not asked for here, and would only evict the working
+     * set. Cached entries of the keys are dropped instead, so that
+     * they are not served stale.
+     */
+    void putAll(List<Pair<String, String>> entries, long[] expiresAt) throws Exception {
+        /* GLOBAL CRITICAL REGION - START */
+        gl.lock();
+        try {
+            drop(entries);
+            disk.putAll(entries, expiresAt);
+        } finally {
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+        }
+    }
+
+    /**
+     * Drops the cached entries and misses of the keys of /entries/,
+     * ahead of a bulk load of them. Assumes the global lock is held,
+     * and is kept until the load is done.
+     */
+    void drop(List<Pair<String, String>> entries) {
+        drainReads();
+        CacheEntry entry;
+        for (Pair<String, String> pair : entries) {
+            invalidate(pair.getKey());
+            if (Objects.nonNull(entry = _cache.get(pair.getKey()))) {
+                /* ENTRY CRITICAL REGION - START */
+                entry.l.lock();
+                remove(entry);
+                entry.l.unlock();
+                /* ENTRY CRITICAL REGION - END */
+            }
+        }
+    }
+
+    /**
+     * Writes a pair to disk without caching it. Assumes the global
+     * lock is not held.
+     */
+    private void writeAround(String key, String value, long expiresAt) throws Exception {
+        CacheEntry entry;
+        try {
+            disk.putKV(key, value, expiresAt);
+        } catch (Exception e) {
+            logger.error(String.format(
+                "Direct persistence to disk error: %s",
+                e.getMessage()
+            ));
+            throw e;
+        } finally {
+            /* A get may have loaded between unlock and the write */
+            gl.lock();
+            invalidate(key);
+            if (Objects.nonNull(entry = _cache.get(key))) {
+                entry.l.lock();
+                remove(entry);
+                entry.l.unlock();
+            }
+            gl.unlock();
+        }
+    }
+
+    /**
+     * Evicts entries, as picked by the policy, until an entry of
+     * /weight/ bytes fits both by count and by weight. Dirty entries
+     * are written back first. If /key/ is cached already, /weight/
+     * is what its entry grows by, and it takes no room by count.
+     *
+     * Assumes the global lock is held, and that the entry fits into
+     * an empty cache. The lock is still held if this throws.
+     *
+     * @return false if the policy picked the entry of /key/ itself;
+     *         it is left in place
+     */
+    private boolean makeRoom(String key, long weight) throws Exception {
+        boolean cached = _cache.containsKey(key);
+        CacheEntry evict;
+        while ((!cached && _cache.size() >= cacheSize) || totalWeight + weight > maxWeight) {
+            evict = policy.evict(_cache, key);
+            if (cached && evict.key.equals(key)) {
+                return false;
+            }
+
+            /* ENTRY CRITICAL REGION - START */
+            evict.l.lock();
+            try {
+                /* Only write to disk if disk data is stale */
+                if (evict.dirty) {
+                    disk.putKV(evict.key, evict.data, evict.expiresAt);
+                    stats.recordWriteBacks(1);
+                }
+                remove(evict);
+                stats.recordEviction();
+            } finally {
+                evict.l.unlock();
+                /* ENTRY CRITICAL REGION - END */
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Every change to _cache goes through insert/remove, so that the
+     * policy sees it and the weight is kept. Assume the global lock
+     * is held.
+     */
+
+    private void insert(CacheEntry entry) {
+        _cache.put(entry.key, entry);
+        totalWeight += entry.weight;
+        if (entry.dirty) {
+            markDirty(entry);
+        }
+        policy.onInsert(entry);
+    }
+
+    private void remove(CacheEntry entry) {
+        _cache.remove(entry.key);
+        totalWeight -= entry.weight;
+        unmarkDirty(entry);
+        policy.onRemove(entry);
+    }
+
+    /**
+     * Remembers that /key/ was not found, forgetting the oldest miss
+     * if there are missesMax. Assumes the global lock is held.
+     */
+    private void recordMiss(String key) {
+        if (missesMax == 0 || !misses.add(key)) {
+            return;
+        }
+        missOrder.addLast(key);
+        while (missOrder.size() > missesMax) {
+            misses.remove(missOrder.removeFirst());
+        }
+    }
+
+    /**
+     * Forgets the cached miss of /key/, and marks its Load, if any,
+     * stale: called for every write of the key. Assumes the global
+     * lock is held. The key stays in missOrder until it ages out, so
+     * a forgotten key that misses again may be forgotten early; that
+     * only costs a disk read.
+     */
+    private void invalidate(String key) {
+        misses.remove(key);
+        Load load = loading.remove(key);
+        if (Objects.nonNull(load)) {
+            load.stale = true;
+        }
+    }
+
+    private void markDirty(CacheEntry entry) {
+        if (!dirty.containsKey(entry)) {
+            dirty.put(entry, System.currentTimeMillis());
+            dirtyWeight += entry.weight;
+        }
+    }
+
+    private void unmarkDirty(CacheEntry entry) {
+        if (Objects.nonNull(dirty.remove(entry))) {
+            dirtyWeight -= entry.weight;
+        }
+    }
+
+    /**
+     * Write-back: writes up to FLUSH_BATCH_MAX of the oldest dirty
+     * entries that became dirty before /dirtyBefore/ (ms since the
+     * epoch) to disk, in one batch.
+     *
+     * The entries are locked under the global lock and stay locked
+     * until they are written, so no update can slip in between
+     * reading an entry and marking it clean; the disk write itself
+     * happens without the global lock.
+     *
+     * @return number of entries written
+     */
+    int flush(long dirtyBefore) {
+        List<CacheEntry> batch = new ArrayList<>();
+
+        /* GLOBAL CRITICAL REGION - START */
+        gl.lock();
+        try {
+            Iterator<Map.Entry<CacheEntry, Long>> it = dirty.entrySet().iterator();
+            Map.Entry<CacheEntry, Long> next;
+            while (it.hasNext() && batch.size() < FLUSH_BATCH_MAX) {
+                next = it.next();
+                if (next.getValue() >= dirtyBefore) {
+                    break;
+                }
+                it.remove();
+                dirtyWeight -= next.getKey().weight;
+
+                /* ENTRY CRITICAL REGION - START */
+                next.getKey().l.lock();
+                batch.add(next.getKey());
+            }
+        } finally {
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+        }
+
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        List<Pair<String, String>> pairs = new ArrayList<>(batch.size());
+        long[] expiresAt = new long[batch.size()];
+        boolean written = false;
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                pairs.add(new Pair<>(batch.get(i).key, batch.get(i).data));
+                expiresAt[i] = batch.get(i).expiresAt;
+            }
+            disk.putAll(pairs, expiresAt);
+            for (CacheEntry entry : batch) {
+                entry.dirty = false;
+            }
+            written = true;
+            stats.recordWriteBacks(batch.size());
+        } catch (Exception e) {
+            logger.error(String.format(
+                "Error flushing %d entries to disk. %s",
+                batch.size(), e.getMessage()
+            ));
+        } finally {
+            for (CacheEntry entry : batch) {
+                entry.l.unlock();
+            }
+            /* ENTRY CRITICAL REGION - END */
+        }
+
+        if (!written) {
+            /* Still dirty; put them back on the list */
+            /* GLOBAL CRITICAL REGION - START */
+            gl.lock();
+            for (CacheEntry entry : batch) {
+                if (_cache.get(entry.key) == entry && entry.dirty) {
+                    markDirty(entry);
+                }
+            }
+            gl.unlock();
+            /* GLOBAL CRITICAL REGION - END */
+            return 0;
+        }
+        return batch.size();
+    }
+
+    /**
+     * Write-back: while more than maxDirtyWeight bytes are dirty, the
+     * calling writer flushes instead of returning, so that writers
+     * cannot outrun the disk.
+     */
+    void applyBackpressure() {
+        while (!writeThrough && dirtyWeight > maxDirtyWeight
+            && flush(Long.MAX_VALUE) > 0) {
+            logger.debug(String.format(
+                "Write-back: %d bytes dirty, writer flushed", dirtyWeight));
+        }
+    }
+
+    /**
+     * Buffers a hit for the policy. Once READ_BUFFER_DRAIN hits are
+     * buffered, drains them if the global lock is free; never waits
+     * for it. Hits are dropped while the buffer is full.
+     */
+    private void recordRead(CacheEntry entry) {
+        int buffered = readBuffered.incrementAndGet();
+        if (buffered <= READ_BUFFER_MAX) {
+            readBuffer.add(entry);
+        } else {
+            readBuffered.decrementAndGet();
+        }
+
+        if (buffered >= READ_BUFFER_DRAIN && gl.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                gl.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays the buffered hits into the policy, skipping entries that
+     * have left the cache since. Assumes the global lock is held.
+     */
+    private void drainReads() {
+        CacheEntry entry;
+        while (Objects.nonNull(entry = readBuffer.poll())) {
+            readBuffered.decrementAndGet();
+            if (_cache.get(entry.key) == entry) {
+                policy.onAccess(entry);
+            }
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        for (CacheEntry ce : _cache.values()) {
+            sb.append(dumpEntry(ce));
+        }
+    }
+
+    private static String dumpEntry(CacheEntry ce) {
+        return String.format("%-5s %-40s %-20d %-9d %-5d\n",
+            ce.key, ce.data, ce.lastAccessed,
+            ce.accessFrequency, ce.order
+        );
+    }
+}
@@ -0,0 +1,86 @@
+package server;
+
+import shared.messages.CacheReport;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a DSCache, shared by its shards. They are LongAdders,
+ * so the hit path records a hit without a lock and without
+ * contending on one counter; a report sums them up (see
+ * DSCache.getStats), and is therefore only about consistent.
+ */
+class CacheStats {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder coalescedMisses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder[] loadLatency = new LongAdder[CacheReport.LATENCY_BUCKETS];
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder writeBacks = new LongAdder();
+
+    CacheStats() {
+        for (int i = 0; i < loadLatency.length; i++) {
+            loadLatency[i] = new LongAdder();
+        }
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordNegativeHit() {
+        misses.increment();
+        negativeHits.increment();
+    }
+
+    void recordCoalescedMiss() {
+        misses.increment();
+        coalescedMisses.increment();
+    }
+
+    /**
+     * A miss read from disk in /nanos/
+     */
+    void recordLoad(long nanos) {
+        misses.increment();
+        loads.increment();
+        loadNanos.add(nanos);
+
+        /* Bucket i: less than 2^(i+1) us */
+        long micros = Math.max(nanos / 1000, 1);
+        int bucket = 63 - Long.numberOfLeadingZeros(micros);
+        loadLatency[Math.min(bucket, loadLatency.length - 1)].increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    void recordWriteBacks(int n) {
+        writeBacks.add(n);
+    }
+
+    /**
+     * @return the counters; the caller fills in the state of the cache
+     */
+    CacheReport report() {
+        long[] latency = new long[loadLatency.length];
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = loadLatency[i].sum();
+        }
+
+        return new CacheReport()
+            .setHits(hits.sum())
+            .setMisses(misses.sum())
+            .setNegativeHits(negativeHits.sum())
+            .setCoalescedMisses(coalescedMisses.sum())
+            .setLoads(loads.sum())
+            .setLoadNanos(loadNanos.sum())
+            .setLoadLatency(latency)
+            .setEvictions(evictions.sum())
+            .setWriteBacks(writeBacks.sum());
+    }
+}
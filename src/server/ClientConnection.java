@@ -223,7 +223,9 @@ public class ClientConnection extends Thread {
                     break;
                 case SERVER_INIT:
                     server.initKVServer(msg.getMetadata(),
-                        msg.getCacheSize(), msg.getCacheStrategy());
+                        msg.getCacheSize(), msg.getCacheStrategy(),
+                        msg.getStorageEngine(), msg.getCacheMaxBytes(),
+                        msg.getCacheWriteBack());
                     respBuilder
                         .withMessageType(MessageType.SERVER_TO_ECS)
                         .withStatusType(KVMessage.StatusType.SUCCESS);
@@ -266,6 +268,12 @@ public class ClientConnection extends Thread {
                         .withDataSet(server.getReplicaData(msg.getServer()))
                         .withStatusType(KVMessage.StatusType.SUCCESS);
                     break;
+                case SERVER_CACHE_STATS:
+                    respBuilder
+                        .withMessageType(MessageType.SERVER_TO_ECS)
+                        .withCacheReport(server.getCacheStats())
+                        .withStatusType(KVMessage.StatusType.SUCCESS);
+                    break;
                 case ECS_HEARTBEAT:
                     respBuilder
                         .withMessageType(MessageType.SERVER_TO_ECS)
@@ -379,7 +387,8 @@ public class ClientConnection extends Thread {
                     assert(Objects.nonNull(msg.getUUID()));
                     KVMessage.StatusType respType = server.replicate(
                         msg.getPrimary().getNodeName(), msg.getUUID(),
-                        msg.getKey(), msg.getValue());
+                        msg.getKey(), msg.getValue(),
+                        Objects.nonNull(msg.getTtl()) ? msg.getTtl() : 0);
                     respBuilder
                         .withMessageType(MessageType.SERVER_TO_SERVER)
                         .withStatusType(respType);
@@ -437,12 +446,13 @@ public class ClientConnection extends Thread {
         logger.info("Received PUT DataSet='{}'", dataSet.toString());
 
         KVMessage.StatusType status = PUT_SUCCESS;
+        long ttl = Objects.nonNull(msg.getTtl()) ? msg.getTtl() : 0;
         List<Pair<String, String>> entries = dataSet.getEntries();
         for (Pair<String, String> pair : entries) {
             String key = pair.getKey(), value = pair.getValue();
 
             try {
-                status = server.putKVWithStatusCheck(msg.getUUID(), key, value);
+                status = server.putKVWithStatusCheck(msg.getUUID(), key, value, ttl);
                 logger.info("PUT: {} <{}, {}>", status, key, value);
             } catch (Exception e) {
                 logger.error("PUT failed. <{}, {}>", key, value, e);
@@ -471,7 +481,9 @@ public class ClientConnection extends Thread {
             String retrievedValue = this.server.getKV(key);
             msg.setValue(retrievedValue);
 
-            status = KVMessage.StatusType.GET_SUCCESS;
+            status = Objects.nonNull(retrievedValue)
+                ? KVMessage.StatusType.GET_SUCCESS
+                : KVMessage.StatusType.GET_ERROR;
             logger.info("GET: {} <{}, {}>", status, key, retrievedValue);
         } catch (Exception e) {
             status = KVMessage.StatusType.GET_ERROR;
@@ -557,7 +569,8 @@ public class ClientConnection extends Thread {
                 Pair<String, String> mapResult = new Pair<>(
                     resultKey, new MapOutput(dataSet).toString()
                 );
-                ServerRequestLib.serverPutKV(ring, mapResult);
+                ServerRequestLib.serverPutKV(ring, mapResult,
+                    MapReduceCtrl.INTERMEDIATE_TTL_MILLIS);
             }
         } catch (Exception e) {
             logger.error("[MAPPER]: Error when Mapping data", e);
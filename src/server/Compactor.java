@@ -0,0 +1,125 @@
+package server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Background thread that compacts the storage engines of a server
+ * once enough of their sealed segments is garbage (see
+ * {@link Disk#compact()}), or, for an {@link LSMDisk}, once a level outgrows
+ * its budget. Before each check it reaps the expired keys of the
+ * engine (see {@link StorageEngine#reapExpired()}), which is what
+ * turns them into garbage.
+ *
+ * Compaction reads and rewrites whole segments, so it is rate
+ * limited to BYTES_PER_SEC; a busy node keeps its disk bandwidth for
+ * client requests. Between passes the thread rests for restPeriodMS.
+ */
+public class Compactor extends Thread {
+	private static final Logger logger = LoggerFactory.getLogger(Compactor.class);
+	private static final String LOG_PREFIX = "[COMPACTOR]";
+	public static final long REST_PERIOD_MS = 30 * 1000;
+	public static final long BYTES_PER_SEC = 8 * 1024 * 1024; // 8 MB/s
+	public static final double MIN_GARBAGE_RATIO = 0.5;
+
+	private Set<StorageEngine> disks;
+	private volatile boolean isRunning;
+	private long restPeriodMS;
+	private long bytesPerSec;
+	private double minGarbageRatio;
+
+	/* Throttle state: bytes copied since windowStart */
+	private long windowStart;
+	private long windowBytes;
+
+	public Compactor() {
+		this(REST_PERIOD_MS, BYTES_PER_SEC, MIN_GARBAGE_RATIO);
+	}
+
+	public Compactor(long restPeriodMS, long bytesPerSec, double minGarbageRatio) {
+		logger.debug("{}: Initialized. Rest Period={}, Budget={}B/s",
+			LOG_PREFIX, restPeriodMS, bytesPerSec);
+		this.disks = ConcurrentHashMap.newKeySet();
+		this.isRunning = true;
+		this.restPeriodMS = restPeriodMS;
+		this.bytesPerSec = bytesPerSec;
+		this.minGarbageRatio = minGarbageRatio;
+		setName("compactor");
+		setDaemon(true);
+	}
+
+	public void register(StorageEngine disk) {
+		disks.add(disk);
+	}
+
+	public void unregister(StorageEngine disk) {
+		disks.remove(disk);
+	}
+
+	@Override
+	public void run() {
+		while (isRunning) {
+			for (StorageEngine disk : disks) {
+				if (!isRunning) {
+					break;
+				}
+
+				disk.reapExpired();
+				if (disk.needsCompaction(minGarbageRatio)) {
+					logger.debug("{}: Compacting {}", LOG_PREFIX, disk.getName());
+					disk.compact(this);
+				}
+			}
+
+			if (!sleepFor(restPeriodMS)) {
+				logger.debug("{}: Thread interrupted, exiting", LOG_PREFIX);
+				isRunning = false;
+			}
+		}
+	}
+
+	/**
+	 * Wakes the thread from its rest or throttle instead of
+	 * interrupting it: an interrupt that lands in FileChannel I/O
+	 * closes the channel, which the engine shares with every reader.
+	 */
+	public synchronized void shutdown() {
+		isRunning = false;
+		notifyAll();
+	}
+
+	/**
+	 * Called by StorageEngine.compact for every record it copies. Sleeps
+	 * whenever the bytes copied in the current one second window
+	 * exceed the budget.
+	 */
+	void throttle(int bytes) {
+		long now = System.currentTimeMillis();
+		if (now - windowStart >= 1000) {
+			windowStart = now;
+			windowBytes = 0;
+		}
+
+		windowBytes += bytes;
+		if (windowBytes >= bytesPerSec) {
+			sleepFor(windowStart + 1000 - now);
+			windowStart = System.currentTimeMillis();
+			windowBytes = 0;
+		}
+	}
+
+	private synchronized boolean sleepFor(long ms) {
+		try {
+			if (isRunning && ms > 0) {
+				wait(ms);
+			}
+		} catch (Exception e) {
+			return false;
+		}
+
+		return true;
+	}
+}
@@ -1,10 +1,14 @@
 package server;
 
+import server.impl.EntryList;
+import server.impl.PolicyARC;
 import server.impl.PolicyFIFO;
 import server.impl.PolicyLFU;
 import server.impl.PolicyLRU;
 import server.impl.PolicyNoOp;
+import server.impl.PolicyWTinyLFU;
 import shared.Pair;
+import shared.messages.CacheReport;
 import org.apache.log4j.Logger;
 
 import java.util.*;
@@ -15,6 +19,37 @@ import java.util.stream.Collectors;
 
 /**
  * This is the cache to be used. It is fully thread safe.
+ *
+ * The cache is split into shards by key hash (see CacheShard), each
+ * with its own lock, its share of the capacity, and its own instance
+ * of the replacement policy, so operations on keys of different
+ * shards do not contend. The policy is applied per shard: the entry
+ * evicted is the one the policy picks among the keys of the shard.
+ * Small caches get a single shard, so they evict exactly as the
+ * policy says.
+ *
+ * Capacity is bounded by entry count and, optionally, by bytes: each
+ * entry weighs its key and value plus ENTRY_OVERHEAD_BYTES (see
+ * weigh), and entries are evicted until the new one fits both
+ * limits. A value heavier than a whole shard is not cached at all.
+ * An update that grows an entry may leave a shard over its byte
+ * budget until its next insert.
+ *
+ * With writeThrough off (write-back), puts return once the cache is
+ * updated. A CacheFlusher thread writes dirty entries to disk in
+ * batches once they are WRITE_BACK_MAX_AGE_MS old, or all of them
+ * once WRITE_BACK_BACKGROUND_BYTES are dirty; writers flush
+ * themselves while WRITE_BACK_MAX_DIRTY_BYTES are dirty. A crash
+ * loses at most the puts of the last WRITE_BACK_MAX_AGE_MS (or of
+ * the dirty bytes, under load). Call close when done with a
+ * write-back cache, so that nothing dirty is left behind.
+ *
+ * The NEGATIVE_CACHE_SIZE keys most recently found to not exist are
+ * remembered until they are written, so polling for a key that does
+ * not exist yet does not read the disk each time.
+ *
+ * Hits, misses, loads and their latency, evictions and write-backs
+ * are counted without locks; see getStats.
  */
 public class DSCache {
     private static Logger logger = Logger.getLogger(DSCache.class);
@@ -23,8 +58,22 @@ public class DSCache {
     public static final int CODE_DELETE_SUCCESS = 4;
     public static final int CODE_PUT_ERROR = -2;
     public static final int CODE_DELETE_ERROR = -4;
-
-    public class CacheEntry {
+    public static final int MAX_SHARDS = 16;
+    /* Caches smaller than 2 * MIN_SHARD_SIZE are not sharded */
+    public static final int MIN_SHARD_SIZE = 1024;
+    /* Heap used by an entry besides its key and value: the entry, its
+     * lock, two String headers and the map node */
+    public static final int ENTRY_OVERHEAD_BYTES = 192;
+    /* Write-back: dirty entries are flushed once this old */
+    public static final long WRITE_BACK_MAX_AGE_MS = 1000;
+    /* Write-back: the flusher flushes everything above this */
+    public static final long WRITE_BACK_BACKGROUND_BYTES = 16 * 1024 * 1024; // 16 MB
+    /* Write-back: writers flush themselves above this */
+    public static final long WRITE_BACK_MAX_DIRTY_BYTES = 64 * 1024 * 1024; // 64 MB
+    /* Misses remembered (see get); split between the shards */
+    public static final int NEGATIVE_CACHE_SIZE = 4096;
+
+    public static class CacheEntry {
         public long lastAccessed;
         public int accessFrequency;
         public int order;
@@ -32,20 +81,38 @@ public class DSCache {
         String data;
         Lock l;
         boolean dirty;
-
-        CacheEntry(String _key, String _data, int _order, boolean _dirty) {
+        /* ms since the epoch; 0 if the entry never expires */
+        long expiresAt;
+        /* See weigh; kept up to date by the shard */
+        long weight;
+        /* Links of the policy list the entry is in (see EntryList) */
+        public CacheEntry prev;
+        public CacheEntry next;
+        public EntryList list;
+
+        CacheEntry(String _key, String _data, int _order, boolean _dirty, long _expiresAt) {
             updateAccessTime();
             accessFrequency = 1;
             key = _key;
             data = _data;
             order = _order;
             dirty = _dirty;
+            expiresAt = _expiresAt;
+            weight = weigh(_key, _data);
             l = new ReentrantLock();
         }
 
+        public String getKey() {
+            return key;
+        }
+
         void updateAccessTime() {
             lastAccessed = System.nanoTime();
         }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
     }
 
     @FunctionalInterface
@@ -65,83 +132,149 @@ public class DSCache {
          * @return The CacheEntry to be evicted
          */
         CacheEntry evict(Map<String, CacheEntry> _cache, String key);
+
+        /*
+         * Notifications for policies that track the entries
+         * themselves instead of scanning _cache on evict. DSCache
+         * calls them under the global lock, after the change to
+         * _cache.
+         */
+
+        default void onInsert(CacheEntry entry) {}
+
+        /**
+         * Entry was read or updated
+         */
+        default void onAccess(CacheEntry entry) {}
+
+        /**
+         * Entry was evicted, deleted or invalidated
+         */
+        default void onRemove(CacheEntry entry) {}
+
+        default void onClear() {}
     }
 
-    private Map<String, CacheEntry> _cache;
-    private Policy policy;
+    private CacheShard[] shards;
     private int cacheSize;
-    private boolean writeThrough;
+    private long maxBytes;
     private IServer.CacheStrategy strategy;
-    private Lock gl;
-    private Disk disk;
+    private StorageEngine disk;
+    private boolean writeThrough;
+    private CacheFlusher flusher;
+    private CacheStats stats;
 
-    /* Monotonically non-decreasing number -> enforces FIFO ordering */
-    private int n = 0;
+    public DSCache(int size, String strategy, StorageEngine disk, boolean writeThrough) {
+        this(size, 0, strategy, disk, writeThrough, defaultShards(size));
+    }
 
-    public DSCache(int size, String strategy, Disk disk, boolean writeThrough) {
+    public DSCache(int size, String strategy, StorageEngine disk, boolean writeThrough, int shards) {
+        this(size, 0, strategy, disk, writeThrough, shards);
+    }
+
+    /**
+     * @param size capacity in entries
+     * @param maxBytes capacity in bytes (see weigh); 0 for no limit
+     */
+    public DSCache(int size, long maxBytes, String strategy, StorageEngine disk) {
+        this(size, maxBytes, strategy, disk, true);
+    }
+
+    public DSCache(int size, long maxBytes, String strategy, StorageEngine disk,
+                   boolean writeThrough) {
+        this(size, maxBytes, strategy, disk, writeThrough, defaultShards(size));
+    }
+
+    /**
+     * @param shards number of shards; the capacity (entries and bytes)
+     *               is split evenly between them
+     */
+    public DSCache(int size, long maxBytes, String strategy, StorageEngine disk,
+                   boolean writeThrough, int shards) {
         IServer.CacheStrategy strat = IServer.CacheStrategy.valueOf(strategy);
-        switch (strat) {
-            case LRU:
-                policy = new PolicyLRU();
-                break;
-            case FIFO:
-                policy = new PolicyFIFO();
-                break;
-            case LFU:
-                policy = new PolicyLFU();
-                break;
-            default:
-                policy = new PolicyNoOp();
-                size = 0;
-                break;
+        if (strat == IServer.CacheStrategy.None) {
+            size = 0;
         }
+        shards = Math.max(1, Math.min(shards, Math.max(size, 1)));
 
         this.strategy = strat;
-        this.writeThrough = writeThrough;
         this.disk = disk;
-        _cache = new HashMap<>();
-        cacheSize = size;
-        gl = new ReentrantLock();
+        this.cacheSize = size;
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.writeThrough = writeThrough;
+        this.stats = new CacheStats();
+        this.shards = new CacheShard[shards];
+        int shardSize;
+        for (int i = 0; i < shards; i++) {
+            shardSize = size / shards + (i < size % shards ? 1 : 0);
+            this.shards[i] = new CacheShard(shardSize, this.maxBytes / shards,
+                newPolicy(strat, shardSize), disk, writeThrough,
+                WRITE_BACK_MAX_DIRTY_BYTES / shards,
+                size > 0 ? NEGATIVE_CACHE_SIZE / shards : 0, stats);
+        }
+
+        this.flusher = null;
+        if (!writeThrough && size > 0) {
+            flusher = new CacheFlusher(this);
+            flusher.start();
+        }
     }
 
-    public DSCache(int size, String strategy, Disk disk) {
+    public DSCache(int size, String strategy, StorageEngine disk) {
         this(size, strategy, disk, true);
     }
 
-    public void clearCache(boolean isThreadSafe) throws Exception {
-        /* GLOBAL CRITICAL REGION - START */
-        if (!isThreadSafe) {
-            gl.lock();
-        }
+    private static int defaultShards(int size) {
+        return Math.max(1, Math.min(MAX_SHARDS, size / MIN_SHARD_SIZE));
+    }
 
-        /* Flush all cache entries to disk */
-        int cnt = 0;
-        try {
-            for (CacheEntry entry : _cache.values()) {
-                if (entry.dirty) {
-                    disk.putKV(entry.key, entry.data);
-                }
-                cnt++;
-            }
-        } catch (Exception e) {
-            if (!isThreadSafe) {
-                gl.unlock();
-            }
-            /* GLOBAL CRITICAL REGION - END */
+    /**
+     * @return estimated heap bytes of an entry of /key/ and /value/
+     */
+    public static long weigh(String key, String value) {
+        return ENTRY_OVERHEAD_BYTES
+            + 2L * (key.length() + (Objects.nonNull(value) ? value.length() : 0));
+    }
 
-            throw new Exception(String.format(
-                "Deleted %d elements. Error: %s",
-                cnt, e.getMessage())
-            );
+    private static Policy newPolicy(IServer.CacheStrategy strategy, int capacity) {
+        switch (strategy) {
+            case LRU:
+                return new PolicyLRU();
+            case FIFO:
+                return new PolicyFIFO();
+            case LFU:
+                return new PolicyLFU();
+            case WTinyLFU:
+                return new PolicyWTinyLFU(capacity);
+            case ARC:
+                return new PolicyARC(capacity);
+            default:
+                return new PolicyNoOp();
         }
+    }
 
-        assert(cnt == _cache.size());
-        _cache.clear();
+    private CacheShard shardOf(String key) {
+        return shards[shardIndex(key)];
+    }
 
-        if (!isThreadSafe) {
-            gl.unlock();
+    private int shardIndex(String key) {
+        if (shards.length == 1) {
+            return 0;
+        }
+        int h = key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    /**
+     * Writes back and drops every entry of the cache.
+     *
+     * @param isThreadSafe true if the caller already holds the locks
+     *                     of all shards
+     */
+    public void clearCache(boolean isThreadSafe) throws Exception {
+        for (CacheShard shard : shards) {
+            shard.clearCache(isThreadSafe);
         }
-        /* GLOBAL CRITICAL REGION - END */
     }
 
     public int getCacheSize() {
@@ -152,16 +285,123 @@ public class DSCache {
         return cacheSize;
     }
 
-    public boolean inCache(String key) {
-        /* GLOBAL CRITICAL REGION - START */
-        gl.lock();
+    /**
+     * @return capacity in bytes; 0 if only the entry count is limited
+     */
+    public long getCacheMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return estimated bytes held by the cache (see weigh)
+     */
+    public long getCacheWeight() {
+        long weight = 0;
+        for (CacheShard shard : shards) {
+            weight += shard.getWeight();
+        }
+        return weight;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public boolean isWriteThrough() {
+        return writeThrough;
+    }
+
+    /**
+     * @return the counters of the cache since it was created, and its
+     *         current size, weight and dirty bytes
+     */
+    public CacheReport getStats() {
+        int size = 0;
+        for (CacheShard shard : shards) {
+            size += shard.size();
+        }
+
+        return stats.report()
+            .setStrategy(strategy.name())
+            .setCapacity(cacheSize)
+            .setMaxBytes(maxBytes)
+            .setShards(shards.length)
+            .setWriteThrough(writeThrough)
+            .setSize(size)
+            .setWeight(getCacheWeight())
+            .setDirtyBytes(getDirtyWeight());
+    }
+
+    /**
+     * @return estimated bytes of the entries not yet written to disk
+     */
+    public long getDirtyWeight() {
+        long weight = 0;
+        for (CacheShard shard : shards) {
+            weight += shard.getDirtyWeight();
+        }
+        return weight;
+    }
+
+    /**
+     * Write-back: writes every dirty entry to disk. Entries that are
+     * made dirty concurrently may not be written.
+     */
+    public void flush() {
+        for (CacheShard shard : shards) {
+            while (shard.flush(Long.MAX_VALUE) > 0) {}
+        }
+    }
 
-        boolean contains = _cache.containsKey(key);
+    /**
+     * Called by the CacheFlusher: flushes the entries that have been
+     * dirty for WRITE_BACK_MAX_AGE_MS, and all of a shard once it
+     * holds more than its share of WRITE_BACK_BACKGROUND_BYTES dirty.
+     *
+     * @return number of entries written
+     */
+    int flushDue() {
+        long background = WRITE_BACK_BACKGROUND_BYTES / shards.length;
+        long dirtyBefore = System.currentTimeMillis() - WRITE_BACK_MAX_AGE_MS;
+        int flushed = 0, n;
+        for (CacheShard shard : shards) {
+            do {
+                n = shard.flush(shard.getDirtyWeight() > background
+                    ? Long.MAX_VALUE : dirtyBefore);
+                flushed += n;
+            } while (n == CacheShard.FLUSH_BATCH_MAX);
+        }
+        return flushed;
+    }
+
+    /**
+     * Stops the flusher and writes back what is dirty. The cache
+     * stays usable, as if write-through, except that later puts
+     * are only written back when evicted or flushed.
+     */
+    public void close() {
+        if (Objects.nonNull(flusher)) {
+            flusher.shutdown();
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher = null;
+        }
+        flush();
+    }
 
-        gl.unlock();
-        /* GLOBAL CRITICAL REGION - END */
+    public boolean inCache(String key) {
+        return shardOf(key).inCache(key);
+    }
 
-        return contains;
+    /**
+     * @return true if /key/ exists, in the cache (including entries
+     *         not yet written back) or on disk
+     */
+    public boolean contains(String key) {
+        return shardOf(key).contains(key);
     }
 
     public IServer.CacheStrategy getCacheStrategy() {
@@ -169,29 +409,19 @@ public class DSCache {
     }
 
     public List<Pair<String, String>> getAll() {
-        /* GLOBAL CRITICAL REGION - START */
-        gl.lock();
-
         List<Pair<String, String>> entries = new ArrayList<>();
-        Iterator<Map.Entry<String, CacheEntry>> it = _cache.entrySet().iterator();
-        Map.Entry<String, CacheEntry> entry;
-        while (it.hasNext()) {
-            entry = it.next();
-            entries.add(new Pair<>(
-                entry.getKey(),
-                entry.getValue().data)
-            );
+        for (CacheShard shard : shards) {
+            entries.addAll(shard.getAll());
         }
-
-        gl.unlock();
-        /* GLOBAL CRITICAL REGION - END */
-
         return entries;
     }
+
     public List<Pair<String, String>> findAndRemove(
         Predicate<Pair<String, String>> pred) throws Exception {
-        /* GLOBAL CRITICAL REGION - START */
-        gl.lock();
+        /* ALL SHARDS CRITICAL REGION - START */
+        for (CacheShard shard : shards) {
+            shard.lock();
+        }
 
         /*
          * (1) Clear all entries from cache
@@ -215,40 +445,23 @@ public class DSCache {
                 }
             ).collect(Collectors.toList());
         } catch (Exception e) {
-            gl.unlock();
-            /* GLOBAL CRITICAL REGION - END */
-
             throw new Exception(String.format(
                 "Error on findAndRemove. Error: %s",
                 e.getMessage())
             );
+        } finally {
+            for (CacheShard shard : shards) {
+                shard.unlock();
+            }
+            /* ALL SHARDS CRITICAL REGION - END */
         }
 
-        gl.unlock();
-        /* GLOBAL CRITICAL REGION - END */
-
         return entries;
     }
 
     /**
-     * Locking scheme:
-     * ------------------------------------------------------------------
-     * (1) Lock global -> guarantees 'get' from $ is atomic
-     * (2) If entry exists, then lock entry. Note that the entry is lock-
-     *     ed while global is still locked. The global lock ensures that
-     *     no other threads evict the entry between the time when entry
-     *     is accessed from $ and when the entry is locked.
-     * (3) Unlock global -> once entry is locked, the entry can no longer
-     *     be evicted. We can safely perform entry-wise operations.
-     *
-     * GetKV involves cache and disk coordination. Here's the algorithm:
-     * (1) Search _cache for matching key
-     * (2) If matching key, return that object
-     * (2) If no matching key, go to disk and fetch object (this implies
-     *     the cache is full)
-     *      - if cannot find in disk, throw error
-     *      - if found in disk, evict an entry in cache based on
-     *        policy and place the fetched data in cache.
+     * Returns the value of /key/, from the cache or else from disk,
+     * in which case it is cached (see CacheShard.get).
      *
      * @throws Exception Generic program runtime error. This should be
      * handled gracefully. Exception is thrown if key is not found.
@@ -256,95 +469,28 @@ public class DSCache {
      * !!CRASH THE PROGRAM!!
      */
     public String getKV(String key) throws AssertionError, Exception {
-        /* GLOBAL CRITICAL REGION - START */
-        gl.lock();
-
-        CacheEntry entry = null;
-        String data = null;
-
-        if (Objects.nonNull(entry = _cache.get(key))) {
-            /* ENTRY CRITICAL REGION - START */
-            entry.l.lock();
-
-            gl.unlock();
-            /* GLOBAL CRITICAL REGION - END */
-
-            entry.updateAccessTime();
-            entry.accessFrequency++;
-            data = entry.data;
-
-            entry.l.unlock();
-            /* ENTRY CRITICAL REGION - END */
-
-            return data;
-        }
-
-        /*
-         * Look in the disk to see if entry was evicted. Yes, we
-         * are essentially doing an evict-put (same as putKV), but
-         * can't call putKV because we have to ensure atomicity, so
-         * have to replicate putKV code here.
-         */
-        if (Objects.nonNull(data = disk.getKV(key))) {
-            /* Special case - no cache used */
-            if (cacheSize == 0) {
-                assert(_cache.size() == 0);
-                gl.unlock();
-                /* GLOBAL CRITICAL REGION - END */
-
-                return data;
-            }
-
-            entry = new CacheEntry(key, data, n, false);
-            n++;
-            if (_cache.size() < cacheSize) {
-                _cache.put(key, entry);
-            } else {
-                CacheEntry evict = policy.evict(_cache, key);
-
-                /* Only write to disk if disk data is stale */
-                if (evict.dirty) {
-                    try {
-                        disk.putKV(evict.key, evict.data);
-                    } catch (Exception e) {
-                        n--;
-                        gl.unlock();
-                        /* GLOBAL CRITICAL REGION - END */
-
-                        throw new Exception(String.format(
-                            "Error upon evicting object with key %s -> %s",
-                            key, e.getMessage()
-                        ));
-                    }
-                }
-
-                _cache.remove(evict.key);
-                _cache.put(key, entry);
-            }
-
-            gl.unlock();
-            /* GLOBAL CRITICAL REGION - END */
-
-            return data;
+        String data = get(key);
+        if (Objects.isNull(data)) {
+            throw new Exception(String.format(
+                "Object with key %s not found", key)
+            );
         }
+        return data;
+    }
 
-        /* Element doesn't exist anywhere */
-        gl.unlock();
-        /* GLOBAL CRITICAL REGION - END */
-
-        logger.info(String.format("Key not found: %s", key));
-        throw new Exception(String.format(
-            "Object with key %s not found", key)
-        );
+    /**
+     * Same as {@link #getKV(String)}, but returns null if the key is
+     * not found. Misses are cached, so a repeated miss is answered
+     * from memory.
+     */
+    public String get(String key) throws AssertionError, Exception {
+        return shardOf(key).get(key);
     }
 
     /**
-     * PutKV involves cache and disk coordination. Here's the algorithm:
-     * (1) Search _cache for matching key/entry
-     * (2) If entry is present, update that entry
-     * (3) If entry is not present, insert that entry
-     * (4) If entry is present, and value is NULL, delete that entry
-     *     from cache and disk.
+     * Inserts, updates, or (if /value/ is null, "null" or blank)
+     * deletes a pair, in the cache and on disk (see
+     * CacheShard.putKV).
      *
      * Note: Synchronization is guaranteed; The configured replacement
      * policy is respected when the cache is full.
@@ -353,237 +499,76 @@ public class DSCache {
      * !!CRASH THE PROGRAM!!
      */
     public int putKV(String key, String value) throws AssertionError, Exception {
-        if (key.equals("")) {
-            throw new Exception(String.format(
-                "Key: %s cannot be an empty string", key)
-            );
-        }
-        if (key.split(" ").length > 1) {
-            throw new Exception(String.format(
-                "Key: %s cannot contain spaces", key)
-            );
-        }
-
-        /* GLOBAL CRITICAL REGION - START */
-        gl.lock();
-
-        /* DELETE */
-        if (Objects.isNull(value) || value.equals("null") ||
-            value.trim().equals("")) {
-
-            CacheEntry deleteEntry = _cache.get(key);
-            if (Objects.nonNull(deleteEntry)) {
-                /* ENTRY CRITICAL REGION - START */
-                deleteEntry.l.lock();
-            }
-
-            try {
-                /* Do DELETE */
-                boolean result = disk.putKV(key, null);
-                if (!result && Objects.isNull(deleteEntry)) {
-                    throw new Exception(String.format(
-                        "Key to delete: %s does not exist",
-                        key
-                    ));
-                }
-            } catch (Exception e) {
-                if (Objects.nonNull(deleteEntry)) {
-                    deleteEntry.l.unlock();
-                }
-                gl.unlock();
-                /* GLOBAL/ENTRY CRITICAL REGION - END */
-
-                logger.error(String.format(
-                    "Error deleting disk object: %s. %s",
-                    key, e.getMessage()
-                ));
-                throw e;
-            }
-
-            if (Objects.nonNull(deleteEntry)) {
-                _cache.remove(key);
-                deleteEntry.l.unlock();
-                /* ENTRY CRITICAL REGION - END */
-            }
-
-            gl.unlock();
-            /* GLOBAL CRITICAL REGION - END */
-
-            return CODE_DELETE_SUCCESS;
-        }
-
-        /*
-         * 2 Cases in general:
-         * (1) Entry with 'key' already exists in cache -> update
-         * (2) Entry with 'key' does not yet exist in cache -> insert
-         */
-
-        // (1)
-        CacheEntry entry;
-        if (Objects.nonNull(entry = _cache.get(key))) {
-            /* ENTRY CRITICAL REGION - START */
-            entry.l.lock();
-
-            /* Update */
-            gl.unlock();
-            /* GLOBAL CRITICAL REGION - END */
-
-            /* Write-through to DISK */
-            if (writeThrough) {
-                try {
-                    disk.putKV(key, value);
-                } catch (Exception e) {
-                    entry.l.unlock();
-                    /* ENTRY CRITICAL REGION - END */
-
-                    logger.error(String.format(
-                        "Error updating entry to disk: %s->%s. %s",
-                        key, value, e.getMessage()
-                    ));
-                    throw e;
-                }
-            }
-
-            entry.data = value;
-            entry.accessFrequency++;
-            entry.updateAccessTime();
-            entry.dirty = true;
-
-            entry.l.unlock();
-            /* ENTRY CRITICAL REGION - END */
-
-            return CODE_PUT_UPDATE;
-        }
-
-        // (2)
-        if (_cache.size() < cacheSize) {
-            /* Write-through to DISK */
-            if (writeThrough) {
-                try {
-                    disk.putKV(key, value);
-                } catch (Exception e) {
-                    gl.unlock();
-                    /* GLOBAL CRITICAL REGION - END */
-
-                    logger.error(String.format(
-                        "Error write entry to disk: %s->%s. %s",
-                        key, value, e.getMessage()
-                    ));
-                    throw e;
-                }
-            }
+        return putKV(key, value, 0);
+    }
 
-            /* Only write CACHE after DISK success */
-            entry = new CacheEntry(key, value, n, true);
-            n++;
-            _cache.put(key, entry);
+    /**
+     * Same as {@link #putKV(String, String)}, but the pair expires
+     * /ttlMillis/ ms from now, in the cache and on disk alike. A put
+     * without a TTL clears the TTL of an existing pair.
+     *
+     * @param ttlMillis 0 if the pair never expires
+     */
+    public int putKV(String key, String value, long ttlMillis) throws AssertionError, Exception {
+        CacheShard shard = shardOf(key);
+        int code = shard.putKV(key, value, ttlMillis);
+        shard.applyBackpressure();
+        return code;
+    }
 
-            gl.unlock();
-            /* GLOBAL CRITICAL REGION - END */
+    /**
+     * Bulk load: stores every pair of /entries/ on disk in one batch
+     * (see {@link StorageEngine#putAll(List)}). A null value deletes
+     * its key; unlike putKV, deleting a key that DNE is not an error.
+     *
+     * The pairs are not cached: a bulk load is a transfer of data
+     * that was not asked for here, and would only evict the working
+     * set. Cached entries of the keys are dropped instead, so that
+     * they are not served stale.
+     */
+    public void putAll(List<Pair<String, String>> entries) throws Exception {
+        putAll(entries, null);
+    }
 
-            return CODE_PUT_SUCCESS;
+    /**
+     * Same as {@link #putAll(List)}, but the i-th pair expires at
+     * /expiresAt[i]/ (see {@link StorageEngine#putAll(List, long[])}).
+     *
+     * @param expiresAt null if no pair expires
+     */
+    public void putAll(List<Pair<String, String>> entries, long[] expiresAt) throws Exception {
+        if (shards.length == 1) {
+            shards[0].putAll(entries, expiresAt);
+            return;
         }
 
         /*
-         * Special case: cacheSize is 0 means we're caching -> persist
-         * data directly to disk.
+         * The shards the keys fall into are locked (in shard order,
+         * as by any operation spanning shards) and drop their entries
+         * of the keys; the batch is then written to disk as one.
          */
-        if (cacheSize == 0) {
-            assert(_cache.size() == 0);
-            try {
-                disk.putKV(key, value);
-            } catch (Exception e) {
-                logger.error(String.format(
-                    "Direct persistence to disk error: %s",
-                    e.getMessage()
-                ));
-                throw e;
-            } finally {
-                gl.unlock();
-                /* GLOBAL CRITICAL REGION - END */
-            }
-
-            return CODE_PUT_SUCCESS;
+        TreeMap<Integer, List<Pair<String, String>>> parts = new TreeMap<>();
+        for (Pair<String, String> entry : entries) {
+            parts.computeIfAbsent(shardIndex(entry.getKey()), i -> new ArrayList<>()).add(entry);
         }
 
-        /*
-         * Cache has been filled, need to evict an entry. Assumes
-         * disk handles its own synchronization. Notice that evict
-         * is locked and unlocked. This is to prevent read/write race
-         * conditions during eviction.
-         *
-         * IMPORTANT: Always lock the entry before evicting! Acquiring
-         * the lock guarantees that no other threads are working on the
-         * entry to be evicted.
-         *
-         * 01/24/2020: Requirements state that if the entry is either
-         * in disk or cache, it should be an UPDATE op, and differentiate
-         * to the caller if it's a PUT or UPDATE. However, in this case
-         * (when entry is not in cache), we have to seek disk to find
-         * whether the concerning 'key' exists in the system.
-         *
-         * This obviously poses significant performance overhead with no
-         * added functionality, so the team decided to tentatively
-         * exclude this "feature".
-         */
-        assert(_cache.size() == cacheSize);
-        CacheEntry evict = policy.evict(_cache, key);
-
-        /* ENTRY CRITICAL REGION - START */
-        evict.l.lock();
-
-        /* Only write to disk if disk data is stale */
-        if (evict.dirty) {
-            try {
-                disk.putKV(evict.key, evict.data);
-            } catch (Exception e) {
-                evict.l.unlock();
-                gl.unlock();
-                /* GLOBAL/ENTRY CRITICAL REGION - END */
-
-                logger.error(String.format(
-                    "Error evicting object: %s. %s",
-                    key, e.getMessage()
-                ));
-                return CODE_PUT_ERROR;
+        /* AFFECTED SHARDS CRITICAL REGION - START */
+        List<CacheShard> locked = new ArrayList<>(parts.size());
+        try {
+            for (Map.Entry<Integer, List<Pair<String, String>>> part : parts.entrySet()) {
+                CacheShard shard = shards[part.getKey()];
+                shard.lock();
+                locked.add(shard);
+                shard.drop(part.getValue());
             }
-        }
-
-        _cache.remove(evict.key);
-        evict.l.unlock();
-        /* ENTRY CRITICAL REGION - END */
 
-        /* Write-through to DISK */
-        if (writeThrough) {
-            try {
-                disk.putKV(key, value);
-            } catch (Exception e) {
-                gl.unlock();
-                /* GLOBAL CRITICAL REGION - END */
-
-                logger.error(String.format(
-                    "Error evict write to disk: %s->%s. %s",
-                    key, value, e.getMessage()
-                ));
-                return CODE_PUT_ERROR;
+            disk.putAll(entries, expiresAt);
+        } finally {
+            for (CacheShard shard : locked) {
+                shard.unlock();
             }
+            /* AFFECTED SHARDS CRITICAL REGION - END */
         }
-
-        entry = new CacheEntry(key, value, n, true);
-        n++;
-        _cache.put(key, entry);
-        if (_cache.size() != cacheSize) {
-            logger.fatal(String.format(
-                "Expecting cache size to be: %d, actual: %d",
-                cacheSize, _cache.size()
-            ));
-        }
-        assert(_cache.size() == cacheSize);
-
-        gl.unlock();
-        /* GLOBAL CRITICAL REGION - END */
-
-        return CODE_PUT_SUCCESS;
     }
 
     public void dumpCache() {
@@ -592,16 +577,9 @@ public class DSCache {
             "Key", "Data", "LastModified", "Frequency", "Order"));
         sb.append(new String((new char[85])).replace("\0", "-"));
         sb.append("\n");
-        for (CacheEntry ce : _cache.values()) {
-            sb.append(dumpEntry(ce));
+        for (CacheShard shard : shards) {
+            shard.dump(sb);
         }
         System.out.println(sb.toString());
     }
-
-    private static String dumpEntry(CacheEntry ce) {
-        return String.format("%-5s %-40s %-20d %-9d %-5d\n",
-            ce.key, ce.data, ce.lastAccessed,
-            ce.accessFrequency, ce.order
-        );
-    }
 }
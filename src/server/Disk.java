@@ -1,165 +1,377 @@
 package server;
 
+import ecs.HashRing;
 import shared.Pair;
 import org.apache.log4j.Logger;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class Disk {
-    private String KV_STORE_FILE;
-    private static ReadWriteLock RW_LOCK = new ReentrantReadWriteLock();
+/**
+ * Log-structured persistent storage. The store is a directory of
+ * append-only segment files:
+ *      <name>/segment_000001.log
+ *      <name>/segment_000002.log
+ *      ...
+ *
+ * Every put or delete appends exactly one record to the newest
+ * (active) segment, so the cost of a write does not depend on the
+ * size of the store. Deletes append a tombstone. Once the active
+ * segment grows past SEGMENT_MAX_BYTES it is sealed and a new active
+ * segment is started. Sealed segments are never modified.
+ *
+ * The newest record for a key wins: replaying the segments in id
+ * order reproduces the current state of the store. The replay builds
+ * the KeyDir, an in-memory index from each live key to the location
+ * of its newest record. Point reads and existence checks go through
+ * the KeyDir and cost at most one positioned read.
+ *
+ * When a segment is sealed, a hint file listing the key, offset,
+ * length and sequence number of each of its records is written next
+ * to it (see HintFile). Reopening the store builds the KeyDir from
+ * the hint files, without reading any values; only segments without
+ * a usable hint file are replayed.
+ *
+ * The segments double as the write-ahead log: a put is visible and
+ * acknowledged only after its record is forced to disk, and concurrent
+ * puts share one write and one force (see {@link #putKV(String, String)}).
+ * A batch whose write or force fails is cut off the segment again.
+ *
+ * Overwritten records and tombstones are garbage. {@link #compact()}
+ * (normally driven by the {@link Compactor} thread) merges the sealed
+ * segments into one, keeping only live records.
+ *
+ * A record may carry an expiry time (see
+ * {@link #putKV(String, String, long)}). Expired records are filtered
+ * out by every read as soon as they expire, dropped from the KeyDir
+ * in bulk by {@link #reapExpired()}, and become garbage for
+ * compaction like overwritten records. Expiring a key writes nothing.
+ *
+ * Each store has its own locks. Reads and writes of keys are
+ * serialized per stripe of keys (see StripedLock), so independent
+ * keys, and independent stores such as the replicas of a server, are
+ * read and written in parallel; only swapping segments locks the
+ * whole store.
+ *
+ * Bulk reads stream through a {@link KVCursor} (see
+ * {@link #cursor(HashRing.HashRange)}) instead of materialising the
+ * store in memory.
+ *
+ * This is the LOG storage engine (see StorageEngine).
+ */
+public class Disk implements StorageEngine {
+    public static final long SEGMENT_MAX_BYTES = 4 * 1024 * 1024; // 4 MB
+    public static final long COMMIT_WINDOW_NANOS = 0;
+    public static final int COMMIT_MAX_BATCH_BYTES = 1024 * 1024; // 1 MB
+    public static final long MAX_MAPPED_BYTES = 256 * 1024 * 1024; // 256 MB
+    public static final int COMPRESS_MIN_BYTES = 4 * 1024; // 4 KB
+    private String KV_STORE_DIR;
+    private long segmentMaxBytes;
+    public static final int LOCK_STRIPES = 64;
     private static Logger logger = Logger.getLogger(Disk.class);
 
+    /*
+     * Read locked by every operation, write locked by the operations
+     * that swap segments (roll, compaction, clearStorage)
+     */
+    private ReadWriteLock rwLock;
+    /* Guards the KeyDir entry and the newest record of each key */
+    private StripedLock keyLocks;
+
+    /* All segments of this store ordered by id; last one is active */
+    private TreeMap<Integer, Segment> segments;
+    private Segment active;
+    /* Hints of the records in the active segment, written on seal */
+    private List<HintFile.Hint> activeHints;
+    private KeyDir keyDir;
+    private volatile boolean opened;
+
+    /* Only one compaction at a time per store */
+    private Lock compactLock;
+    /* Bumped by clearStorage; an in-flight compaction is discarded */
+    private long generation;
+    /* Compaction waits until no cursor is reading the segments */
+    private AtomicInteger openCursors;
+    /* Sequence number of the last record written */
+    private long seq;
+    /*
+     * Set if a batch that failed could not be cut off the active
+     * segment; it may come back on restart, so no more writes are
+     * taken
+     */
+    private volatile IOException failure;
+
+    /* Group commit queue of putKV */
+    private Lock commitLock;
+    private Condition commitCond;
+    private List<PendingWrite> pending;
+    private long pendingBytes;
+    private boolean committing;
+    private long commitWindowNanos;
+    private int commitMaxBatchBytes;
+
     /**
-     * Constructor - sets the file name to store disk data for this server
-     * @param filename
+     * Constructor - sets the directory name to store disk data for
+     * this server. The directory is created on first use.
+     * @param name
      */
-    public Disk(String filename) {
-        KV_STORE_FILE = filename;
+    public Disk(String name) {
+        this(name, SEGMENT_MAX_BYTES);
     }
 
     /**
-     * Given key and value, formats the pair into the following
-     * format to be stored in the kv_store.txt file:
-     *      <key> <value>
-     *  Key + value separated by a space
-     *  NOTE: if there are any design changes to the persistent
-     *  storage format, only this function should change
-     *
-     * @param key
-     * @param value
-     * @return
+     * @param name directory to store disk data in
+     * @param segmentMaxBytes size at which the active segment is sealed
+     */
+    public Disk(String name, long segmentMaxBytes) {
+        KV_STORE_DIR = name;
+        this.segmentMaxBytes = segmentMaxBytes;
+        rwLock = new ReentrantReadWriteLock();
+        keyLocks = new StripedLock(LOCK_STRIPES);
+        segments = new TreeMap<>();
+        activeHints = new ArrayList<>();
+        keyDir = new KeyDir();
+        opened = false;
+        compactLock = new ReentrantLock();
+        generation = 0;
+        openCursors = new AtomicInteger(0);
+        commitLock = new ReentrantLock();
+        commitCond = commitLock.newCondition();
+        pending = new ArrayList<>();
+        pendingBytes = 0;
+        committing = false;
+        commitWindowNanos = COMMIT_WINDOW_NANOS;
+        commitMaxBatchBytes = COMMIT_MAX_BATCH_BYTES;
+    }
+
+    @Override
+    public String getName() {
+        return KV_STORE_DIR;
+    }
+
+    @Override
+    public IServer.StorageEngineType getType() {
+        return IServer.StorageEngineType.LOG;
+    }
+
+    /**
+     * Caps the total size of the memory mappings used to read sealed
+     * segments and SSTables, across all stores of this process.
      */
-    private String formatKVPair(String key, String value) {
-        return key + " " + value;
+    public static void setMaxMappedBytes(long bytes) {
+        MmapPool.setMaxMappedBytes(bytes);
     }
 
     /**
-     * Creates kv_store.txt file if DNE
+     * Values of at least /bytes/ bytes are compressed when they are
+     * written, across all stores of this process; Integer.MAX_VALUE
+     * turns compression off. Records already written keep their
+     * encoding until compaction rewrites them.
      */
-    private void createKVStoreFile() {
-        Lock writeLock = RW_LOCK.writeLock();
+    public static void setCompressMinBytes(int bytes) {
+        Record.setCompressMinBytes(bytes);
+    }
+
+    /**
+     * Creates the store directory if DNE, then opens all existing
+     * segments and rebuilds the KeyDir from their hint files, or by
+     * replaying the segments that have none.
+     *
+     * @throws IllegalStateException if the directory holds data of
+     *         another engine
+     */
+    private void openKVStore() {
+        if (opened) {
+            return;
+        }
+
+        Lock writeLock = rwLock.writeLock();
         writeLock.lock();
         try {
-            File file = new File(KV_STORE_FILE);
-            if (!file.exists()) {
-                file.createNewFile();
+            if (opened) {
+                return;
+            }
+
+            File dir = new File(KV_STORE_DIR);
+            StoreDir.claim(dir, getType());
+
+            File[] files = dir.listFiles();
+            int id;
+            for (File file : Objects.requireNonNull(files)) {
+                if ((id = Segment.parseId(file.getName())) >= 0) {
+                    segments.put(id, new Segment(dir, id));
+                } else if (file.getName().endsWith(Segment.COMPACT_SUFFIX)
+                    || HintFile.isTemporary(file.getName())) {
+                    /* Leftover of a compaction that never swapped in */
+                    file.delete();
+                }
+            }
+
+            List<HintFile.Hint> hints;
+            int replayed = 0;
+            for (Segment segment : segments.values()) {
+                hints = HintFile.read(segment.hintFile, segment.size());
+                if (Objects.isNull(hints)) {
+                    hints = replaySegment(segment, segment.id == segments.lastKey());
+                    writeHints(segment, hints);
+                    replayed++;
+                } else {
+                    for (HintFile.Hint hint : hints) {
+                        index(hint, segment);
+                        seq = Math.max(seq, hint.seq);
+                    }
+                }
+                segment.seal();
             }
+            rollSegment();
+            opened = true;
+
+            logger.info(String.format("Opened %s: %d segments (%d replayed), %d keys",
+                KV_STORE_DIR, segments.size(), replayed, keyDir.size()));
+        } catch (IllegalStateException ex) {
+            logger.error("Cannot open persistent storage: " + ex.getMessage());
+            throw ex;
         } catch (Exception ex) {
-            logger.error("Cannot create persistent storage file!");
+            logger.error("Cannot open persistent storage: " + ex.getMessage());
         } finally {
             writeLock.unlock();
         }
     }
 
     /**
-     * Updates KV-pair with key = /key/.
-     * kvPairs list will include all KV pairs to be written to persistent
-     * storage including the updated pair.
-     *
-     * Returns true if /key/ exists in storage.
+     * Applies every record of the segment to the KeyDir.
+     * Assumes the write lock is held.
      *
-     * @param key
-     * @param kvPairs
-     * @return
+     * @param last true if /segment/ was the active segment, the only
+     *             one that may end in a torn write
+     * @return hints of the records of the segment
+     */
+    private List<HintFile.Hint> replaySegment(Segment segment, boolean last) throws IOException {
+        List<HintFile.Hint> hints = new ArrayList<>();
+        StoreDir.replay(segment, last, (record, offset, length) -> {
+            HintFile.Hint hint = new HintFile.Hint(record, offset, length);
+            index(hint, segment);
+            hints.add(hint);
+            seq = Math.max(seq, record.seq);
+        });
+        return hints;
+    }
+
+    /**
+     * Writes the hint file of a segment that is being sealed. Hints
+     * only speed up opening the store, so failing to write them is
+     * not an error.
      */
-    private boolean updateKV(String key, String value, List<String> kvPairs) {
-        boolean exists = false;
+    private void writeHints(Segment segment, List<HintFile.Hint> hints) {
         try {
-            FileReader fr = new FileReader(KV_STORE_FILE);
-            BufferedReader reader = new BufferedReader(fr);
-            String line;
-            String []kvPair;
-            while ((line = reader.readLine()) != null) {
-                // split line into [ key, value ]
-                kvPair = line.split(" ", 2);
-
-                // found a match
-                if (kvPair[0].equals(key)) {
-                    exists = true;
-                    line = formatKVPair(key, value);
-                }
-                kvPairs.add(line);
-            }
-            reader.close();
-            fr.close();
-        } catch (Exception ex) {
-            logger.error("Error reading kv_store.txt: " + ex.getMessage());
+            HintFile.write(segment.hintFile, segment.size(), hints);
+        } catch (IOException ex) {
+            logger.warn(String.format("%s: cannot write hints: %s",
+                segment.file, ex.getMessage()));
+            segment.hintFile.delete();
         }
-        return exists;
     }
 
     /**
-     * Deletes /key/ pair from persistent storage.
-     * kvPairs will include all KV pairs to be written to
-     * persistent storage (excluding /key/).
-     *
-     * Returns true if /key/ exists in storage.
-     *
-     * @param key
-     * @param kvPairs
-     * @return
+     * Points the KeyDir at the record just written to / read from
+     * the segment, and moves the live byte count of the record it
+     * replaces over to the new one.
+     * Assumes the write lock, or the read lock and the stripe of the
+     * key, is held.
      */
-    private boolean deleteKV(String key, List<String> kvPairs) {
-        boolean exists = false;
-        try {
-            FileReader fr = new FileReader(KV_STORE_FILE);
-            BufferedReader reader = new BufferedReader(fr);
-            String line;
-            String []kvPair;
-            while ((line = reader.readLine()) != null) {
-                // split line into [ key, value ]
-                kvPair = line.split(" ", 2);
-
-                // only add kv-pair if it doesn't match key param
-                if (!kvPair[0].equals(key)) {
-                    kvPairs.add(line);
-                } else {
-                    exists = true;
-                }
+    private void index(HintFile.Hint hint, Segment segment) {
+        KeyDir.Entry old;
+        if (hint.tombstone) {
+            old = keyDir.remove(hint.key);
+        } else {
+            old = keyDir.put(hint.key,
+                new KeyDir.Entry(segment.id, hint.offset, hint.length, hint.expiresAt));
+            segment.addLiveBytes(hint.length);
+        }
 
-            }
-            reader.close();
-            fr.close();
-        } catch (Exception ex) {
-            logger.error("Error reading kv_store.txt: " + ex.getMessage());
+        if (Objects.nonNull(old)) {
+            segments.get(old.segmentId).addLiveBytes(-old.length);
         }
-        return exists;
+    }
+
+    /**
+     * Seals the active segment (if any), writing its hint file, and
+     * starts a new one.
+     * Assumes the write lock is held.
+     */
+    private void rollSegment() throws IOException {
+        int nextId = 1;
+        if (Objects.nonNull(active)) {
+            writeHints(active, activeHints);
+            active.seal();
+            nextId = active.id + 1;
+        } else if (!segments.isEmpty()) {
+            nextId = segments.lastKey() + 1;
+        }
+
+        active = new Segment(new File(KV_STORE_DIR), nextId);
+        activeHints = new ArrayList<>();
+        segments.put(nextId, active);
+    }
+
+    /**
+     * Reads the record the KeyDir entry points at.
+     * Assumes the read lock is held.
+     */
+    private Record read(KeyDir.Entry entry) throws IOException {
+        Segment segment = segments.get(entry.segmentId);
+        return segment.readRecord(entry.offset, entry.length);
+    }
+
+    /**
+     * Returns true if /key/ has a live record that has not expired.
+     * Assumes the stripe of the key is held.
+     */
+    private boolean exists(String key, long now) {
+        KeyDir.Entry entry = keyDir.get(key);
+        return Objects.nonNull(entry) && !entry.isExpired(now);
     }
 
     /**
      * Returns all key-value pairs that are stored on disk
      * in a List of Pairs.
      *
+     * Segments are read sequentially; a record is only included if
+     * the KeyDir says it is the newest record of its key.
+     *
      * @return
      */
+    @Override
     public List<Pair<String, String>> getAll() {
-        // Create KV Store File if DNE
-        createKVStoreFile();
+        openKVStore();
 
-        Lock read_lock = RW_LOCK.readLock();
+        Lock read_lock = rwLock.readLock();
         read_lock.lock();
 
         List<Pair<String, String>> entries = new ArrayList<>();
-        String value = null;
+        long now = System.currentTimeMillis();
         try {
-            FileReader fr = new FileReader(KV_STORE_FILE);
-            BufferedReader reader = new BufferedReader(fr);
-            String line;
-            String []kvPair;
-            while ((line = reader.readLine()) != null) {
-                // split line into [ key, value ]
-                kvPair = line.split(" ", 2);
-                entries.add(new Pair<>(kvPair[0], kvPair[1]));
+            for (Segment segment : segments.values()) {
+                try (Record.Reader reader = segment.newReader()) {
+                    Record record;
+                    while ((record = reader.next()) != null) {
+                        if (!record.isTombstone() && !record.isExpired(now) && keyDir.isLive(
+                            record.key, segment.id, reader.recordOffset())) {
+                            entries.add(new Pair<>(record.key, record.value));
+                        }
+                    }
+                }
             }
-
         } catch (Exception ex) {
-            logger.error("Error reading kv_store.txt: " + ex.getMessage());
+            logger.error("Error reading " + KV_STORE_DIR + ": " + ex.getMessage());
         } finally {
             read_lock.unlock();
         }
@@ -168,47 +380,111 @@ public class Disk {
     }
 
 
+    /**
+     * Returns all key-value pairs whose key hashes into /range/.
+     *
+     * The log engine is not ordered by hash, so this is a full scan
+     * filtered by hash; LSMDisk answers it with a range scan.
+     */
+    @Override
+    public List<Pair<String, String>> getRange(HashRing.HashRange range) {
+        List<Pair<String, String>> entries = new ArrayList<>();
+        try (KVCursor cursor = cursor(range)) {
+            while (cursor.next()) {
+                entries.add(new Pair<>(cursor.key(), cursor.value()));
+            }
+        } catch (Exception ex) {
+            logger.error("Error reading " + KV_STORE_DIR + ": " + ex.getMessage());
+        }
+        return entries;
+    }
+
+    /**
+     * Cursor over every live key-value pair of the store.
+     * @see #cursor(HashRing.HashRange)
+     */
+    @Override
+    public KVCursor cursor() {
+        return cursor(null);
+    }
+
+    /**
+     * Returns a cursor over the live key-value pairs whose key hashes
+     * into /range/ (all pairs if null), reading one record at a time.
+     *
+     * The cursor reads the segments in id order, including segments
+     * created while it is open, and returns a record if the KeyDir
+     * says it is the newest record of its key at the time it is read.
+     * It does not hold the store lock between calls, so writes go on
+     * while it is open: a key written during the scan may be returned
+     * twice, the newer value last. Records that have expired by the
+     * time they are read are skipped. Compaction is held off until
+     * the cursor is closed.
+     */
+    @Override
+    public KVCursor cursor(HashRing.HashRange range) {
+        openKVStore();
+
+        Lock read_lock = rwLock.readLock();
+        read_lock.lock();
+        try {
+            openCursors.incrementAndGet();
+            return new SegmentCursor(range);
+        } finally {
+            read_lock.unlock();
+        }
+    }
+
     /**
      * Given a key:
-     *  - Returns value of KV pair if key exists in file
+     *  - Returns value of KV pair if key exists on disk
      *  - Returns null if key DNE
      *
-     *  Searches through all of the lines in the KV_STORE_FILE
-     *  until it finds the requested key or reaches EOF.
+     *  Misses are answered from the KeyDir without touching the disk.
+     *  Hits cost one positioned read of the newest record.
      *
      * @param key
      * @return value of KV pair
      */
+    @Override
     public String getKV(String key) {
-        // Create KV Store File if DNE
-        createKVStoreFile();
+        Record record = getRecord(key);
+        return Objects.nonNull(record) ? record.value : null;
+    }
 
-        Lock read_lock = RW_LOCK.readLock();
+    @Override
+    public Pair<String, Long> getWithExpiry(String key) {
+        Record record = getRecord(key);
+        return Objects.nonNull(record) ? new Pair<>(record.value, record.expiresAt) : null;
+    }
+
+    /**
+     * Returns the newest record of /key/, or null if the key DNE or
+     * has expired. Unlike getKV, the caller also learns the expiry
+     * time of the value.
+     */
+    Record getRecord(String key) {
+        openKVStore();
+
+        Lock read_lock = rwLock.readLock();
+        Lock key_lock = keyLocks.get(key).readLock();
         read_lock.lock();
+        key_lock.lock();
 
-        String value = null;
+        Record record = null;
         try {
-            FileReader fr = new FileReader(KV_STORE_FILE);
-            BufferedReader reader = new BufferedReader(fr);
-            String line;
-            String []kvPair;
-            while ((line = reader.readLine()) != null) {
-                // split line into [ key, value ]
-                kvPair = line.split(" ", 2);
-
-                // found a match
-                if (kvPair[0].equals(key)) {
-                    value = kvPair[1];
-                    break;
-                }
+            KeyDir.Entry entry = keyDir.get(key);
+            if (Objects.nonNull(entry) && !entry.isExpired(System.currentTimeMillis())) {
+                record = read(entry);
             }
-
         } catch (Exception ex) {
-            logger.error("Error reading kv_store.txt: " + ex.getMessage());
+            logger.error("Error reading " + KV_STORE_DIR + ": " + ex.getMessage());
+            throw StoreDir.readError(KV_STORE_DIR, ex);
         } finally {
+            key_lock.unlock();
             read_lock.unlock();
         }
-        return value;
+        return record;
     }
 
     /**
@@ -217,71 +493,353 @@ public class Disk {
      *  - Updates existing pair if key exists
      *  - If value param is null, delete the KV pair if exists
      *
+     * Either way a single record is appended to the active segment;
+     * the existing data is never rewritten. The call returns once
+     * the record has been forced to disk.
+     *
+     * Group commit: concurrent callers queue their records, and one
+     * of them (the leader) writes the whole queue with a single
+     * append followed by a single force, then acknowledges everyone
+     * in the batch. The leader waits up to commitWindowNanos for the
+     * batch to fill, or until it holds commitMaxBatchBytes. With the
+     * default window of 0 a batch is whatever queued up while the
+     * previous batch was being forced.
+     *
+     * If the batch cannot be written, every write of the batch fails
+     * with the error of the leader; none of them is acknowledged.
+     *
      * @param key
      * @param value
+     * @return true if /key/ existed in storage before the call
+     * @throws UncheckedIOException if the record cannot be written
      */
+    @Override
     public boolean putKV(String key, String value) {
+        return putKV(key, value, 0);
+    }
+
+    /**
+     * Same as {@link #putKV(String, String)}, but the pair expires at
+     * /expiresAt/ (ms since the epoch), after which it reads as DNE.
+     *
+     * @param expiresAt 0 if the pair never expires; ignored for deletes
+     */
+    @Override
+    public boolean putKV(String key, String value, long expiresAt) {
         logger.info("PUTKV REQUEST FOR: { " + key + ", " + value + " }");
-        // Create KV Store File if DNE
-        createKVStoreFile();
+        openKVStore();
 
-        Lock writeLock = RW_LOCK.writeLock();
-        writeLock.lock();
-        List<String> kvPairs = new ArrayList<String>();
-        boolean exists = false;
+        PendingWrite write = new PendingWrite(
+            new Record(key, value, 0, Objects.nonNull(value) ? expiresAt : 0));
+        List<PendingWrite> batch;
+
+        /* COMMIT QUEUE CRITICAL REGION - START */
+        commitLock.lock();
         try {
-            /*
-             * Determine whether a kv-pair exists.
-             * kvPairs stores a list of all of the kvPairs to
-             * be written to the persistent storage file.
-             *  (1) If pair is to be deleted, the pair will not be
-             *      included in the kvPairs list.
-             *  (2) If pair is to be updated, updated value will be
-             *      reflected in the kvPairs list.
-             */
-            if (value == null) {
-                exists = deleteKV(key, kvPairs);
-                if (exists)
-                    logger.debug("DELETING: { " + key + " }");
-            } else {
-                exists = updateKV(key, value, kvPairs);
-                if (exists)
-                    logger.debug("UPDATING: { " + key + " } -> " + "{ " + key + ", " + value + " }");
+            pending.add(write);
+            pendingBytes += write.size;
+            if (pendingBytes >= commitMaxBatchBytes) {
+                commitCond.signalAll();
+            }
+
+            /* Follower: wait until a leader has committed our write */
+            while (committing && !write.done) {
+                commitCond.awaitUninterruptibly();
+            }
+            if (write.done) {
+                if (Objects.nonNull(write.error)) {
+                    throw StoreDir.writeError(KV_STORE_DIR, write.error);
+                }
+                return write.exists;
+            }
+
+            /* Leader: let the batch fill up, then take all of it */
+            committing = true;
+            long remaining = commitWindowNanos;
+            while (remaining > 0 && pendingBytes < commitMaxBatchBytes) {
+                try {
+                    remaining = commitCond.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            batch = pending;
+            pending = new ArrayList<>();
+            pendingBytes = 0;
+        } finally {
+            commitLock.unlock();
+            /* COMMIT QUEUE CRITICAL REGION - END */
+        }
+
+        Exception error = null;
+        try {
+            commit(batch);
+        } catch (Exception ex) {
+            logger.error("Error writing to " + KV_STORE_DIR + ": " + ex.getMessage());
+            error = ex;
+        }
+
+        /* COMMIT QUEUE CRITICAL REGION - START */
+        commitLock.lock();
+        try {
+            for (PendingWrite w : batch) {
+                w.error = error;
+                w.done = true;
+            }
+            committing = false;
+            commitCond.signalAll();
+        } finally {
+            commitLock.unlock();
+            /* COMMIT QUEUE CRITICAL REGION - END */
+        }
+
+        if (Objects.nonNull(error)) {
+            throw StoreDir.writeError(KV_STORE_DIR, error);
+        }
+        return write.exists;
+    }
+
+    /**
+     * Appends a batch of records to the active segment in one write,
+     * forces the segment to disk, then points the KeyDir at them.
+     * Records are applied in queue order, so the exists flag of each
+     * write sees the writes queued before it.
+     *
+     * A batch is only published once it is durable: a read never
+     * returns a write that a crash could still undo. If the write or
+     * the force fails, the batch is cut off the segment again, so
+     * that it is not replayed on restart either.
+     *
+     * Only the group commit leader appends, so the store itself is
+     * only read locked: reads go on while the batch is written. Only
+     * the stripes of the keys in the batch are write locked, while
+     * the batch is encoded and while the KeyDir is pointed at it.
+     */
+    private void commit(List<PendingWrite> batch) throws IOException {
+        Lock read_lock = rwLock.readLock();
+        read_lock.lock();
+        try {
+            if (active.size() >= segmentMaxBytes) {
+                read_lock.unlock();
+                try {
+                    roll();
+                } finally {
+                    read_lock.lock();
+                }
+            }
+            Segment segment = active;
+
+            List<String> keys = new ArrayList<>(batch.size());
+            for (PendingWrite w : batch) {
+                keys.add(w.record.key);
+            }
+            List<PendingWrite> written;
+            List<Lock> keyLocked = keyLocks.lockAll(keys);
+            try {
+                written = encode(segment, batch);
+            } finally {
+                StripedLock.unlock(keyLocked);
+            }
+            if (written.isEmpty()) {
+                return;
             }
 
             /*
-             * Write all lines to file if exists
-             * If does not exist, just append to the file
+             * Write and force outside the key locks so reads are not
+             * held up by the fsync. The read lock keeps compaction
+             * and clearStorage from closing the segment underneath us.
              */
-            FileWriter fw = null;
-            BufferedWriter  writer = null;
-            if (exists) { // case 1: key already exists - need to overwrite all lines
-                fw = new FileWriter(KV_STORE_FILE);
-                writer = new BufferedWriter(fw);
-                for (String pair : kvPairs) {
-                    writer.write(pair);
-                    writer.newLine();
-                }
-            } else if (value != null) { // case 2: key DNE, just append to end of file
-                logger.debug("INSERTING: { " + key + ", " + value + " }");
+            writeDurably(segment, written);
 
-                fw = new FileWriter(KV_STORE_FILE, true);
-                writer = new BufferedWriter(fw);
-                writer.write(formatKVPair(key, value));
-                writer.newLine();
+            keyLocked = keyLocks.lockAll(keys);
+            try {
+                publish(segment, written);
+            } finally {
+                StripedLock.unlock(keyLocked);
             }
+        } finally {
+            read_lock.unlock();
+        }
+    }
+
+    /**
+     * Appends /written/ (see encode) to /segment/ in one write and
+     * forces it to disk. On failure the writes are cut off again.
+     */
+    private void writeDurably(Segment segment, List<PendingWrite> written) throws IOException {
+        if (Objects.nonNull(failure)) {
+            throw new IOException("Store failed earlier: " + failure.getMessage(), failure);
+        }
+
+        long start = segment.size();
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            for (PendingWrite w : written) {
+                buf.write(w.bytes);
+            }
+            segment.append(buf.toByteArray());
+            segment.force();
+        } catch (IOException ex) {
+            rollback(segment, start, ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Points the KeyDir at /written/, once durable. Assumes the read
+     * lock and the stripes of all keys of /written/ are held, or the
+     * write lock.
+     */
+    private void publish(Segment segment, List<PendingWrite> written) {
+        HintFile.Hint hint;
+        for (PendingWrite w : written) {
+            hint = new HintFile.Hint(w.record, w.offset, w.bytes.length);
+            index(hint, segment);
+            activeHints.add(hint);
+        }
+    }
+
+    /**
+     * Cuts a batch that failed to be written off the end of
+     * /segment/, which was /size/ bytes long before it. If even that
+     * fails, the store takes no more writes.
+     */
+    private void rollback(Segment segment, long size, IOException cause) {
+        try {
+            segment.truncate(size);
+            segment.force();
+        } catch (IOException ex) {
+            logger.error(String.format("%s: unable to cut off a failed write: %s",
+                KV_STORE_DIR, ex.getMessage()));
+            failure = cause;
+        }
+    }
+
+    /**
+     * Bulk load: stores every pair of /entries/ (a null value deletes
+     * its key; later pairs of the same key win) as one batch, sorted
+     * by key, with a single append and a single force.
+     *
+     * The batch is published atomically: the store is write locked
+     * until the whole batch is durable and indexed, so readers see
+     * either none or all of it. Meant for moving whole ranges
+     * between servers, not for client writes.
+     *
+     * @throws UncheckedIOException if the batch cannot be written
+     */
+    @Override
+    public void putAll(List<Pair<String, String>> entries, long[] expiresAt) {
+        openKVStore();
+
+        /* Key -> index of its last pair */
+        TreeMap<String, Integer> sorted = new TreeMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            sorted.put(entries.get(i).getKey(), i);
+        }
+        List<PendingWrite> batch = new ArrayList<>(sorted.size());
+        String value;
+        for (Map.Entry<String, Integer> entry : sorted.entrySet()) {
+            value = entries.get(entry.getValue()).getValue();
+            batch.add(new PendingWrite(new Record(entry.getKey(), value, 0,
+                Objects.nonNull(value) && Objects.nonNull(expiresAt) ? expiresAt[entry.getValue()] : 0)));
+        }
 
-            /* Cleanup - close writers */
-            if (writer != null)
-                writer.close();
-            if (fw != null)
-                fw.close();
+        Lock writeLock = rwLock.writeLock();
+        writeLock.lock();
+        try {
+            if (active.size() >= segmentMaxBytes) {
+                rollSegment();
+            }
+            List<PendingWrite> written = encode(active, batch);
+            if (!written.isEmpty()) {
+                writeDurably(active, written);
+                publish(active, written);
+            }
+            logger.info(String.format("Loaded %d pairs into %s", batch.size(), KV_STORE_DIR));
         } catch (Exception ex) {
-            logger.error("Error writing to kv_store.txt: " + ex.getMessage());
+            logger.error("Error writing to " + KV_STORE_DIR + ": " + ex.getMessage());
+            throw StoreDir.writeError(KV_STORE_DIR, ex);
         } finally {
             writeLock.unlock();
         }
-        return exists;
+    }
+
+    /**
+     * Seals the active segment if it is full.
+     */
+    private void roll() throws IOException {
+        Lock writeLock = rwLock.writeLock();
+        writeLock.lock();
+        try {
+            if (active.size() >= segmentMaxBytes) {
+                rollSegment();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Numbers and encodes the records of the batch that need to be
+     * written, placing them at the end of /segment/. Assumes the read
+     * lock and the stripes of all keys of the batch are held, or the
+     * write lock.
+     *
+     * @return the writes to append, in order; empty if there is
+     *         nothing to write
+     */
+    private List<PendingWrite> encode(Segment segment, List<PendingWrite> batch) {
+        List<PendingWrite> written = new ArrayList<>();
+        /* Existence of keys as of the writes applied so far */
+        Map<String, Boolean> live = new HashMap<>();
+        long next = segment.size();
+        long now = System.currentTimeMillis();
+        Record record;
+        Boolean exists;
+        for (PendingWrite w : batch) {
+            record = w.record;
+            exists = live.get(record.key);
+            w.exists = Objects.nonNull(exists) ? exists : exists(record.key, now);
+
+            /* Nothing to delete, don't bother writing a tombstone */
+            if (record.isTombstone() && !w.exists) {
+                continue;
+            }
+
+            if (record.isTombstone()) {
+                logger.debug("DELETING: { " + record.key + " }");
+            } else if (w.exists) {
+                logger.debug("UPDATING: { " + record.key + " } -> " + "{ " + record.key + ", " + record.value + " }");
+            } else {
+                logger.debug("INSERTING: { " + record.key + ", " + record.value + " }");
+            }
+
+            live.put(record.key, !record.isTombstone() && !record.isExpired(now));
+            w.record = record.withSeq(++seq);
+            w.bytes = w.record.encode();
+            w.offset = next;
+            next += w.bytes.length;
+            written.add(w);
+        }
+        return written;
+    }
+
+    /**
+     * Sets the group commit window of putKV.
+     *
+     * @param windowNanos how long a leader waits for more writes
+     *                    before committing; 0 to not wait
+     * @param maxBatchBytes commit as soon as this many bytes are queued
+     */
+    public void setGroupCommit(long windowNanos, int maxBatchBytes) {
+        commitLock.lock();
+        try {
+            commitWindowNanos = windowNanos;
+            commitMaxBatchBytes = maxBatchBytes;
+        } finally {
+            commitLock.unlock();
+        }
     }
 
     /**
@@ -292,30 +850,94 @@ public class Disk {
      * @param key
      * @return
      */
+    @Override
     public boolean inStorage(String key) {
-        String val = getKV(key);
-        return val != null;
+        openKVStore();
+
+        Lock key_lock = keyLocks.get(key).readLock();
+        key_lock.lock();
+        try {
+            return exists(key, System.currentTimeMillis());
+        } finally {
+            key_lock.unlock();
+        }
     }
 
     /**
-     * Clears all contents of persistent storage
-     * Simply writes an empty string to the file.
+     * Drops every expired key from the KeyDir, turning its record
+     * into garbage for the next compaction. Nothing is written: after
+     * a restart the expired records are indexed again, still read as
+     * DNE, and are dropped again by the next call.
+     * Normally called by the {@link Compactor} thread.
+     *
+     * @return number of keys dropped
      */
+    @Override
+    public int reapExpired() {
+        if (!opened) {
+            return 0;
+        }
+
+        Lock read_lock = rwLock.readLock();
+        read_lock.lock();
+        int reaped = 0;
+        try {
+            long now = System.currentTimeMillis();
+            String key;
+            KeyDir.Entry entry;
+            Lock key_lock;
+            for (Map.Entry<String, KeyDir.Entry> e : keyDir.entrySet()) {
+                if (!e.getValue().isExpired(now)) {
+                    continue;
+                }
+
+                key = e.getKey();
+                key_lock = keyLocks.get(key).writeLock();
+                key_lock.lock();
+                try {
+                    /* The key may have been rewritten in the meantime */
+                    entry = keyDir.get(key);
+                    if (Objects.nonNull(entry) && entry.isExpired(now)) {
+                        keyDir.remove(key);
+                        segments.get(entry.segmentId).addLiveBytes(-entry.length);
+                        reaped++;
+                    }
+                } finally {
+                    key_lock.unlock();
+                }
+            }
+        } finally {
+            read_lock.unlock();
+        }
+
+        if (reaped > 0) {
+            logger.info(String.format("Reaped %d expired keys from %s", reaped, KV_STORE_DIR));
+        }
+        return reaped;
+    }
+
+    /**
+     * Clears all contents of persistent storage.
+     * Removes every segment and starts over with an empty one.
+     */
+    @Override
     public void clearStorage() {
-        // Create KV Store File if DNE
-        createKVStoreFile();
+        openKVStore();
 
-        Lock writeLock = RW_LOCK.writeLock();
+        Lock writeLock = rwLock.writeLock();
         writeLock.lock();
         try {
-            logger.info("Clearing kv_store.txt");
+            logger.info("Clearing " + KV_STORE_DIR);
 
-            FileWriter fw = new FileWriter(KV_STORE_FILE);
-            BufferedWriter writer = new BufferedWriter(fw);
-            writer.write("");
-
-            writer.close();
-            fw.close();
+            for (Segment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            keyDir.clear();
+            active = null;
+            generation++;
+            failure = null;
+            rollSegment();
         } catch (Exception ex) {
             logger.error("Error clearing storage: " + ex.getMessage());
         } finally {
@@ -323,9 +945,341 @@ public class Disk {
         }
     }
 
+    /**
+     * Fraction of the bytes in sealed segments that is garbage, i.e.
+     * overwritten records and tombstones. The active segment is not
+     * counted since it cannot be compacted yet.
+     */
+    public double garbageRatio() {
+        if (!opened) {
+            return 0.0;
+        }
+
+        Lock read_lock = rwLock.readLock();
+        read_lock.lock();
+        try {
+            long total = 0, live = 0;
+            for (Segment segment : segments.values()) {
+                if (segment.isSealed()) {
+                    total += segment.size();
+                    live += segment.liveBytes();
+                }
+            }
+            return total == 0 ? 0.0 : (double) (total - live) / total;
+        } finally {
+            read_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the Compactor should compact this store.
+     */
+    @Override
+    public boolean needsCompaction(double minGarbageRatio) {
+        return garbageRatio() >= minGarbageRatio;
+    }
+
+    /**
+     * Compacts the store immediately, without throttling.
+     *
+     * @return true if segments were merged
+     */
+    public boolean compact() {
+        return compact(null);
+    }
+
+    /**
+     * Merges all sealed segments into a single segment holding only
+     * their live records. Overwritten records, tombstones and expired
+     * records are dropped.
+     *
+     * The merge itself runs without holding the store lock: sealed
+     * segments are immutable, and the KeyDir can be consulted
+     * concurrently. Only the swap at the end takes the write lock,
+     * and only for as long as it takes to rename a file and repoint
+     * the KeyDir.
+     *
+     * The merged segment takes the id of the oldest merged segment
+     * and replaces it with an atomic rename; the remaining merged
+     * segments are deleted afterwards. If the process dies between
+     * the two steps, replaying the merged segment followed by the
+     * leftover segments still yields the same state, since every
+     * leftover record is newer than the merged one it overrides.
+     *
+     * @param throttle rate limits the merge; null to run flat out
+     * @return true if segments were merged
+     */
+    @Override
+    public boolean compact(Compactor throttle) {
+        openKVStore();
+
+        if (!compactLock.tryLock()) {
+            return false;
+        }
+
+        File tmp = null;
+        try {
+            /* (1) Pick the segments to merge: every sealed segment */
+            List<Segment> toMerge = new ArrayList<>();
+            long startGeneration;
+            long garbage = 0;
+            Lock read_lock = rwLock.readLock();
+            read_lock.lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    if (segment.isSealed()) {
+                        toMerge.add(segment);
+                        garbage += segment.size() - segment.liveBytes();
+                    }
+                }
+                startGeneration = generation;
+            } finally {
+                read_lock.unlock();
+            }
+
+            /* A single segment without garbage is already compact */
+            if (toMerge.isEmpty() || (toMerge.size() == 1 && garbage == 0)
+                || openCursors.get() > 0) {
+                return false;
+            }
+
+            /* (2) Copy live records into a new file, outside the lock */
+            Segment first = toMerge.get(0);
+            tmp = new File(KV_STORE_DIR, Segment.fileName(first.id) + Segment.COMPACT_SUFFIX);
+            List<Moved> moved = new ArrayList<>();
+            /* Live but expired; their KeyDir entries go with the segments */
+            List<Moved> expired = new ArrayList<>();
+            long copied = 0;
+            long now = System.currentTimeMillis();
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                 BufferedOutputStream out = new BufferedOutputStream(fos)) {
+                for (Segment segment : toMerge) {
+                    try (Record.Reader reader = segment.newReader()) {
+                        Record record;
+                        while ((record = reader.next()) != null) {
+                            if (record.isTombstone() || !keyDir.isLive(
+                                record.key, segment.id, reader.recordOffset())) {
+                                continue;
+                            }
+                            if (record.isExpired(now)) {
+                                expired.add(new Moved(record, segment.id,
+                                    reader.recordOffset(), -1, 0));
+                                continue;
+                            }
+
+                            byte[] bytes = record.encode();
+                            out.write(bytes);
+                            moved.add(new Moved(record, segment.id,
+                                reader.recordOffset(), copied, bytes.length));
+                            copied += bytes.length;
+
+                            if (Objects.nonNull(throttle)) {
+                                throttle.throttle(bytes.length);
+                            }
+                        }
+                    }
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            List<HintFile.Hint> hints = new ArrayList<>();
+            for (Moved m : moved) {
+                hints.add(m.hint);
+            }
+
+            /* (3) Swap the merged segment in */
+            Lock writeLock = rwLock.writeLock();
+            writeLock.lock();
+            try {
+                if (generation != startGeneration) {
+                    logger.info("Storage cleared during compaction, discarding");
+                    return false;
+                }
+                if (openCursors.get() > 0) {
+                    logger.info("Cursor opened during compaction, discarding");
+                    return false;
+                }
+
+                File dir = new File(KV_STORE_DIR);
+                for (Segment segment : toMerge) {
+                    segment.close();
+                }
+                /* The old hints must never describe the merged segment */
+                first.hintFile.delete();
+                Files.move(tmp.toPath(), first.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+                tmp = null;
+
+                Segment merged = new Segment(dir, first.id);
+                writeHints(merged, hints);
+                merged.seal();
+                segments.put(merged.id, merged);
+                for (Moved m : moved) {
+                    if (keyDir.isLive(m.hint.key, m.segmentId, m.oldOffset)) {
+                        keyDir.put(m.hint.key, new KeyDir.Entry(
+                            merged.id, m.hint.offset, m.hint.length, m.hint.expiresAt));
+                        merged.addLiveBytes(m.hint.length);
+                    }
+                }
+                for (Moved m : expired) {
+                    if (keyDir.isLive(m.hint.key, m.segmentId, m.oldOffset)) {
+                        keyDir.remove(m.hint.key);
+                    }
+                }
+
+                for (Segment segment : toMerge.subList(1, toMerge.size())) {
+                    segments.remove(segment.id);
+                    segment.delete();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+
+            logger.info(String.format("Compacted %s: %d segments -> %d bytes",
+                KV_STORE_DIR, toMerge.size(), copied));
+            return true;
+        } catch (Exception ex) {
+            logger.error("Error compacting " + KV_STORE_DIR + ": " + ex.getMessage());
+            return false;
+        } finally {
+            if (Objects.nonNull(tmp)) {
+                tmp.delete();
+            }
+            compactLock.unlock();
+        }
+    }
+
+    /**
+     * See {@link #cursor(HashRing.HashRange)}
+     */
+    private class SegmentCursor implements KVCursor {
+        private HashRing.HashRange range;
+        private int segmentId;
+        private Record.Reader reader;
+        private Record record;
+        private boolean closed;
+
+        SegmentCursor(HashRing.HashRange range) {
+            this.range = range;
+            this.segmentId = -1;
+            this.closed = false;
+        }
+
+        /**
+         * Opens the segment after the current one, if any.
+         */
+        private boolean nextSegment() throws IOException {
+            Lock read_lock = rwLock.readLock();
+            read_lock.lock();
+            try {
+                Map.Entry<Integer, Segment> next = segments.higherEntry(segmentId);
+                if (Objects.isNull(next)) {
+                    return false;
+                }
+                segmentId = next.getKey();
+                reader = next.getValue().newReader();
+                return true;
+            } finally {
+                read_lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (!closed) {
+                if (Objects.isNull(reader) && !nextSegment()) {
+                    break;
+                }
+
+                record = reader.next();
+                if (Objects.isNull(record)) {
+                    reader.close();
+                    reader = null;
+                    continue;
+                }
+                if (!record.isTombstone()
+                    && !record.isExpired(System.currentTimeMillis())
+                    && keyDir.isLive(record.key, segmentId, reader.recordOffset())
+                    && (Objects.isNull(range) || range.inRange(new HashRing.Hash(record.key)))) {
+                    return true;
+                }
+            }
+            record = null;
+            return false;
+        }
+
+        @Override
+        public String key() {
+            return record.key;
+        }
+
+        @Override
+        public String value() {
+            return record.value;
+        }
+
+        @Override
+        public long expiresAt() {
+            return record.expiresAt;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            openCursors.decrementAndGet();
+            if (Objects.nonNull(reader)) {
+                reader.close();
+                reader = null;
+            }
+        }
+    }
+
+    /**
+     * A putKV call waiting in the group commit queue. /exists/ is
+     * set by the leader when the record is applied.
+     */
+    private static class PendingWrite {
+        Record record;
+        /* Encoded by the leader, once the sequence number is known */
+        byte[] bytes;
+        final int size;
+        long offset;
+        boolean exists;
+        boolean done;
+        /* Why the batch of the write failed, once done */
+        Exception error;
+
+        PendingWrite(Record record) {
+            this.record = record;
+            this.size = record.key.length()
+                + (record.isTombstone() ? 0 : record.value.length());
+        }
+    }
+
+    /**
+     * A live record copied by compaction from {segmentId, oldOffset}
+     * to the merged segment, where /hint/ locates it. Expired records
+     * are not copied and have no new location.
+     */
+    private static class Moved {
+        final HintFile.Hint hint;
+        final int segmentId;
+        final long oldOffset;
+
+        Moved(Record record, int segmentId, long oldOffset, long newOffset, int length) {
+            this.hint = new HintFile.Hint(record, newOffset, length);
+            this.segmentId = segmentId;
+            this.oldOffset = oldOffset;
+        }
+    }
+
     /* For debugging */
     public static void main(String[] args) {
-        Disk disk = new Disk("test.txt");
+        Disk disk = new Disk("test_kv_store");
         disk.putKV("key", "value");
         System.out.println(disk.getKV("key"));
         disk.putKV("key", "value_2");
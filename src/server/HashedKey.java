@@ -0,0 +1,58 @@
+package server;
+
+import ecs.HashRing;
+
+/**
+ * Sort key of the LSM storage engine. Keys are ordered by their
+ * position on the hash ring first, and by the key itself to break
+ * ties between colliding hashes, so the keys of one
+ * HashRing.HashRange are stored contiguously.
+ */
+class HashedKey implements Comparable<HashedKey> {
+    private static final int MD5_BYTES = 16;
+    private static final byte[] MAX_MD5_HASH_BYTES = {
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF
+    };
+
+    /* Sorts before every key on the ring */
+    static final HashedKey MIN = new HashedKey(new HashRing.Hash(new byte[MD5_BYTES]), "");
+    static final HashRing.Hash MAX_HASH = new HashRing.Hash(MAX_MD5_HASH_BYTES);
+
+    final HashRing.Hash hash;
+    final String key;
+
+    HashedKey(String key) {
+        this(new HashRing.Hash(key), key);
+    }
+
+    HashedKey(HashRing.Hash hash, String key) {
+        this.hash = hash;
+        this.key = key;
+    }
+
+    /**
+     * Smallest possible sort key with the given hash.
+     */
+    static HashedKey first(HashRing.Hash hash) {
+        return new HashedKey(hash, "");
+    }
+
+    @Override
+    public int compareTo(HashedKey o) {
+        int cmp = hash.compareTo(o.hash);
+        return cmp != 0 ? cmp : key.compareTo(o.key);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof HashedKey && compareTo((HashedKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+}
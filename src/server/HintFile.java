@@ -0,0 +1,186 @@
+package server;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Hint file of a sealed segment (as in Bitcask). Lists, in write
+ * order, where every record of the segment is and what it is, but
+ * not its value:
+ *      <name>/segment_000001.hint
+ *
+ * Opening the store indexes a segment from its hint file instead of
+ * reading every record of the segment. A hint file is a few percent
+ * of the size of its segment, since values are left out.
+ *
+ * Format:
+ *      byte    version (VERSION)
+ *      varint  size of the segment the hints describe
+ *      per record:
+ *          byte    flags (FLAG_TOMBSTONE, FLAG_EXPIRES)
+ *          varint  sequence number
+ *          varint  expiresAt, only if FLAG_EXPIRES is set
+ *          varint  offset in segment
+ *          varint  record length
+ *          varint  key length in bytes
+ *          bytes   key (UTF-8)
+ *      int     CRC32 of all of the above
+ *
+ * A hint file that is missing, corrupt, or describes a segment of a
+ * different size is ignored and the segment is replayed instead.
+ */
+class HintFile {
+    static final String SUFFIX = ".hint";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final byte VERSION = 1;
+    private static final byte FLAG_TOMBSTONE = 0x01;
+    private static final byte FLAG_EXPIRES = 0x02;
+
+    /**
+     * Location and identity of one record of a segment
+     */
+    static class Hint {
+        final String key;
+        final boolean tombstone;
+        final long seq;
+        final long expiresAt;
+        final long offset;
+        final int length;
+
+        Hint(String key, boolean tombstone, long seq, long expiresAt, long offset, int length) {
+            this.key = key;
+            this.tombstone = tombstone;
+            this.seq = seq;
+            this.expiresAt = expiresAt;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        Hint(Record record, long offset, int length) {
+            this(record.key, record.isTombstone(), record.seq, record.expiresAt, offset, length);
+        }
+    }
+
+    static boolean isTemporary(String fileName) {
+        return fileName.endsWith(SUFFIX + TMP_SUFFIX);
+    }
+
+    /**
+     * Writes the hints of a segment of /segmentSize/ bytes. The file
+     * is written under a temporary name, forced, and renamed into
+     * place, so a hint file is either complete or absent.
+     */
+    static void write(File file, long segmentSize, List<Hint> hints) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(hints.size() * 32 + 16);
+        buf.write(VERSION);
+        writeVarint(buf, segmentSize);
+        byte[] key;
+        for (Hint hint : hints) {
+            key = hint.key.getBytes(StandardCharsets.UTF_8);
+            buf.write((hint.tombstone ? FLAG_TOMBSTONE : 0)
+                | (hint.expiresAt != 0 ? FLAG_EXPIRES : 0));
+            writeVarint(buf, hint.seq);
+            if (hint.expiresAt != 0) {
+                writeVarint(buf, hint.expiresAt);
+            }
+            writeVarint(buf, hint.offset);
+            writeVarint(buf, hint.length);
+            writeVarint(buf, key.length);
+            buf.write(key, 0, key.length);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buf.toByteArray(), 0, buf.size());
+        int checksum = (int) crc.getValue();
+
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            buf.writeTo(out);
+            out.writeInt(checksum);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the hints of a segment of /segmentSize/ bytes.
+     *
+     * @return the hints in write order, or null if there is no
+     *         usable hint file
+     */
+    static List<Hint> read(File file, long segmentSize) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            if (bytes.length < 4) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 4);
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            if ((int) crc.getValue() != in.getInt(bytes.length - 4)) {
+                return null;
+            }
+            in.limit(bytes.length - 4);
+
+            if (in.get() != VERSION || readVarint(in) != segmentSize) {
+                return null;
+            }
+
+            List<Hint> hints = new ArrayList<>();
+            byte flags;
+            long seq, expiresAt, offset;
+            int length, keyLength;
+            while (in.hasRemaining()) {
+                flags = in.get();
+                seq = readVarint(in);
+                expiresAt = (flags & FLAG_EXPIRES) != 0 ? readVarint(in) : 0;
+                offset = readVarint(in);
+                length = (int) readVarint(in);
+                keyLength = (int) readVarint(in);
+                hints.add(new Hint(
+                    new String(bytes, in.position(), keyLength, StandardCharsets.UTF_8),
+                    (flags & FLAG_TOMBSTONE) != 0, seq, expiresAt, offset, length));
+                in.position(in.position() + keyLength);
+            }
+            return hints;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarint(ByteBuffer buf) throws IOException {
+        long v = 0;
+        int b;
+        for (int shift = 0; shift < 64; shift += 7) {
+            b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -8,7 +8,14 @@ public interface IServer {
         None,
         LRU,
         LFU,
-        FIFO
+        FIFO,
+        WTinyLFU,
+        ARC
+    };
+
+    public enum StorageEngineType {
+        LOG,
+        LSM
     };
 
     /**
@@ -51,7 +58,7 @@ public interface IServer {
 
     /**
      * Get the value associated with the key
-     * @return  value associated with key
+     * @return  value associated with key; null if the key is not found
      * @throws Exception
      *      when key not in the key range of the server
      */
@@ -133,4 +140,39 @@ public interface IServer {
     public void update(ServerMetadata metadata);
 
     public void initKVServer(ServerMetadata metadata, int cacheSize, String cacheStrategy);
+
+    /**
+     * Same as initKVServer(metadata, cacheSize, cacheStrategy), and
+     * selects the storage engine of the server.
+     *
+     * @param storageEngine one of StorageEngineType; null to keep
+     *                      the engine the server was started with
+     */
+    public void initKVServer(ServerMetadata metadata, int cacheSize, String cacheStrategy,
+                             String storageEngine);
+
+    /**
+     * Same as initKVServer(metadata, cacheSize, cacheStrategy,
+     * storageEngine), and also bounds the cache in bytes.
+     *
+     * @param cacheMaxBytes capacity of the cache in bytes, 0 for no
+     *                      limit besides cacheSize; null to keep the
+     *                      current limit
+     */
+    public void initKVServer(ServerMetadata metadata, int cacheSize, String cacheStrategy,
+                             String storageEngine, Long cacheMaxBytes);
+
+    /**
+     * Same as initKVServer(metadata, cacheSize, cacheStrategy,
+     * storageEngine, cacheMaxBytes), and also selects the write mode
+     * of the cache.
+     *
+     * @param cacheWriteBack true to acknowledge puts once cached and
+     *                       write them to disk in the background,
+     *                       false to write them through; null to
+     *                       keep the current mode
+     */
+    public void initKVServer(ServerMetadata metadata, int cacheSize, String cacheStrategy,
+                             String storageEngine, Long cacheMaxBytes,
+                             Boolean cacheWriteBack);
 }
@@ -0,0 +1,34 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streams the live key-value pairs of a store, one at a time, without
+ * loading them all into memory. Pairs that have expired are skipped.
+ * Obtained from
+ * {@link StorageEngine#cursor(ecs.HashRing.HashRange)}; must be closed.
+ *
+ *      try (KVCursor cursor = disk.cursor(range)) {
+ *          while (cursor.next()) {
+ *              cursor.key(); cursor.value(); cursor.expiresAt();
+ *          }
+ *      }
+ */
+public interface KVCursor extends Closeable {
+    /**
+     * Advances to the next pair.
+     * @return false once the cursor is exhausted
+     */
+    boolean next() throws IOException;
+
+    String key();
+
+    String value();
+
+    /**
+     * @return expiry of the pair (ms since the epoch), 0 if it never
+     *         expires
+     */
+    long expiresAt();
+}
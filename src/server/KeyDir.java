@@ -0,0 +1,90 @@
+package server;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the log-structured store (a Bitcask "keydir").
+ * Maps every live key to the location of its newest record:
+ *      key -> { segment id, offset in segment, record length, expiry }
+ *
+ * With the keydir a point read is a single positioned read from a
+ * segment, and an existence check never touches the disk. The keydir
+ * is rebuilt from the segments when the store is opened and is kept
+ * current on every write.
+ */
+class KeyDir {
+    static class Entry {
+        final int segmentId;
+        final long offset;
+        final int length;
+        /* 0 if the record never expires */
+        final long expiresAt;
+
+        Entry(int segmentId, long offset, int length, long expiresAt) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+
+        boolean isAt(int segmentId, long offset) {
+            return this.segmentId == segmentId && this.offset == offset;
+        }
+    }
+
+    private Map<String, Entry> entries;
+
+    KeyDir() {
+        entries = new ConcurrentHashMap<>();
+    }
+
+    Entry get(String key) {
+        return entries.get(key);
+    }
+
+    boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @return the entry previously mapped to /key/, or null
+     */
+    Entry put(String key, Entry entry) {
+        return entries.put(key, entry);
+    }
+
+    /**
+     * @return the entry previously mapped to /key/, or null
+     */
+    Entry remove(String key) {
+        return entries.remove(key);
+    }
+
+    /**
+     * Returns true if the record at {segmentId, offset} is the
+     * newest record of /key/, i.e. it is not stale.
+     */
+    boolean isLive(String key, int segmentId, long offset) {
+        Entry entry = entries.get(key);
+        return Objects.nonNull(entry) && entry.isAt(segmentId, offset);
+    }
+
+    Set<Map.Entry<String, Entry>> entrySet() {
+        return entries.entrySet();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,1147 @@
+package server;
+
+import ecs.HashRing;
+import org.apache.log4j.Logger;
+import shared.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LSM-tree persistent storage, ordered by the position of the keys
+ * on the hash ring (see HashedKey). The store is a directory of:
+ *      <name>/segment_000001.log   write-ahead log of the memtable
+ *      <name>/L0_000007.sst        flushed memtables (may overlap)
+ *      <name>/L0_000007.bloom      Bloom filter of L0_000007.sst
+ *      <name>/L0_000007.index      block index of L0_000007.sst
+ *      <name>/L1_000004.sst        sorted runs, non-overlapping
+ *      ...
+ *
+ * Writes go to the write-ahead log and to the memtable, an in-memory
+ * skip list. Concurrent writes share one force of the log (group
+ * commit). Once the memtable holds MEMTABLE_MAX_BYTES it is frozen,
+ * and the FLUSHER thread writes it into a new level 0 SSTable and
+ * deletes its log. Writers only wait for a flush if the next
+ * memtable fills up STALL_FACTOR times over before it is done.
+ *
+ * Leveled compaction (driven by the Compactor) merges all level 0
+ * tables into level 1 once there are L0_COMPACTION_TRIGGER of them,
+ * and pushes a table of level N into level N+1 once level N holds
+ * more than LEVEL_BASE_BYTES * LEVEL_MULTIPLIER^(N-1). Tables within
+ * a level >= 1 never overlap.
+ *
+ * Since every table is sorted by hash, the keys of a HashRange are
+ * extracted with a sequential scan of each table starting at the
+ * lower bound, instead of hashing and filtering the whole store.
+ *
+ * Lookups check the memtable, the frozen memtable, then the tables
+ * from newest to oldest (level 0 first, newest id first within a
+ * level); the first record found wins. Each table is guarded by a
+ * Bloom filter, so a miss (including the existence check of every
+ * fresh put) is answered from memory.
+ *
+ * An expired record reads like a tombstone. Like a tombstone it is
+ * only dropped once it is compacted into the bottom level, since
+ * until then it hides the older records of its key below it.
+ *
+ * This is the LSM storage engine (see StorageEngine).
+ */
+public class LSMDisk implements StorageEngine {
+    public static final long MEMTABLE_MAX_BYTES = 4 * 1024 * 1024; // 4 MB
+    private static final int L0_COMPACTION_TRIGGER = 4;
+    private static final long LEVEL_BASE_BYTES = 10 * 1024 * 1024; // 10 MB
+    private static final int LEVEL_MULTIPLIER = 10;
+    private static final long TABLE_TARGET_BYTES = 2 * 1024 * 1024; // 2 MB
+    public static final double BLOOM_FP_RATE = 0.01;
+    /* Writers stall once the memtable is this many times full while the last one is flushed */
+    private static final int STALL_FACTOR = 2;
+    private static final long STALL_WAIT_MS = 100;
+    private static Logger logger = Logger.getLogger(LSMDisk.class);
+
+    /* Flushes the frozen memtables of every LSM store of the process */
+    private static final ExecutorService FLUSHER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "LSM flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* Newest first: level ascending, then id descending */
+    private static final Comparator<SSTable> NEWEST_FIRST = (a, b) ->
+        a.level != b.level ? Integer.compare(a.level, b.level) : Integer.compare(b.id, a.id);
+
+    private File dir;
+    private long memtableMaxBytes;
+    private volatile double bloomFpRate;
+    private volatile boolean opened;
+
+    /* Guards the memtable swap and the set of tables */
+    private ReadWriteLock rwLock;
+    /* Orders log appends with memtable inserts */
+    private Lock writeLock;
+    private Lock flushLock;
+    private Lock compactLock;
+    /* A flush is queued on FLUSHER */
+    private AtomicBoolean flushScheduled;
+    /* Notified after every flush */
+    private final Object flushed = new Object();
+
+    /* Group commit queue of putKV, see Disk */
+    private Lock commitLock;
+    private Condition commitCond;
+    private List<PendingWrite> pending;
+    private boolean committing;
+    /* Bumped by clearStorage; in-flight flushes/compactions are discarded */
+    private long generation;
+    /* Sequence number of the last record written */
+    private long seq;
+    /*
+     * Set if a batch that failed could not be cut off its log; it may
+     * come back on restart, so no more writes are taken
+     */
+    private volatile IOException failure;
+
+    private volatile MemTable memtable;
+    private volatile MemTable flushing;
+    /* Logs holding the records of memtable; the last one is appended to */
+    private List<Segment> memtableLogs;
+    private List<Segment> flushingLogs;
+    private int nextLogId;
+    private List<SSTable> tables;
+    private AtomicInteger nextTableId;
+
+    public LSMDisk(String name) {
+        this(name, MEMTABLE_MAX_BYTES);
+    }
+
+    /**
+     * @param name directory to store disk data in
+     * @param memtableMaxBytes size at which the memtable is flushed
+     */
+    public LSMDisk(String name, long memtableMaxBytes) {
+        this.dir = new File(name);
+        this.memtableMaxBytes = memtableMaxBytes;
+        this.bloomFpRate = BLOOM_FP_RATE;
+        this.opened = false;
+        this.rwLock = new ReentrantReadWriteLock();
+        this.writeLock = new ReentrantLock();
+        this.flushLock = new ReentrantLock();
+        this.compactLock = new ReentrantLock();
+        this.flushScheduled = new AtomicBoolean(false);
+        this.commitLock = new ReentrantLock();
+        this.commitCond = commitLock.newCondition();
+        this.pending = new ArrayList<>();
+        this.committing = false;
+        this.generation = 0;
+        this.tables = new ArrayList<>();
+        this.nextTableId = new AtomicInteger(1);
+    }
+
+    @Override
+    public String getName() {
+        return dir.getPath();
+    }
+
+    @Override
+    public IServer.StorageEngineType getType() {
+        return IServer.StorageEngineType.LSM;
+    }
+
+    /**
+     * Creates the store directory if DNE, opens all tables, and
+     * replays the write-ahead logs into the memtable.
+     *
+     * @throws IllegalStateException if the directory holds data of
+     *         another engine
+     */
+    private void openKVStore() {
+        if (opened) {
+            return;
+        }
+
+        Lock lock = rwLock.writeLock();
+        lock.lock();
+        try {
+            if (opened) {
+                return;
+            }
+
+            StoreDir.claim(dir, getType());
+
+            TreeSet<Integer> logIds = new TreeSet<>();
+            /* Bloom filters and index files of the tables */
+            Set<String> sidecars = new HashSet<>();
+            int id, maxTableId = 0;
+            int[] table;
+            for (File file : Objects.requireNonNull(dir.listFiles())) {
+                if ((id = Segment.parseId(file.getName())) >= 0) {
+                    logIds.add(id);
+                } else if (Objects.nonNull(table = SSTable.parseName(file.getName()))) {
+                    tables.add(SSTable.open(dir, table[0], table[1], bloomFpRate));
+                    sidecars.add(SSTable.bloomFileName(table[0], table[1]));
+                    sidecars.add(SSTable.indexFileName(table[0], table[1]));
+                    maxTableId = Math.max(maxTableId, table[1]);
+                    seq = Math.max(seq, tables.get(tables.size() - 1).maxSeq());
+                }
+            }
+            for (File file : Objects.requireNonNull(dir.listFiles())) {
+                if (file.getName().endsWith(SSTable.TMP_SUFFIX)
+                    || ((file.getName().endsWith(BloomFilter.SUFFIX)
+                        || file.getName().endsWith(SSTable.INDEX_SUFFIX))
+                        && !sidecars.contains(file.getName()))) {
+                    /* Leftover of a flush or compaction that never finished */
+                    file.delete();
+                }
+            }
+            tables.sort(NEWEST_FIRST);
+            nextTableId.set(maxTableId + 1);
+
+            memtable = new MemTable();
+            memtableLogs = new ArrayList<>();
+            flushingLogs = new ArrayList<>();
+            for (int logId : logIds) {
+                Segment log = new Segment(dir, logId);
+                StoreDir.replay(log, logId == logIds.last(), (record, offset, length) -> {
+                    memtable.put(new HashedKey(record.key), record, length);
+                    seq = Math.max(seq, record.seq);
+                });
+                log.seal();
+                memtableLogs.add(log);
+            }
+            nextLogId = logIds.isEmpty() ? 1 : logIds.last() + 1;
+            memtableLogs.add(new Segment(dir, nextLogId++));
+            opened = true;
+
+            logger.info(String.format("Opened %s: %d tables, %d logs",
+                dir, tables.size(), memtableLogs.size()));
+        } catch (IllegalStateException ex) {
+            logger.error("Cannot open persistent storage: " + ex.getMessage());
+            throw ex;
+        } catch (Exception ex) {
+            logger.error("Cannot open persistent storage: " + ex.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the false positive rate of the Bloom filters of tables
+     * written from now on. Lower rates cost more memory: ~9.6 bits
+     * per key at 1%, ~14.4 bits per key at 0.1%.
+     */
+    public void setBloomFalsePositiveRate(double fpRate) {
+        if (fpRate <= 0 || fpRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be in (0, 1)");
+        }
+        bloomFpRate = fpRate;
+    }
+
+    /**
+     * Newest record of /key/, possibly a tombstone, or null if the
+     * store has never seen /key/.
+     */
+    private Record lookup(HashedKey key) throws IOException {
+        Lock lock = rwLock.readLock();
+        lock.lock();
+        try {
+            Record record;
+            if (Objects.nonNull(record = memtable.get(key))) {
+                return record;
+            }
+            if (Objects.nonNull(flushing) && Objects.nonNull(record = flushing.get(key))) {
+                return record;
+            }
+            for (SSTable table : tables) {
+                if (Objects.nonNull(record = table.get(key))) {
+                    return record;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getKV(String key) {
+        Record record = getRecord(key);
+        return Objects.isNull(record) ? null : record.value;
+    }
+
+    @Override
+    public Pair<String, Long> getWithExpiry(String key) {
+        Record record = getRecord(key);
+        return Objects.isNull(record) ? null : new Pair<>(record.value, record.expiresAt);
+    }
+
+    /**
+     * @return newest record of /key/, or null if the key DNE or has
+     *         expired
+     */
+    private Record getRecord(String key) {
+        openKVStore();
+
+        try {
+            Record record = lookup(new HashedKey(key));
+            if (Objects.isNull(record) || record.isTombstone()
+                || record.isExpired(System.currentTimeMillis())) {
+                return null;
+            }
+            return record;
+        } catch (Exception ex) {
+            logger.error("Error reading " + dir + ": " + ex.getMessage());
+            throw StoreDir.readError(dir.toString(), ex);
+        }
+    }
+
+    @Override
+    public boolean inStorage(String key) {
+        return Objects.nonNull(getKV(key));
+    }
+
+    /**
+     * Appends the record to the write-ahead log, forces it, then
+     * inserts it into the memtable. Once the memtable is full it is
+     * frozen and handed to the flusher thread.
+     *
+     * Group commit, as in Disk: concurrent callers queue their
+     * records, and one of them (the leader) appends the whole queue
+     * with a single write and a single force, then acknowledges
+     * everyone in the batch. If the batch cannot be written, every
+     * write of the batch fails with the error of the leader, and the
+     * batch is cut off the log (see writeDurably).
+     *
+     * @return true if /key/ existed in storage before the call
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    @Override
+    public boolean putKV(String key, String value, long expiresAt) {
+        logger.info("PUTKV REQUEST FOR: { " + key + ", " + value + " }");
+        openKVStore();
+
+        PendingWrite write = new PendingWrite(
+            new Record(key, value, 0, Objects.nonNull(value) ? expiresAt : 0));
+        List<PendingWrite> batch;
+
+        /* COMMIT QUEUE CRITICAL REGION - START */
+        commitLock.lock();
+        try {
+            pending.add(write);
+
+            /* Follower: wait until a leader has committed our write */
+            while (committing && !write.done) {
+                commitCond.awaitUninterruptibly();
+            }
+            if (write.done) {
+                if (Objects.nonNull(write.error)) {
+                    throw StoreDir.writeError(dir.getPath(), write.error);
+                }
+                return write.exists;
+            }
+
+            /* Leader: take everything queued while the last batch was forced */
+            committing = true;
+            batch = pending;
+            pending = new ArrayList<>();
+        } finally {
+            commitLock.unlock();
+            /* COMMIT QUEUE CRITICAL REGION - END */
+        }
+
+        Exception error = null;
+        try {
+            awaitRoom();
+            commit(batch);
+        } catch (Exception ex) {
+            logger.error("Error writing to " + dir + ": " + ex.getMessage());
+            error = ex;
+        }
+
+        /* COMMIT QUEUE CRITICAL REGION - START */
+        commitLock.lock();
+        try {
+            for (PendingWrite w : batch) {
+                w.error = error;
+                w.done = true;
+            }
+            committing = false;
+            commitCond.signalAll();
+        } finally {
+            commitLock.unlock();
+            /* COMMIT QUEUE CRITICAL REGION - END */
+        }
+
+        if (Objects.nonNull(flushing)) {
+            scheduleFlush();
+        }
+        if (Objects.nonNull(error)) {
+            throw StoreDir.writeError(dir.getPath(), error);
+        }
+        return write.exists;
+    }
+
+    /**
+     * Appends a batch of records to the write-ahead log in one write,
+     * forces it, then inserts the records into the memtable. Records
+     * are applied in queue order, so the exists flag of each write
+     * sees the writes queued before it. Freezes the memtable once it
+     * is full.
+     */
+    private void commit(List<PendingWrite> batch) throws IOException {
+        writeLock.lock();
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            List<PendingWrite> written = new ArrayList<>(batch.size());
+            /* Existence of keys as of the writes applied so far */
+            Map<String, Boolean> live = new HashMap<>();
+            long now = System.currentTimeMillis();
+            Boolean exists;
+            Record old;
+            for (PendingWrite w : batch) {
+                exists = live.get(w.record.key);
+                if (Objects.isNull(exists)) {
+                    old = lookup(w.hashedKey);
+                    exists = Objects.nonNull(old) && !old.isTombstone() && !old.isExpired(now);
+                }
+                w.exists = exists;
+                live.put(w.record.key, !w.record.isTombstone());
+
+                /* Nothing to delete, don't bother writing a tombstone */
+                if (w.record.isTombstone() && !exists) {
+                    continue;
+                }
+                w.record = w.record.withSeq(++seq);
+                w.bytes = w.record.encode();
+                buf.write(w.bytes);
+                written.add(w);
+            }
+            if (written.isEmpty()) {
+                return;
+            }
+
+            writeDurably(memtableLogs.get(memtableLogs.size() - 1), buf.toByteArray());
+            for (PendingWrite w : written) {
+                memtable.put(w.hashedKey, w.record, w.bytes.length);
+            }
+
+            if (memtable.bytes() >= memtableMaxBytes && Objects.isNull(flushing)) {
+                freezeMemTable();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Bulk load: appends the whole batch, sorted by hash, to the
+     * write-ahead log in one write and one force, then inserts it
+     * into the memtable while lookups are held off, so that readers
+     * see either none or all of it. A null value deletes its key;
+     * later pairs of the same key win.
+     *
+     * @throws UncheckedIOException if the batch cannot be written
+     */
+    @Override
+    public void putAll(List<Pair<String, String>> entries, long[] expiresAt) {
+        openKVStore();
+        awaitRoom();
+
+        /* Key -> index of its last pair */
+        TreeMap<HashedKey, Integer> sorted = new TreeMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            sorted.put(new HashedKey(entries.get(i).getKey()), i);
+        }
+
+        writeLock.lock();
+        try {
+            List<HashedKey> keys = new ArrayList<>(sorted.size());
+            List<Record> records = new ArrayList<>(sorted.size());
+            List<Integer> sizes = new ArrayList<>(sorted.size());
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            long now = System.currentTimeMillis();
+            Record record, old;
+            byte[] bytes;
+            String value;
+            for (Map.Entry<HashedKey, Integer> entry : sorted.entrySet()) {
+                value = entries.get(entry.getValue()).getValue();
+                record = new Record(entry.getKey().key, value, 0,
+                    Objects.nonNull(value) && Objects.nonNull(expiresAt) ? expiresAt[entry.getValue()] : 0);
+                /* Nothing to delete, don't bother writing a tombstone */
+                if (record.isTombstone()) {
+                    old = lookup(entry.getKey());
+                    if (Objects.isNull(old) || old.isTombstone() || old.isExpired(now)) {
+                        continue;
+                    }
+                }
+
+                record = record.withSeq(++seq);
+                bytes = record.encode();
+                buf.write(bytes);
+                keys.add(entry.getKey());
+                records.add(record);
+                sizes.add(bytes.length);
+            }
+            if (records.isEmpty()) {
+                return;
+            }
+
+            writeDurably(memtableLogs.get(memtableLogs.size() - 1), buf.toByteArray());
+
+            Lock lock = rwLock.writeLock();
+            lock.lock();
+            try {
+                for (int i = 0; i < records.size(); i++) {
+                    memtable.put(keys.get(i), records.get(i), sizes.get(i));
+                }
+            } finally {
+                lock.unlock();
+            }
+            logger.info(String.format("Loaded %d pairs into %s", records.size(), dir));
+
+            if (memtable.bytes() >= memtableMaxBytes && Objects.isNull(flushing)) {
+                freezeMemTable();
+            }
+        } catch (Exception ex) {
+            logger.error("Error writing to " + dir + ": " + ex.getMessage());
+            throw StoreDir.writeError(dir.getPath(), ex);
+        } finally {
+            writeLock.unlock();
+        }
+
+        if (Objects.nonNull(flushing)) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Appends /bytes/ to /log/ in one write and forces it, before the
+     * records are put into the memtable. If the write or the force
+     * fails, the bytes are cut off the log again, so that a restart
+     * does not replay writes that were never acknowledged; if even
+     * that fails, the store takes no more writes. Assumes writeLock
+     * is held.
+     */
+    private void writeDurably(Segment log, byte[] bytes) throws IOException {
+        if (Objects.nonNull(failure)) {
+            throw new IOException("Store failed earlier: " + failure.getMessage(), failure);
+        }
+
+        long start = log.size();
+        try {
+            log.append(bytes);
+            log.force();
+        } catch (IOException ex) {
+            try {
+                log.truncate(start);
+                log.force();
+            } catch (IOException truncateEx) {
+                logger.error(String.format("%s: unable to cut off a failed write: %s",
+                    dir, truncateEx.getMessage()));
+                failure = ex;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Swaps in an empty memtable with a new log. The old memtable
+     * stays readable until its table is installed by the flusher.
+     * Assumes writeLock is held.
+     */
+    private void freezeMemTable() throws IOException {
+        Lock lock = rwLock.writeLock();
+        lock.lock();
+        try {
+            flushing = memtable;
+            flushingLogs = memtableLogs;
+            memtable = new MemTable();
+            memtableLogs = new ArrayList<>();
+            memtableLogs.add(new Segment(dir, nextLogId++));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the frozen memtable to the FLUSHER thread, unless a flush
+     * is already queued.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            FLUSHER.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Stalls the caller while the memtable has grown to STALL_FACTOR
+     * times its limit and the memtable frozen before it is still not
+     * flushed, so that writes cannot outrun the flusher.
+     */
+    private void awaitRoom() {
+        synchronized (flushed) {
+            while (Objects.nonNull(flushing)
+                && memtable.bytes() >= STALL_FACTOR * memtableMaxBytes) {
+                scheduleFlush();
+                try {
+                    flushed.wait(STALL_WAIT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the memtable frozen so far, if any, is flushed.
+     */
+    public void awaitFlush() {
+        flushLock.lock();
+        try {
+            flushFrozen();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Run by the FLUSHER thread. If the flush fails it is retried
+     * after the next write.
+     */
+    private void flush() {
+        if (!flushLock.tryLock()) {
+            return;
+        }
+
+        try {
+            flushFrozen();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the frozen memtable into a level 0 table, then drops the
+     * memtable and its logs. Runs outside of writeLock so that writes
+     * continue into the new memtable, then wakes up the writers
+     * stalled on the flush. Assumes flushLock is held.
+     */
+    private void flushFrozen() {
+        try {
+            /*
+             * Snapshot both together: a clearStorage in between would
+             * otherwise pair the old memtable with the new generation
+             */
+            MemTable frozen;
+            long startGeneration;
+            Lock readLock = rwLock.readLock();
+            readLock.lock();
+            try {
+                frozen = flushing;
+                startGeneration = generation;
+            } finally {
+                readLock.unlock();
+            }
+            if (Objects.isNull(frozen)) {
+                return;
+            }
+
+            SSTable table;
+            try (RecordCursor cursor = frozen.cursor(HashedKey.MIN);
+                 SSTable.Writer writer = new SSTable.Writer(dir, 0, nextTableId.getAndIncrement(), bloomFpRate)) {
+                while (cursor.next()) {
+                    writer.add(cursor.key(), cursor.record());
+                }
+                table = writer.finish();
+            }
+
+            Lock lock = rwLock.writeLock();
+            lock.lock();
+            try {
+                if (generation != startGeneration || flushing != frozen) {
+                    table.delete();
+                    return;
+                }
+
+                tables.add(table);
+                tables.sort(NEWEST_FIRST);
+                flushing = null;
+                for (Segment log : flushingLogs) {
+                    log.delete();
+                }
+                flushingLogs = new ArrayList<>();
+            } finally {
+                lock.unlock();
+            }
+
+            logger.info(String.format("Flushed %s: %s, %d bytes",
+                dir, table.file.getName(), table.size()));
+        } catch (Exception ex) {
+            logger.error("Error flushing " + dir + ": " + ex.getMessage());
+        } finally {
+            synchronized (flushed) {
+                flushed.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Merged cursor over the whole store from /from/ onwards.
+     * Assumes the read lock is held while the cursor is opened.
+     */
+    private RecordCursor cursor(HashedKey from) throws IOException {
+        List<RecordCursor> cursors = new ArrayList<>();
+        try {
+            cursors.add(memtable.cursor(from));
+            if (Objects.nonNull(flushing)) {
+                cursors.add(flushing.cursor(from));
+            }
+            for (SSTable table : tables) {
+                if (table.maxKey().compareTo(from) >= 0) {
+                    cursors.add(table.cursor(from));
+                }
+            }
+            return new MergeCursor(cursors);
+        } catch (IOException e) {
+            for (RecordCursor cursor : cursors) {
+                cursor.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * One sequential scan of a range scan: the live pairs with hashes
+     * in (lower, upper], starting at /from/. A null bound is
+     * unbounded.
+     */
+    private static class Scan {
+        final HashedKey from;
+        final HashRing.Hash lower;
+        final HashRing.Hash upper;
+
+        Scan(HashedKey from, HashRing.Hash lower, HashRing.Hash upper) {
+            this.from = from;
+            this.lower = lower;
+            this.upper = upper;
+        }
+    }
+
+    @Override
+    public List<Pair<String, String>> getAll() {
+        return getRange(null);
+    }
+
+    @Override
+    public List<Pair<String, String>> getRange(HashRing.HashRange range) {
+        List<Pair<String, String>> entries = new ArrayList<>();
+        try (KVCursor cursor = cursor(range)) {
+            while (cursor.next()) {
+                entries.add(new Pair<>(cursor.key(), cursor.value()));
+            }
+        } catch (Exception ex) {
+            logger.error("Error reading " + dir + ": " + ex.getMessage());
+        }
+        return entries;
+    }
+
+    /**
+     * Range scan in hash order. A wrapped-around range is scanned as
+     * (lower, MAX] followed by [MIN, upper].
+     *
+     * Each scan merges the memtables and the tables as they are when
+     * the scan starts; the open table files stay readable even if a
+     * compaction replaces them in the meantime.
+     */
+    @Override
+    public KVCursor cursor(HashRing.HashRange range) {
+        openKVStore();
+
+        List<Scan> scans = new ArrayList<>();
+        if (Objects.isNull(range) || range.getUpper().equals(range.getLower())) {
+            scans.add(new Scan(HashedKey.MIN, null, null));
+        } else if (range.getUpper().gt(range.getLower())) {
+            scans.add(new Scan(HashedKey.first(range.getLower()), range.getLower(), range.getUpper()));
+        } else {
+            scans.add(new Scan(HashedKey.first(range.getLower()), range.getLower(), null));
+            scans.add(new Scan(HashedKey.MIN, null, range.getUpper()));
+        }
+
+        return new KVCursor() {
+            private RecordCursor cursor;
+            private Scan scan;
+            private Record record;
+            private final long now = System.currentTimeMillis();
+
+            @Override
+            public boolean next() throws IOException {
+                HashRing.Hash hash;
+                while (true) {
+                    if (Objects.isNull(cursor)) {
+                        if (scans.isEmpty()) {
+                            record = null;
+                            return false;
+                        }
+                        scan = scans.remove(0);
+                        Lock lock = rwLock.readLock();
+                        lock.lock();
+                        try {
+                            cursor = LSMDisk.this.cursor(scan.from);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+
+                    if (!cursor.next()
+                        || (Objects.nonNull(scan.upper) && cursor.key().hash.gt(scan.upper))) {
+                        cursor.close();
+                        cursor = null;
+                        continue;
+                    }
+
+                    hash = cursor.key().hash;
+                    if (Objects.nonNull(scan.lower) && hash.equals(scan.lower)) {
+                        continue;
+                    }
+                    record = cursor.record();
+                    if (!record.isTombstone() && !record.isExpired(now)) {
+                        return true;
+                    }
+                }
+            }
+
+            @Override
+            public String key() {
+                return record.key;
+            }
+
+            @Override
+            public String value() {
+                return record.value;
+            }
+
+            @Override
+            public long expiresAt() {
+                return record.expiresAt;
+            }
+
+            @Override
+            public void close() throws IOException {
+                scans.clear();
+                if (Objects.nonNull(cursor)) {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Waits for a running flush, so that it does not write a table
+     * into the cleared store.
+     */
+    @Override
+    public void clearStorage() {
+        openKVStore();
+
+        flushLock.lock();
+        writeLock.lock();
+        Lock lock = rwLock.writeLock();
+        lock.lock();
+        try {
+            for (SSTable table : tables) {
+                table.delete();
+            }
+            for (Segment log : flushingLogs) {
+                log.delete();
+            }
+            for (Segment log : memtableLogs) {
+                log.delete();
+            }
+            tables.clear();
+            flushing = null;
+            flushingLogs = new ArrayList<>();
+            memtable = new MemTable();
+            memtableLogs = new ArrayList<>();
+            memtableLogs.add(new Segment(dir, nextLogId++));
+            generation++;
+            failure = null;
+        } catch (Exception ex) {
+            logger.error("Error clearing " + dir + ": " + ex.getMessage());
+        } finally {
+            lock.unlock();
+            writeLock.unlock();
+            flushLock.unlock();
+        }
+    }
+
+    private static long maxBytesForLevel(int level) {
+        long bytes = LEVEL_BASE_BYTES;
+        for (int i = 1; i < level; i++) {
+            bytes *= LEVEL_MULTIPLIER;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the level to compact next, or -1 if every level is
+     * within its budget.
+     *
+     * @param force compact level 0 even if it holds fewer than
+     *              L0_COMPACTION_TRIGGER tables
+     */
+    private int pickLevel(boolean force) {
+        Lock lock = rwLock.readLock();
+        lock.lock();
+        try {
+            int numL0 = 0;
+            TreeMap<Integer, Long> levelBytes = new TreeMap<>();
+            for (SSTable table : tables) {
+                if (table.level == 0) {
+                    numL0++;
+                } else {
+                    levelBytes.merge(table.level, table.size(), Long::sum);
+                }
+            }
+
+            if (numL0 >= L0_COMPACTION_TRIGGER || (force && numL0 > 0)) {
+                return 0;
+            }
+            for (Map.Entry<Integer, Long> entry : levelBytes.entrySet()) {
+                if (entry.getValue() > maxBytesForLevel(entry.getKey())) {
+                    return entry.getKey();
+                }
+            }
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Expired records have no index entry to drop; they are reclaimed
+     * when compaction reaches the bottom level.
+     */
+    @Override
+    public int reapExpired() {
+        return 0;
+    }
+
+    @Override
+    public boolean needsCompaction(double minGarbageRatio) {
+        return opened && pickLevel(false) >= 0;
+    }
+
+    /**
+     * Compacts the store immediately, without throttling.
+     *
+     * @return true if any tables were merged
+     */
+    public boolean compact() {
+        return compact(null);
+    }
+
+    /**
+     * Runs compactions until every level is within its budget. When
+     * called without a throttle (compact()), level 0 is always merged
+     * into level 1 first.
+     *
+     * @param throttle rate limits the merge; null to run flat out
+     * @return true if any tables were merged
+     */
+    @Override
+    public boolean compact(Compactor throttle) {
+        openKVStore();
+
+        if (!compactLock.tryLock()) {
+            return false;
+        }
+
+        try {
+            boolean compacted = false;
+            boolean force = Objects.isNull(throttle);
+            int level;
+            while ((level = pickLevel(force)) >= 0) {
+                if (!compactLevel(level, throttle)) {
+                    break;
+                }
+                compacted = true;
+                force = false;
+            }
+            return compacted;
+        } finally {
+            compactLock.unlock();
+        }
+    }
+
+    /**
+     * Merges tables of /level/ into the overlapping tables of the next
+     * level: all tables for level 0, the oldest table otherwise.
+     *
+     * Like the compaction of the log engine, the merge runs without
+     * holding any lock; only installing the output takes the write
+     * lock.
+     */
+    private boolean compactLevel(int level, Compactor throttle) {
+        List<SSTable> inputs = new ArrayList<>();
+        long startGeneration;
+        boolean bottom;
+
+        Lock read_lock = rwLock.readLock();
+        read_lock.lock();
+        try {
+            startGeneration = generation;
+            for (SSTable table : tables) {
+                if (table.level == level) {
+                    inputs.add(table);
+                }
+            }
+            if (inputs.isEmpty()) {
+                return false;
+            }
+            if (level > 0) {
+                /* Oldest table of the level; tables are newest first */
+                inputs = inputs.subList(inputs.size() - 1, inputs.size());
+            }
+
+            HashedKey min = inputs.get(0).minKey(), max = inputs.get(0).maxKey();
+            for (SSTable table : inputs) {
+                min = table.minKey().compareTo(min) < 0 ? table.minKey() : min;
+                max = table.maxKey().compareTo(max) > 0 ? table.maxKey() : max;
+            }
+
+            inputs = new ArrayList<>(inputs);
+            bottom = true;
+            for (SSTable table : tables) {
+                if (table.level == level + 1 && table.overlaps(min, max)) {
+                    inputs.add(table);
+                } else if (table.level > level + 1) {
+                    bottom = false;
+                }
+            }
+        } finally {
+            read_lock.unlock();
+        }
+
+        /*
+         * Merge into the next level. Tombstones and expired records
+         * are only needed to hide older records in deeper levels;
+         * there are none if the next level is the bottom one.
+         */
+        List<RecordCursor> cursors = new ArrayList<>();
+        List<SSTable> outputs = new ArrayList<>();
+        SSTable.Writer writer = null;
+        long copied = 0;
+        try {
+            for (SSTable table : inputs) {
+                cursors.add(table.cursor(HashedKey.MIN));
+            }
+
+            long now = System.currentTimeMillis();
+            try (RecordCursor cursor = new MergeCursor(cursors)) {
+                long before;
+                while (cursor.next()) {
+                    if (bottom && (cursor.record().isTombstone()
+                        || cursor.record().isExpired(now))) {
+                        continue;
+                    }
+
+                    if (Objects.isNull(writer)) {
+                        writer = new SSTable.Writer(dir, level + 1, nextTableId.getAndIncrement(), bloomFpRate);
+                    }
+                    before = writer.size();
+                    writer.add(cursor.key(), cursor.record());
+                    if (Objects.nonNull(throttle)) {
+                        throttle.throttle((int) (writer.size() - before));
+                    }
+
+                    if (writer.size() >= TABLE_TARGET_BYTES) {
+                        copied += writer.size();
+                        outputs.add(writer.finish());
+                        writer = null;
+                    }
+                }
+            }
+            if (Objects.nonNull(writer)) {
+                copied += writer.size();
+                outputs.add(writer.finish());
+                writer = null;
+            }
+
+            /* Install the output */
+            Lock lock = rwLock.writeLock();
+            lock.lock();
+            try {
+                if (generation != startGeneration) {
+                    logger.info("Storage cleared during compaction, discarding");
+                    for (SSTable table : outputs) {
+                        table.delete();
+                    }
+                    return false;
+                }
+
+                tables.removeAll(inputs);
+                tables.addAll(outputs);
+                tables.sort(NEWEST_FIRST);
+                for (SSTable table : inputs) {
+                    table.delete();
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception ex) {
+            logger.error("Error compacting " + dir + ": " + ex.getMessage());
+            try {
+                for (RecordCursor cursor : cursors) {
+                    cursor.close();
+                }
+                if (Objects.nonNull(writer)) {
+                    writer.close();
+                }
+                for (SSTable table : outputs) {
+                    table.delete();
+                }
+            } catch (IOException e) {
+                logger.error("Error cleaning up compaction of " + dir + ": " + e.getMessage());
+            }
+            return false;
+        }
+
+        logger.info(String.format("Compacted %s: L%d, %d tables -> %d tables, %d bytes",
+            dir, level, inputs.size(), outputs.size(), copied));
+        return true;
+    }
+
+    /**
+     * A put queued for group commit
+     */
+    private static class PendingWrite {
+        final HashedKey hashedKey;
+        Record record;
+        /* Encoded by the leader, once the sequence number is known */
+        byte[] bytes;
+        boolean exists;
+        boolean done;
+        /* Why the batch of the write failed, once done */
+        Exception error;
+
+        PendingWrite(Record record) {
+            this.hashedKey = new HashedKey(record.key);
+            this.record = record;
+        }
+    }
+}
@@ -31,6 +31,14 @@ public class MapReduceCtrl {
     private static final int SZ_PARTITION = 2048; // words
     private static final int SZ_REDUCE = 1024; // number of aggregated map outputs per reduce task
 
+    /**
+     * Intermediate parts (MAP-*, REDUCE-*, MAP-RESULT-*) are deleted
+     * once the job is done, but a job that fails halfway leaves them
+     * behind. They expire after this long regardless, which is far
+     * longer than any job runs.
+     */
+    public static final long INTERMEDIATE_TTL_MILLIS = 60 * 60 * 1000; // 1 hour
+
     public static String[] masterMapReduce(MapReduce.Type type,
                                            ECSNode master,
                                            HashRing ring,
@@ -319,7 +327,7 @@ public class MapReduceCtrl {
                 TYPE, UUID.randomUUID().toString());
             entry = new Pair<>(partKey, part);
             try {
-                ServerRequestLib.serverPutKV(ring, entry);
+                ServerRequestLib.serverPutKV(ring, entry, INTERMEDIATE_TTL_MILLIS);
             } catch (Exception e) {
                 logger.error("[MAP_REDUCE]: Could not put data", entry, e);
                 // TODO: provide fault tolerance
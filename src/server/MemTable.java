@@ -0,0 +1,83 @@
+package server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory write buffer of the LSM storage engine. Holds the newest
+ * record of every key written since the last flush, sorted by
+ * HashedKey, so that it can be written out as an SSTable in order.
+ *
+ * Backed by a concurrent skip list: reads and scans never block
+ * writers.
+ */
+class MemTable {
+    private ConcurrentNavigableMap<HashedKey, Record> records;
+    private AtomicLong bytes;
+
+    MemTable() {
+        records = new ConcurrentSkipListMap<>();
+        bytes = new AtomicLong(0);
+    }
+
+    void put(HashedKey key, Record record, int size) {
+        records.put(key, record);
+        bytes.addAndGet(size);
+    }
+
+    /**
+     * @return the record of /key/ (possibly a tombstone), or null
+     * if the memtable has no record of /key/
+     */
+    Record get(HashedKey key) {
+        return records.get(key);
+    }
+
+    /**
+     * Approximate size: bytes written, including overwritten records.
+     */
+    long bytes() {
+        return bytes.get();
+    }
+
+    boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    /**
+     * Cursor over the records with keys >= /from/. Weakly consistent:
+     * may or may not reflect writes made after it was created.
+     */
+    RecordCursor cursor(HashedKey from) {
+        Iterator<Map.Entry<HashedKey, Record>> it =
+            records.tailMap(from, true).entrySet().iterator();
+
+        return new RecordCursor() {
+            private Map.Entry<HashedKey, Record> current;
+
+            @Override
+            public boolean next() {
+                current = it.hasNext() ? it.next() : null;
+                return current != null;
+            }
+
+            @Override
+            public HashedKey key() {
+                return current.getKey();
+            }
+
+            @Override
+            public Record record() {
+                return current.getValue();
+            }
+
+            @Override
+            public void close() {
+                /* Nothing to release */
+            }
+        };
+    }
+}
@@ -0,0 +1,101 @@
+package server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several sorted cursors into one sorted cursor with at most
+ * one record per key. When more than one source has a record of the
+ * same key, the record of the source listed first wins; sources must
+ * therefore be listed newest first.
+ *
+ * Tombstones are passed through; it is up to the caller to decide
+ * whether a tombstone hides older data or can be dropped.
+ */
+class MergeCursor implements RecordCursor {
+    private static class Source implements Comparable<Source> {
+        final RecordCursor cursor;
+        final int priority;
+
+        Source(RecordCursor cursor, int priority) {
+            this.cursor = cursor;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Source o) {
+            int cmp = cursor.key().compareTo(o.cursor.key());
+            return cmp != 0 ? cmp : Integer.compare(priority, o.priority);
+        }
+    }
+
+    private List<RecordCursor> cursors;
+    private PriorityQueue<Source> heap;
+    private HashedKey key;
+    private Record record;
+
+    MergeCursor(List<RecordCursor> cursors) throws IOException {
+        this.cursors = cursors;
+        this.heap = new PriorityQueue<>();
+        int priority = 0;
+        for (RecordCursor cursor : cursors) {
+            if (cursor.next()) {
+                heap.add(new Source(cursor, priority));
+            }
+            priority++;
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        Source top = heap.poll();
+        if (Objects.isNull(top)) {
+            key = null;
+            record = null;
+            return false;
+        }
+
+        key = top.cursor.key();
+        record = top.cursor.record();
+        advance(top);
+
+        /* Skip the older records of the same key */
+        while (!heap.isEmpty() && heap.peek().cursor.key().equals(key)) {
+            advance(heap.poll());
+        }
+        return true;
+    }
+
+    private void advance(Source source) throws IOException {
+        if (source.cursor.next()) {
+            heap.add(source);
+        }
+    }
+
+    @Override
+    public HashedKey key() {
+        return key;
+    }
+
+    @Override
+    public Record record() {
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (RecordCursor cursor : cursors) {
+            try {
+                cursor.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (Objects.nonNull(error)) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package server;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide pool of read-only memory mappings of immutable
+ * storage files (sealed segments and SSTables). A point read against
+ * a mapped file is a slice of the mapping: no system call and no
+ * copy into a heap buffer.
+ *
+ * The total size of all mappings is capped at maxMappedBytes, shared
+ * by the primary store and every replica store of the server. When
+ * a new mapping would exceed the cap, the least recently used
+ * mappings are retired. A retired mapping is unmapped as soon as the
+ * last reader using it releases it, so a reader never sees memory
+ * disappear underneath it.
+ *
+ * Point reads only touch the mapping they use: the pool is a
+ * concurrent map, and each mapping counts its readers atomically.
+ * Only creating a mapping, which may retire others to make room,
+ * takes the pool lock.
+ */
+class MmapPool {
+    private static Logger logger = Logger.getLogger(MmapPool.class);
+
+    static class Mapping {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        /*
+         * Readers, plus one held by the pool until the mapping is
+         * retired. Unmapped when it drops to 0; never raised from 0.
+         */
+        private final AtomicInteger refs;
+        /* Value of clock when last acquired, for LRU eviction */
+        private volatile long lastUsed;
+
+        private Mapping(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            this.refs = new AtomicInteger(1);
+            this.lastUsed = clock.incrementAndGet();
+        }
+
+        /**
+         * Read-only view of /length/ bytes at /offset/. Only valid
+         * until the mapping is released.
+         */
+        ByteBuffer slice(long offset, int length) {
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) offset);
+            view.limit((int) offset + length);
+            return view.slice();
+        }
+
+        /**
+         * @return false if the mapping has already been unmapped
+         */
+        private boolean retain() {
+            int n;
+            do {
+                n = refs.get();
+                if (n == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(n, n + 1));
+            lastUsed = clock.incrementAndGet();
+            return true;
+        }
+
+        private void unref() {
+            if (refs.decrementAndGet() == 0) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    private static volatile long maxMappedBytes = Disk.MAX_MAPPED_BYTES;
+    private static final AtomicLong mappedBytes = new AtomicLong(0);
+    private static final AtomicLong clock = new AtomicLong(0);
+    private static final Map<File, Mapping> mappings = new ConcurrentHashMap<>();
+    /* Serializes creating mappings with retiring mappings to make room */
+    private static final Object lock = new Object();
+
+    static void setMaxMappedBytes(long bytes) {
+        synchronized (lock) {
+            maxMappedBytes = bytes;
+            evict(0);
+        }
+    }
+
+    /**
+     * Returns the mapping of /file/, mapping it if needed, or null if
+     * the file does not fit in the pool. The caller must hand the
+     * mapping back with {@link #release(Mapping)}.
+     */
+    static Mapping acquire(File file, FileChannel channel) throws IOException {
+        Mapping mapping = mappings.get(file);
+        if (Objects.nonNull(mapping) && mapping.retain()) {
+            return mapping;
+        }
+
+        synchronized (lock) {
+            mapping = mappings.get(file);
+            if (Objects.nonNull(mapping) && mapping.retain()) {
+                return mapping;
+            }
+
+            long size = channel.size();
+            if (size == 0 || size > maxMappedBytes || size > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            evict(size);
+            mapping = new Mapping(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+            mapping.retain();
+            mappings.put(file, mapping);
+            mappedBytes.addAndGet(size);
+        }
+        return mapping;
+    }
+
+    static void release(Mapping mapping) {
+        mapping.unref();
+    }
+
+    /**
+     * Drops the mapping of /file/. Must be called before the file is
+     * closed, deleted or replaced.
+     */
+    static void invalidate(File file) {
+        Mapping mapping = mappings.get(file);
+        if (Objects.nonNull(mapping)) {
+            retire(mapping);
+        }
+    }
+
+    /**
+     * Retires least recently used mappings until /needed/ more bytes
+     * fit under the cap. Assumes lock is held.
+     */
+    private static void evict(long needed) {
+        Mapping lru;
+        while (mappedBytes.get() + needed > maxMappedBytes) {
+            lru = null;
+            for (Mapping mapping : mappings.values()) {
+                if (Objects.isNull(lru) || mapping.lastUsed < lru.lastUsed) {
+                    lru = mapping;
+                }
+            }
+            if (Objects.isNull(lru)) {
+                return;
+            }
+            retire(lru);
+            logger.debug("Unmapped " + lru.file);
+        }
+    }
+
+    /**
+     * Removes the mapping from the pool and drops the reference of
+     * the pool; the mapping is unmapped once its last reader is done.
+     */
+    private static void retire(Mapping mapping) {
+        if (mappings.remove(mapping.file, mapping)) {
+            mappedBytes.addAndGet(-mapping.buffer.capacity());
+            mapping.unref();
+        }
+    }
+
+    /**
+     * Releases the mapping right away instead of waiting for the
+     * buffer to be garbage collected. Falls back to the latter on
+     * JVMs that do not expose the buffer's cleaner.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (Objects.nonNull(cleaner)) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            /* Unmapped once the buffer is collected */
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A single entry of the persistent store. A record either sets a
+ * key to a value or deletes the key (tombstone, value == null).
+ * Every record carries the sequence number the store assigned to the
+ * write, increasing in write order. A record may expire: from
+ * expiresAt (wall clock, ms) on, the key reads as absent.
+ *
+ * Given a record, formats it into the following binary format to be
+ * stored in a segment or SSTable:
+ *      byte    version (VERSION)
+ *      byte    flags (FLAG_TOMBSTONE, FLAG_COMPRESSED, FLAG_EXPIRES)
+ *      varint  sequence number
+ *      varint  expiresAt, only if FLAG_EXPIRES is set
+ *      varint  key length in bytes
+ *      varint  value length in bytes
+ *      bytes   key (UTF-8)
+ *      bytes   value (UTF-8)
+ *      int     CRC32 of all of the above
+ * Varints are unsigned LEB128: 7 bits per byte, low bits first, high
+ * bit set on all bytes but the last.
+ *
+ * Values of at least compressMinBytes are Deflate compressed if that
+ * makes them smaller; the value field of a compressed record is then
+ *      varint  uncompressed length in bytes
+ *      bytes   Deflate stream of the UTF-8 value
+ * Small values are stored as is, which saves the cost of compressing
+ * them for no gain.
+ *
+ * Keys and values may contain any character. A record cut short by
+ * a crash, or with a CRC that does not match, is detected on read.
+ * NOTE: if there are any design changes to the persistent
+ * storage format, only this class should change
+ */
+class Record {
+    static final byte VERSION = 1;
+    private static final byte FLAG_TOMBSTONE = 0x01;
+    private static final byte FLAG_COMPRESSED = 0x02;
+    private static final byte FLAG_EXPIRES = 0x04;
+    private static final int CRC_BYTES = 4;
+    private static volatile int compressMinBytes = Disk.COMPRESS_MIN_BYTES;
+
+    final String key;
+    final String value;
+    final long seq;
+    /* 0 if the record never expires */
+    final long expiresAt;
+
+    Record(String key, String value) {
+        this(key, value, 0, 0);
+    }
+
+    Record(String key, String value, long seq, long expiresAt) {
+        this.key = key;
+        this.value = value;
+        this.seq = seq;
+        this.expiresAt = expiresAt;
+    }
+
+    boolean isTombstone() {
+        return value == null;
+    }
+
+    boolean isExpired(long now) {
+        return expiresAt != 0 && expiresAt <= now;
+    }
+
+    Record withSeq(long seq) {
+        return new Record(key, value, seq, expiresAt);
+    }
+
+    /**
+     * Compresses values of at least /bytes/ bytes from now on;
+     * Integer.MAX_VALUE turns compression off.
+     */
+    static void setCompressMinBytes(int bytes) {
+        compressMinBytes = bytes;
+    }
+
+    byte[] encode() {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = isTombstone()
+            ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        byte flags = isTombstone() ? FLAG_TOMBSTONE : 0;
+        if (expiresAt != 0) {
+            flags |= FLAG_EXPIRES;
+        }
+
+        if (valueBytes.length >= compressMinBytes) {
+            byte[] compressed = compress(valueBytes);
+            if (compressed.length < valueBytes.length) {
+                valueBytes = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+            keyBytes.length + valueBytes.length + 32);
+        out.write(VERSION);
+        out.write(flags);
+        writeVarint(out, seq);
+        if (expiresAt != 0) {
+            writeVarint(out, expiresAt);
+        }
+        writeVarint(out, keyBytes.length);
+        writeVarint(out, valueBytes.length);
+        out.write(keyBytes, 0, keyBytes.length);
+        out.write(valueBytes, 0, valueBytes.length);
+
+        CRC32 crc = new CRC32();
+        crc.update(out.toByteArray(), 0, out.size());
+        int checksum = (int) crc.getValue();
+        out.write(checksum >>> 24);
+        out.write(checksum >>> 16);
+        out.write(checksum >>> 8);
+        out.write(checksum);
+        return out.toByteArray();
+    }
+
+    /**
+     * Uncompressed length followed by the Deflate stream of /bytes/
+     */
+    private static byte[] compress(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+        writeVarint(out, bytes.length);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] chunk = new byte[Math.min(bytes.length, 64 * 1024)];
+            int n;
+            while (!deflater.finished()) {
+                n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+                /* Incompressible, give up early */
+                if (out.size() >= bytes.length) {
+                    break;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(ByteBuffer in, int length) throws IOException {
+        ByteBuffer field = in.duplicate();
+        field.limit(field.position() + length);
+        int rawLength = (int) readVarint(field);
+        byte[] input = new byte[field.remaining()];
+        field.get(input);
+        in.position(in.position() + length);
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            byte[] raw = new byte[rawLength];
+            int n = 0;
+            while (n < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, rawLength - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != rawLength) {
+                throw new IOException("Truncated compressed value");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed value: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarint(ByteBuffer buf) throws IOException {
+        long v = 0;
+        int b;
+        for (int shift = 0; shift < 64; shift += 7) {
+            b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Decodes a single complete record read back from storage.
+     */
+    static Record decode(byte[] bytes) throws IOException {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Same as {@link #decode(byte[])}, decoding straight out of the
+     * buffer (e.g. a slice of a memory mapped file).
+     *
+     * @throws IOException if the record is truncated or corrupt
+     */
+    static Record decode(ByteBuffer buf) throws IOException {
+        ByteBuffer in = buf.duplicate();
+        int start = in.position();
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported record version: " + version);
+            }
+            byte flags = in.get();
+            long seq = readVarint(in);
+            long expiresAt = (flags & FLAG_EXPIRES) != 0 ? readVarint(in) : 0;
+            int keyLength = (int) readVarint(in);
+            int valueLength = (int) readVarint(in);
+            if (keyLength < 0 || valueLength < 0
+                || in.remaining() != keyLength + valueLength + CRC_BYTES) {
+                throw new IOException("Truncated record");
+            }
+
+            ByteBuffer checked = buf.duplicate();
+            checked.limit(in.position() + keyLength + valueLength);
+            checked.position(start);
+            CRC32 crc = new CRC32();
+            crc.update(checked);
+
+            String key = utf8(in, keyLength);
+            int valueStart = in.position();
+            in.position(valueStart + valueLength);
+            if ((int) crc.getValue() != in.getInt()) {
+                throw new IOException("Record checksum mismatch");
+            }
+
+            /* Only decompress once the checksum is known to be good */
+            in.position(valueStart);
+            String value = (flags & FLAG_COMPRESSED) != 0
+                ? new String(decompress(in, valueLength), StandardCharsets.UTF_8)
+                : utf8(in, valueLength);
+
+            return new Record(key,
+                (flags & FLAG_TOMBSTONE) != 0 ? null : value, seq, expiresAt);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated record");
+        }
+    }
+
+    private static String utf8(ByteBuffer in, int length) {
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(),
+                length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /**
+     * Iterates through the records of a segment or SSTable in the
+     * order they were written, tracking the byte offset of every
+     * record.
+     *
+     * Iteration stops at the first record that was cut short or
+     * fails its checksum; {@link #isTruncated()} then tells the
+     * caller that the bytes from {@link #recordOffset()} onwards
+     * cannot be read. At the tail of the file being written that is
+     * a write torn by a crash. Anywhere else it is corruption, and a
+     * record that was read whole but fails its checksum can be
+     * skipped with {@link #skipCorrupt()}.
+     */
+    static class Reader implements Closeable {
+        private InputStream in;
+        private ByteArrayOutputStream raw;
+        private long position;
+        private long recordOffset;
+        private int recordLength;
+        private boolean truncated;
+        /* The torn record was read whole; recordLength is its length */
+        private boolean corrupt;
+
+        Reader(InputStream in) {
+            this.in = in;
+            this.raw = new ByteArrayOutputStream();
+            this.position = 0;
+            this.truncated = false;
+            this.corrupt = false;
+        }
+
+        Reader(ByteBuffer buf) {
+            this(new InputStream() {
+                @Override
+                public int read() {
+                    return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (!buf.hasRemaining()) {
+                        return -1;
+                    }
+                    len = Math.min(len, buf.remaining());
+                    buf.get(b, off, len);
+                    return len;
+                }
+            });
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            raw.write(b);
+            return b;
+        }
+
+        private long readVarint() throws IOException {
+            long v = 0;
+            int b;
+            for (int shift = 0; shift < 64; shift += 7) {
+                b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private void readFully(long length) throws IOException {
+            byte[] chunk = new byte[(int) Math.min(length, 64 * 1024)];
+            int n;
+            while (length > 0) {
+                n = in.read(chunk, 0, (int) Math.min(length, chunk.length));
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                raw.write(chunk, 0, n);
+                length -= n;
+            }
+        }
+
+        /**
+         * Returns the next record, or null on EOF or at a torn
+         * record.
+         */
+        Record next() throws IOException {
+            raw.reset();
+            recordOffset = position;
+
+            int version = in.read();
+            if (version < 0) {
+                return null;
+            }
+            raw.write(version);
+            if (version != VERSION) {
+                /* At the start of a file it is a format we can't read */
+                if (recordOffset == 0) {
+                    throw new IOException("Unsupported record version: " + version);
+                }
+                truncated = true;
+                return null;
+            }
+
+            Record record;
+            try {
+                int flags = readByte();
+                readVarint(); // seq
+                if ((flags & FLAG_EXPIRES) != 0) {
+                    readVarint(); // expiresAt
+                }
+                long keyLength = readVarint();
+                long valueLength = readVarint();
+                readFully(keyLength + valueLength + CRC_BYTES);
+            } catch (IOException e) {
+                truncated = true;
+                return null;
+            }
+            try {
+                record = decode(raw.toByteArray());
+            } catch (IOException e) {
+                truncated = true;
+                corrupt = true;
+                recordLength = raw.size();
+                return null;
+            }
+
+            recordLength = raw.size();
+            position += recordLength;
+            return record;
+        }
+
+        /**
+         * Offset of the record last returned by {@link #next()}, or of
+         * the torn record if {@link #isTruncated()}
+         */
+        long recordOffset() {
+            return recordOffset;
+        }
+
+        /**
+         * Length in bytes of the record last returned by {@link #next()}
+         */
+        int recordLength() {
+            return recordLength;
+        }
+
+        boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * Skips the record that stopped iteration, so that
+         * {@link #next()} goes on with the record after it.
+         *
+         * @return false if the record cannot be skipped since it was
+         *         cut short, and its length is unknown
+         */
+        boolean skipCorrupt() {
+            if (!corrupt) {
+                return false;
+            }
+            position += recordLength;
+            truncated = false;
+            corrupt = false;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
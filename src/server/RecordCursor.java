@@ -0,0 +1,26 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Iterates through records in HashedKey order. Used by the LSM
+ * storage engine to scan memtables and SSTables, and to merge them.
+ *
+ *      try (RecordCursor cursor = ...) {
+ *          while (cursor.next()) {
+ *              cursor.key(); cursor.record();
+ *          }
+ *      }
+ */
+interface RecordCursor extends Closeable {
+    /**
+     * Advances to the next record.
+     * @return false once the cursor is exhausted
+     */
+    boolean next() throws IOException;
+
+    HashedKey key();
+
+    Record record();
+}
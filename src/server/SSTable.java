@@ -0,0 +1,506 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable sorted run of the LSM storage engine: records sorted by
+ * HashedKey, at most one record per key, stored in the same record
+ * format as the segments of the log engine.
+ *      <name>/L<level>_<id>.sst
+ *
+ * The file is split into blocks of ~BLOCK_BYTES. A sparse index of
+ * the first key of every block is kept in memory, so a point lookup
+ * is a binary search plus one read of one block (out of a memory
+ * mapping of the table, see MmapPool), and a range scan starts
+ * reading at the block holding the lower bound.
+ *
+ * The index is persisted next to the table, so opening a table does
+ * not decode its records:
+ *      <name>/L<level>_<id>.index
+ *          long    size of the table
+ *          long    maxSeq
+ *          int     number of blocks
+ *          per block:
+ *              int     key length, then the first key (UTF-8)
+ *              long    offset
+ *              int     length
+ *          int, key    last key of the table, if it has a block
+ *          long    CRC32 of everything above
+ * A table whose index file is missing or does not check out (e.g.
+ * written before index files existed) is scanned once instead, and
+ * the index file written.
+ *
+ * Every table has a BloomFilter over its keys, so a lookup of a key
+ * the table does not hold almost never reads the file.
+ *
+ * Synchronization is enforced by the owning LSMDisk.
+ */
+class SSTable {
+    private static final String PREFIX = "L";
+    static final String SUFFIX = ".sst";
+    static final String TMP_SUFFIX = ".tmp";
+    static final String INDEX_SUFFIX = ".index";
+    private static final int BLOCK_BYTES = 4 * 1024;
+
+    final int level;
+    final int id;
+    final File file;
+    private FileChannel channel;
+    private List<Block> blocks;
+    private BloomFilter bloom;
+    private HashedKey minKey;
+    private HashedKey maxKey;
+    private long size;
+    private long maxSeq;
+
+    private static class Block {
+        final HashedKey firstKey;
+        final long offset;
+        int length;
+
+        Block(HashedKey firstKey, long offset) {
+            this.firstKey = firstKey;
+            this.offset = offset;
+            this.length = 0;
+        }
+    }
+
+    /**
+     * Splits a run of records into blocks. Used both when writing a
+     * table and when opening one, so the two always agree.
+     */
+    private static class IndexBuilder {
+        List<Block> blocks = new ArrayList<>();
+        List<HashedKey> keys = new ArrayList<>();
+        HashedKey minKey;
+        HashedKey maxKey;
+        long size = 0;
+        long maxSeq = 0;
+        private Block current;
+
+        BloomFilter buildBloom(double fpRate) {
+            BloomFilter bloom = new BloomFilter(keys.size(), fpRate);
+            for (HashedKey key : keys) {
+                bloom.add(key);
+            }
+            return bloom;
+        }
+
+        void add(HashedKey key, long seq, int length) {
+            maxSeq = Math.max(maxSeq, seq);
+            if (Objects.isNull(current)) {
+                current = new Block(key, size);
+                blocks.add(current);
+            }
+            if (Objects.isNull(minKey)) {
+                minKey = key;
+            }
+            maxKey = key;
+            keys.add(key);
+
+            current.length += length;
+            size += length;
+            if (current.length >= BLOCK_BYTES) {
+                current = null;
+            }
+        }
+    }
+
+    private SSTable(File file, int level, int id, IndexBuilder index,
+                    BloomFilter bloom) throws IOException {
+        this.file = file;
+        this.bloom = bloom;
+        this.level = level;
+        this.id = id;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.blocks = index.blocks;
+        this.minKey = index.minKey;
+        this.maxKey = index.maxKey;
+        this.size = index.size;
+        this.maxSeq = index.maxSeq;
+    }
+
+    static String fileName(int level, int id) {
+        return String.format("%s%d_%06d%s", PREFIX, level, id, SUFFIX);
+    }
+
+    static String bloomFileName(int level, int id) {
+        return String.format("%s%d_%06d%s", PREFIX, level, id, BloomFilter.SUFFIX);
+    }
+
+    static String indexFileName(int level, int id) {
+        return String.format("%s%d_%06d%s", PREFIX, level, id, INDEX_SUFFIX);
+    }
+
+    /**
+     * Returns {level, id} encoded in the file name, or null if the
+     * file is not an SSTable.
+     */
+    static int[] parseName(String fileName) {
+        if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX)) {
+            return null;
+        }
+
+        String[] parts = fileName.substring(PREFIX.length(),
+            fileName.length() - SUFFIX.length()).split("_");
+        try {
+            return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens an existing table. The block index and the Bloom filter
+     * are loaded from disk; whichever is missing is rebuilt from a
+     * scan of the table.
+     */
+    static SSTable open(File dir, int level, int id, double fpRate) throws IOException {
+        File file = new File(dir, fileName(level, id));
+        File bloomFile = new File(dir, bloomFileName(level, id));
+        File indexFile = new File(dir, indexFileName(level, id));
+        IndexBuilder index = readIndex(indexFile, file.length());
+        boolean indexed = Objects.nonNull(index);
+        if (!indexed || !bloomFile.exists()) {
+            index = scan(file);
+        }
+
+        BloomFilter bloom;
+        if (bloomFile.exists()) {
+            bloom = BloomFilter.read(bloomFile);
+        } else {
+            bloom = index.buildBloom(fpRate);
+            bloom.write(bloomFile);
+        }
+        if (!indexed) {
+            writeIndex(indexFile, index);
+        }
+        index.keys = null;
+        return new SSTable(file, level, id, index, bloom);
+    }
+
+    /**
+     * Rebuilds the block index of /file/ by decoding every record.
+     */
+    private static IndexBuilder scan(File file) throws IOException {
+        IndexBuilder index = new IndexBuilder();
+        try (Record.Reader reader = new Record.Reader(
+            new BufferedInputStream(new FileInputStream(file)))) {
+            Record record;
+            while ((record = reader.next()) != null) {
+                index.add(new HashedKey(record.key), record.seq, reader.recordLength());
+            }
+            /* Tables are renamed into place only once complete */
+            if (reader.isTruncated()) {
+                throw new IOException(String.format("Corrupt table %s at %d",
+                    file, reader.recordOffset()));
+            }
+        }
+        return index;
+    }
+
+    private static void writeIndex(File file, IndexBuilder index) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeLong(index.size);
+        out.writeLong(index.maxSeq);
+        out.writeInt(index.blocks.size());
+        for (Block block : index.blocks) {
+            writeKey(out, block.firstKey);
+            out.writeLong(block.offset);
+            out.writeInt(block.length);
+        }
+        if (!index.blocks.isEmpty()) {
+            writeKey(out, index.maxKey);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.toByteArray());
+        out.writeLong(crc.getValue());
+
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            buf.writeTo(fos);
+            fos.getFD().sync();
+        }
+    }
+
+    /**
+     * @return the block index in /file/, or null if it DNE or does
+     *         not check out against a table of /tableSize/ bytes
+     */
+    private static IndexBuilder readIndex(File file, long tableSize) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            if (bytes.length < Long.BYTES) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - Long.BYTES);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            IndexBuilder index = new IndexBuilder();
+            index.size = in.readLong();
+            index.maxSeq = in.readLong();
+            int blocks = in.readInt();
+            if (index.size != tableSize || blocks < 0) {
+                return null;
+            }
+            Block block;
+            for (int i = 0; i < blocks; i++) {
+                block = new Block(readKey(in), in.readLong());
+                block.length = in.readInt();
+                index.blocks.add(block);
+            }
+            if (blocks > 0) {
+                index.minKey = index.blocks.get(0).firstKey;
+                index.maxKey = readKey(in);
+            }
+            if (in.readLong() != crc.getValue()) {
+                return null;
+            }
+            index.keys = null;
+            return index;
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static void writeKey(DataOutputStream out, HashedKey key) throws IOException {
+        byte[] bytes = key.key.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static HashedKey readKey(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new HashedKey(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a new table. Records must be added in HashedKey order.
+     * The table is written to a temporary file and renamed into
+     * place by {@link #finish()}; an unfinished table is discarded
+     * on {@link #close()}.
+     */
+    static class Writer implements Closeable {
+        private File dir;
+        private int level;
+        private int id;
+        private double fpRate;
+        private File tmp;
+        private FileOutputStream fos;
+        private BufferedOutputStream out;
+        private IndexBuilder index;
+
+        Writer(File dir, int level, int id, double fpRate) throws IOException {
+            this.dir = dir;
+            this.level = level;
+            this.id = id;
+            this.fpRate = fpRate;
+            this.tmp = new File(dir, fileName(level, id) + TMP_SUFFIX);
+            this.fos = new FileOutputStream(tmp);
+            this.out = new BufferedOutputStream(fos);
+            this.index = new IndexBuilder();
+        }
+
+        void add(HashedKey key, Record record) throws IOException {
+            byte[] bytes = record.encode();
+            out.write(bytes);
+            index.add(key, record.seq, bytes.length);
+        }
+
+        long size() {
+            return index.size;
+        }
+
+        SSTable finish() throws IOException {
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+
+            /* Bloom filter and index first: a table is never visible without them */
+            BloomFilter bloom = index.buildBloom(fpRate);
+            index.keys = null;
+            bloom.write(new File(dir, bloomFileName(level, id)));
+            writeIndex(new File(dir, indexFileName(level, id)), index);
+
+            File file = new File(dir, fileName(level, id));
+            Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            return new SSTable(file, level, id, index, bloom);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (Objects.nonNull(tmp)) {
+                out.close();
+                tmp.delete();
+            }
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Highest sequence number of any record in the table
+     */
+    long maxSeq() {
+        return maxSeq;
+    }
+
+    HashedKey minKey() {
+        return minKey;
+    }
+
+    HashedKey maxKey() {
+        return maxKey;
+    }
+
+    boolean overlaps(HashedKey min, HashedKey max) {
+        return !blocks.isEmpty() && minKey.compareTo(max) <= 0 && maxKey.compareTo(min) >= 0;
+    }
+
+    /**
+     * Index of the block that would hold /key/: the last block whose
+     * first key is <= /key/, or 0.
+     */
+    private int findBlock(HashedKey key) {
+        int lo = 0, hi = blocks.size() - 1, mid, found = 0;
+        while (lo <= hi) {
+            mid = (lo + hi) >>> 1;
+            if (blocks.get(mid).firstKey.compareTo(key) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the record of /key/ (possibly a tombstone), or null if
+     * the table has no record of /key/
+     */
+    Record get(HashedKey key) throws IOException {
+        if (blocks.isEmpty() || key.compareTo(minKey) < 0 || key.compareTo(maxKey) > 0
+            || !bloom.mightContain(key)) {
+            return null;
+        }
+
+        Block block = blocks.get(findBlock(key));
+        MmapPool.Mapping mapping = MmapPool.acquire(file, channel);
+        if (Objects.nonNull(mapping)) {
+            try {
+                return find(new Record.Reader(mapping.slice(block.offset, block.length)), key);
+            } finally {
+                MmapPool.release(mapping);
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(block.length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, block.offset + buf.position()) < 0) {
+                throw new EOFException(String.format(
+                    "%s: read past end of table at %d", file, block.offset));
+            }
+        }
+        return find(new Record.Reader(new ByteArrayInputStream(buf.array())), key);
+    }
+
+    /**
+     * Scans the records of one block for /key/.
+     */
+    private static Record find(Record.Reader reader, HashedKey key) throws IOException {
+        try {
+            Record record;
+            while ((record = reader.next()) != null) {
+                if (record.key.equals(key.key)) {
+                    return record;
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Cursor over the records with keys >= /from/.
+     */
+    RecordCursor cursor(HashedKey from) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        if (!blocks.isEmpty()) {
+            long offset = blocks.get(findBlock(from)).offset, skipped;
+            while (offset > 0 && (skipped = in.skip(offset)) > 0) {
+                offset -= skipped;
+            }
+        }
+        Record.Reader reader = new Record.Reader(in);
+
+        return new RecordCursor() {
+            private HashedKey key;
+            private Record record;
+
+            @Override
+            public boolean next() throws IOException {
+                while ((record = reader.next()) != null) {
+                    key = new HashedKey(record.key);
+                    if (key.compareTo(from) >= 0) {
+                        return true;
+                    }
+                }
+                key = null;
+                return false;
+            }
+
+            @Override
+            public HashedKey key() {
+                return key;
+            }
+
+            @Override
+            public Record record() {
+                return record;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    /**
+     * Closes and removes the table file.
+     */
+    boolean delete() throws IOException {
+        MmapPool.invalidate(file);
+        channel.close();
+        boolean deleted = file.delete();
+        new File(file.getParentFile(), bloomFileName(level, id)).delete();
+        new File(file.getParentFile(), indexFileName(level, id)).delete();
+        return deleted;
+    }
+
+    void close() throws IOException {
+        MmapPool.invalidate(file);
+        channel.close();
+    }
+}
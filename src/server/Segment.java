@@ -0,0 +1,181 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One append-only file of the log-structured store. Only the active
+ * (newest) segment of a store is ever appended to; once sealed, a
+ * segment is immutable.
+ *
+ * Sealed segments are read through a memory mapping.
+ *
+ * Synchronization is enforced by the owning Disk.
+ */
+class Segment {
+    private static final String PREFIX = "segment_";
+    private static final String SUFFIX = ".log";
+    static final String COMPACT_SUFFIX = ".compact";
+
+    final int id;
+    final File file;
+    /* Written once the segment is sealed, see HintFile */
+    final File hintFile;
+    private FileChannel channel;
+    private long size;
+    private boolean sealed;
+    /* Bytes of records in this segment the KeyDir still points at */
+    private AtomicLong liveBytes;
+
+    Segment(File dir, int id) throws IOException {
+        this.id = id;
+        this.file = new File(dir, fileName(id));
+        this.hintFile = new File(dir, hintFileName(id));
+        this.channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        this.size = channel.size();
+        this.sealed = false;
+        this.liveBytes = new AtomicLong(0);
+    }
+
+    static String fileName(int id) {
+        return String.format("%s%06d%s", PREFIX, id, SUFFIX);
+    }
+
+    static String hintFileName(int id) {
+        return String.format("%s%06d%s", PREFIX, id, HintFile.SUFFIX);
+    }
+
+    /**
+     * Returns the segment id encoded in the file name, or -1 if the
+     * file is not a segment.
+     */
+    static int parseId(String fileName) {
+        if (!fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX)) {
+            return -1;
+        }
+
+        try {
+            return Integer.parseInt(fileName.substring(
+                PREFIX.length(), fileName.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Appends the bytes to the end of the segment.
+     *
+     * @return offset at which the bytes were written
+     */
+    long append(byte[] bytes) throws IOException {
+        assert(!sealed);
+        long offset = size;
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            channel.write(buf, size + buf.position());
+        }
+        size += bytes.length;
+        return offset;
+    }
+
+    /**
+     * Reads /length/ bytes starting at /offset/ with a single
+     * positioned read. Safe to call concurrently.
+     */
+    byte[] read(long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        int n;
+        while (buf.hasRemaining()) {
+            n = channel.read(buf, offset + buf.position());
+            if (n < 0) {
+                throw new EOFException(String.format(
+                    "%s: read past end of segment at %d", file, offset));
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Discards everything from /newSize/ onwards.
+     */
+    void truncate(long newSize) throws IOException {
+        channel.truncate(newSize);
+        size = newSize;
+    }
+
+    /**
+     * Forces all appended bytes to the storage device.
+     */
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Reads and decodes the record at /offset/. Sealed segments are
+     * read straight out of a memory mapping (see MmapPool); the active
+     * segment, which is still growing, with a positioned read.
+     */
+    Record readRecord(long offset, int length) throws IOException {
+        if (sealed) {
+            MmapPool.Mapping mapping = MmapPool.acquire(file, channel);
+            if (Objects.nonNull(mapping)) {
+                try {
+                    return Record.decode(mapping.slice(offset, length));
+                } finally {
+                    MmapPool.release(mapping);
+                }
+            }
+        }
+        return Record.decode(read(offset, length));
+    }
+
+    Record.Reader newReader() throws IOException {
+        return new Record.Reader(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    long size() {
+        return size;
+    }
+
+    long liveBytes() {
+        return liveBytes.get();
+    }
+
+    /* Called under different key stripes, hence atomic */
+    void addLiveBytes(long delta) {
+        liveBytes.addAndGet(delta);
+    }
+
+    void seal() {
+        sealed = true;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    void close() throws IOException {
+        MmapPool.invalidate(file);
+        channel.close();
+    }
+
+    /**
+     * Closes and removes the segment file and its hint file.
+     */
+    boolean delete() throws IOException {
+        close();
+        hintFile.delete();
+        return file.delete();
+    }
+}
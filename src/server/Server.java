@@ -11,6 +11,7 @@ import org.slf4j.LoggerFactory;
 import shared.Pair;
 import logger.LogSetup;
 import org.apache.log4j.Level;
+import shared.messages.CacheReport;
 import shared.messages.KVDataSet;
 import shared.messages.KVMessage;
 import shared.messages.MessageType;
@@ -23,8 +24,6 @@ import java.net.Socket;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 public class Server implements IServer {
     private static Logger logger = LoggerFactory.getLogger(IServer.class);
@@ -35,13 +34,24 @@ public class Server implements IServer {
     private volatile boolean running;
     private KVServerDaemon daemon;
     private ServerMetadata metadata;
-    private Disk disk;
+    private StorageEngine disk;
     private ArrayList<Pair<UUID, KVMessage.StatusType>> primaryPutRequestList;
-    private Map<String, Disk> replicatedDisks;
+    private Map<String, StorageEngine> replicatedDisks;
+    private Compactor compactor;
+    private StorageEngineType storageEngine;
     private Map<String, List<Pair<UUID, KVMessage.StatusType>>> replicatedPutRequestList;
     private List<String> replicas; // Name of ECS nodes that are replicas of this server
+    private static final String DISK_PREFIX = "kv_store";
     private static final String REPLICA_DISK_PREFIX = "replica_kv_store";
     private static final boolean ENABLE_REPLAY_DETECTION = false;
+    /* Bulk transfers are streamed in messages of about this size */
+    private static final int TRANSFER_CHUNK_BYTES = 1024 * 1024; // 1 MB
+    /* Cache capacity in bytes unless the ECS sets one in SERVER_INIT */
+    public static final long DEFAULT_CACHE_MAX_BYTES = Runtime.getRuntime().maxMemory() / 4;
+    private long cacheMaxBytes = DEFAULT_CACHE_MAX_BYTES;
+    /* Write-through cache unless the ECS turns on write-back in SERVER_INIT */
+    public static final boolean DEFAULT_CACHE_WRITE_BACK = false;
+    private boolean cacheWriteBack = DEFAULT_CACHE_WRITE_BACK;
 
     class KVServerDaemon extends Thread {
         Server server;
@@ -64,15 +74,38 @@ public class Server implements IServer {
      * @param strategy specifies the cache replacement strategy in case the cache
      *           is full and there is a GET- or PUT-request on a key that is
      *           currently not contained in the cache. Options are "FIFO", "LRU",
-     *           and "LFU".
+     *           "LFU", "WTinyLFU" and "ARC".
      */
     public Server(int port, int cacheSize, String strategy) {
-        disk = new Disk(String.format("kv_store_%s.txt", UUID.randomUUID().toString()));
+        this(port, cacheSize, strategy, StorageEngineType.LOG.name());
+    }
+
+    /**
+     * @param engine storage engine of the primary and replica stores.
+     *           Options are "LOG" (log-structured, hash indexed) and
+     *           "LSM" (LSM-tree ordered by ring hash).
+     * @see #Server(int, int, String)
+     */
+    public Server(int port, int cacheSize, String strategy, String engine) {
+        /*
+         * Keyed by port so that a restarted server finds its data
+         * again, with the engine that wrote it
+         */
+        disk = StorageEngine.open(StorageEngineType.valueOf(engine),
+            String.format("%s_%d", DISK_PREFIX, port));
+        storageEngine = disk.getType();
+        if (!storageEngine.name().equals(engine)) {
+            logger.warn("Storage {} holds data of {}, ignoring storage engine {}",
+                disk.getName(), storageEngine, engine);
+        }
         replicas = new ArrayList<>();
         primaryPutRequestList = new ArrayList<Pair<UUID, KVMessage.StatusType>>();
-        replicatedDisks = new HashMap<String, Disk>();
+        replicatedDisks = new HashMap<String, StorageEngine>();
         replicatedPutRequestList = new HashMap<>();
-        cache = new DSCache(cacheSize, strategy, disk);
+        cache = new DSCache(cacheSize, cacheMaxBytes, strategy, disk, !cacheWriteBack);
+        compactor = new Compactor();
+        compactor.register(disk);
+        compactor.start();
         this.port = port;
         running = false;
         listener = null;
@@ -119,7 +152,7 @@ public class Server implements IServer {
 
     @Override
     public boolean inStorage(String key){
-        boolean instorage = disk.inStorage(key);
+        boolean instorage = cache.contains(key);
         System.out.println("IN STORAGE? " + key + " " + instorage);
         return instorage;
     }
@@ -138,7 +171,7 @@ public class Server implements IServer {
         }
 
         /* RETURNS NULL IF NOT FOUND */
-        return cache.getKV(key);
+        return cache.get(key);
     }
 
     @Override
@@ -152,8 +185,16 @@ public class Server implements IServer {
     }
 
     public void putKVProd(String key, String value) throws Exception{
+        putKVProd(key, value, 0);
+    }
+
+    /**
+     * @param ttlMillis the pair expires this many ms from now; 0 if
+     *                  it never expires
+     */
+    public void putKVProd(String key, String value, long ttlMillis) throws Exception{
         System.out.printf("PUTKV->REFLECT: %s -> %s\n", key, value);
-        cache.putKV(key, value);
+        cache.putKV(key, value, ttlMillis);
     }
 
     /**
@@ -166,6 +207,16 @@ public class Server implements IServer {
      * @throws Exception
      */
     public KVMessage.StatusType putKVWithStatusCheck(UUID uuid, String key, String value) throws Exception{
+        return putKVWithStatusCheck(uuid, key, value, 0);
+    }
+
+    /**
+     * Same as {@link #putKVWithStatusCheck(UUID, String, String)}, but
+     * the pair (and its replicas) expires /ttlMillis/ ms from now.
+     * @param ttlMillis 0 if the pair never expires
+     */
+    public KVMessage.StatusType putKVWithStatusCheck(UUID uuid, String key, String value,
+                                                     long ttlMillis) throws Exception{
         // Check if the request with 'uuid' was processed last time
         // Even if it has been processed before, the last result was ERROR then try again
         if (ENABLE_REPLAY_DETECTION) {
@@ -187,7 +238,7 @@ public class Server implements IServer {
 
         if (inStorage(key)){
             // key exists in the cache. Either PUT_UPDATE/ERROR or DELETE_SUCCESS/ERROR
-            putKVProd(key, value);
+            putKVProd(key, value, ttlMillis);
 
             // Delete scenario
             if (value == null || value.equals("null") || value.equals("")) {
@@ -198,7 +249,7 @@ public class Server implements IServer {
             }
         }
         else{ // fresh PUT case
-            putKVProd(key, value);
+            putKVProd(key, value, ttlMillis);
             status = KVMessage.StatusType.PUT_SUCCESS;
         }
 
@@ -206,8 +257,8 @@ public class Server implements IServer {
         // Only forward if replicas are known
         if (replicas.get(0) != null && replicas.get(1) !=null) {
             // Forward client's request to the replicas through socket message
-            UnifiedMessage rsp1 = forwardRequestToReplica(this.replicas.get(0), key, value, KVMessage.StatusType.PUT);
-            UnifiedMessage rsp2 = forwardRequestToReplica(this.replicas.get(1), key, value, KVMessage.StatusType.PUT);
+            UnifiedMessage rsp1 = forwardRequestToReplica(this.replicas.get(0), key, value, ttlMillis, KVMessage.StatusType.PUT);
+            UnifiedMessage rsp2 = forwardRequestToReplica(this.replicas.get(1), key, value, ttlMillis, KVMessage.StatusType.PUT);
 
             // Add to the head of the list (Index = 0 -> most recent request)
             primaryPutRequestList.add(0, new Pair<>(uuid, status));
@@ -246,11 +297,12 @@ public class Server implements IServer {
             getHostname(), getPort(),
             primary.getNodeName(), replicatedDisks);
 
-        Disk disk = this.replicatedDisks.get(primary.getNodeName());
+        StorageEngine disk = this.replicatedDisks.get(primary.getNodeName());
         logger.info(disk.getAll().toString());
     }
 
-    public KVMessage.StatusType replicate(String coordinatorName, UUID uuid, String key, String value){
+    public KVMessage.StatusType replicate(String coordinatorName, UUID uuid, String key, String value,
+                                          long ttlMillis){
         // Check if this replicate request has been processed the last time
         List<Pair<UUID, KVMessage.StatusType>> putRequestList;
         putRequestList = replicatedPutRequestList.get(coordinatorName);
@@ -263,8 +315,9 @@ public class Server implements IServer {
             r.getKey() == uuid && !r.getValue().equals(KVMessage.StatusType.PUT_ERROR)
         ).findAny().orElse(null);
 
-        Disk disk = replicatedDisks.get(coordinatorName);
+        StorageEngine disk = replicatedDisks.get(coordinatorName);
         KVMessage.StatusType status;
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
 
         if (disk != null){
             if (disk.inStorage(key)){
@@ -275,12 +328,12 @@ public class Server implements IServer {
                     status =  KVMessage.StatusType.DELETE_SUCCESS;
                 }
                 else {
-                    disk.putKV(key, value);
+                    disk.putKV(key, value, expiresAt);
                     status = KVMessage.StatusType.PUT_UPDATE;
                 }
             }
             else{ // fresh PUT case
-                disk.putKV(key, value);
+                disk.putKV(key, value, expiresAt);
                 status = KVMessage.StatusType.PUT_SUCCESS;
             }
             putRequestList.add(new Pair<>(uuid, status));
@@ -397,14 +450,8 @@ public class Server implements IServer {
         String coordName1 = coordinator1.getNodeName();
         String coordName2 = coordinator2.getNodeName();
 
-        this.replicatedDisks.put(coordName1,
-            new Disk(String.format("%s_%s_%s.txt",
-                REPLICA_DISK_PREFIX, getMetdata().getName(),
-                coordinator1.getNodeName())));
-        this.replicatedDisks.put(coordName2,
-            new Disk(String.format("%s_%s_%s.txt",
-                REPLICA_DISK_PREFIX, getMetdata().getName(),
-                coordinator2.getNodeName())));
+        putReplicatedDisk(coordName1, newReplicaDisk(coordinator1));
+        putReplicatedDisk(coordName2, newReplicaDisk(coordinator2));
 
         // Also initialize putRequestList to keep track of replication requests
         this.replicatedPutRequestList.put(coordName1, new ArrayList<>());
@@ -424,6 +471,15 @@ public class Server implements IServer {
      */
     private UnifiedMessage forwardRequestToReplica(String replicaName, String key, String value,
                                                    KVMessage.StatusType type){
+        return forwardRequestToReplica(replicaName, key, value, 0, type);
+    }
+
+    /**
+     * @param ttlMillis time to live of a forwarded PUT; 0 if the pair
+     *                  never expires
+     */
+    private UnifiedMessage forwardRequestToReplica(String replicaName, String key, String value,
+                                                   long ttlMillis, KVMessage.StatusType type){
         int TIMEOUT = 5 * 1000;
         HashRing ring = this.metadata.getHashRing();
         ECSNode myNode = ring.getServerByName(this.metadata.getName());
@@ -445,17 +501,34 @@ public class Server implements IServer {
                         .withPrimary(myNode)
                         .withKey(key)
                         .withValue(value)
+                        .withTtl(ttlMillis > 0 ? ttlMillis : null)
                         .build();
                     break;
 
                 case REPLICATE:
-                    req = new UnifiedMessage.Builder()
-                        .withMessageType(MessageType.SERVER_TO_SERVER)
-                        .withStatusType(type)
-                        .withPrimary(myNode)
-                        .withDataSet(new KVDataSet(disk.getAll()))
-                        .build();
-                    break;
+                    /*
+                     * Streamed; the replica adds each chunk to its
+                     * store. Stops at the first chunk it fails to add.
+                     */
+                    cache.flush();
+                    try (KVCursor cursor = disk.cursor()) {
+                        KVDataSet chunk = nextChunk(cursor);
+                        do {
+                            req = new UnifiedMessage.Builder()
+                                .withMessageType(MessageType.SERVER_TO_SERVER)
+                                .withStatusType(type)
+                                .withPrimary(myNode)
+                                .withDataSet(chunk)
+                                .build();
+                            resp = module.doRequest(req);
+                            if (resp.getStatusType() != KVMessage.StatusType.SUCCESS) {
+                                throw new Exception(String.format(
+                                    "Replica failed to store data: %s", resp.getStatusType()));
+                            }
+                        } while ((chunk = nextChunk(cursor)).size() > 0);
+                    }
+                    logger.info("Successfully forwarded request to replica " + replicaName);
+                    return resp;
 
                 case UNDO_REPLICATE:
                     req = new UnifiedMessage.Builder()
@@ -607,6 +680,8 @@ public class Server implements IServer {
          * (1) Terminate all connections immediately
          */
         running = false;
+        compactor.shutdown();
+        cache.close();
         try {
             for (ClientConnection conn : connectionStatusTable.values()) {
                 System.out.println("Kill");
@@ -702,43 +777,48 @@ public class Server implements IServer {
     public void moveData(String[] range, ECSNode server) {
         HashRing.HashRange hashRange = new HashRing.HashRange(range);
 
-        List<Pair<String, String>> entries = new ArrayList<>();
-        try {
-            entries = cache.findAndRemove(
-                new Predicate<Pair<String, String>>() {
-                    @Override
-                    public boolean test(Pair<String, String> entry) {
-                        return hashRange.inRange(
-                            new HashRing.Hash(entry.getKey())
-                        );
-                    }
-                }
-            );
-        } catch (Exception e) {
-            logger.error(String.format(
-                "Error MoveData: %s", e.getMessage()), e);
-        }
+        /*
+         * Write back the dirty entries of the cache; the range is
+         * then read off the disk. The cache stays warm: the moved
+         * keys are dropped from it as they are deleted below.
+         */
+        cache.flush();
 
         /*
-         * Move data to another server via socket request
+         * Move data to another server via socket request, one chunk
+         * at a time. A chunk is deleted here only once the other
+         * server has acknowledged it.
          */
         TCPSockModule module = null;
         UnifiedMessage req, resp;
-        try {
+        int moved = 0;
+        try (KVCursor cursor = disk.cursor(hashRange)) {
             module = new TCPSockModule(
                 server.getNodeHost(), server.getNodePort()
             );
 
-            KVDataSet dataSet = new KVDataSet(entries);
-            logger.info("DATA SET TO TRANSFER: " + dataSet.serialize());
-            req = new UnifiedMessage.Builder()
-                .withMessageType(MessageType.SERVER_TO_SERVER)
-                .withStatusType(KVMessage.StatusType.SERVER_MOVEDATA)
-                .withDataSet(dataSet)
-                .build();
+            KVDataSet chunk = nextChunk(cursor);
+            do {
+                req = new UnifiedMessage.Builder()
+                    .withMessageType(MessageType.SERVER_TO_SERVER)
+                    .withStatusType(KVMessage.StatusType.SERVER_MOVEDATA)
+                    .withDataSet(chunk)
+                    .build();
+
+                resp = module.doRequest(req);
+                if (resp.getStatusType() != KVMessage.StatusType.SUCCESS) {
+                    throw new Exception("Receiver failed to store data");
+                }
 
-            resp = module.doRequest(req);
-            logger.info("DATA TRANSFER COMPLETE: " + resp.serialize());
+                List<Pair<String, String>> deletes = new ArrayList<>(chunk.size());
+                for (Pair<String, String> entry : chunk) {
+                    deletes.add(new Pair<>(entry.getKey(), null));
+                }
+                cache.putAll(deletes);
+                moved += chunk.size();
+            } while ((chunk = nextChunk(cursor)).size() > 0);
+
+            logger.info("DATA TRANSFER COMPLETE: {} entries", moved);
         } catch (Exception e) {
             logger.error(String.format(
                 "Unable to send MoveData request: %s",
@@ -750,9 +830,24 @@ public class Server implements IServer {
         }
     }
 
-    public KVDataSet getReplicaDataSet(ECSNode coordinator,
-                                       HashRing.HashRange range) throws Exception {
-        Disk _disk = replicatedDisks.get(coordinator.getNodeName());
+    /**
+     * Takes pairs off /cursor/ until about TRANSFER_CHUNK_BYTES worth
+     * of keys and values is collected. Pairs keep their expiry.
+     *
+     * @return the next chunk; empty once the cursor is exhausted
+     */
+    private static KVDataSet nextChunk(KVCursor cursor) throws IOException {
+        KVDataSet chunk = new KVDataSet();
+        long bytes = 0;
+        while (bytes < TRANSFER_CHUNK_BYTES && cursor.next()) {
+            chunk.addEntry(new Pair<>(cursor.key(), cursor.value()), cursor.expiresAt());
+            bytes += cursor.key().length() + cursor.value().length();
+        }
+        return chunk;
+    }
+
+    private StorageEngine getReplicaDisk(ECSNode coordinator) throws Exception {
+        StorageEngine _disk = replicatedDisks.get(coordinator.getNodeName());
         if (Objects.isNull(_disk)) {
             logger.info("{}:{} - Replica for coordinator={} not found",
                 getHostname(), getPort(),
@@ -762,55 +857,122 @@ public class Server implements IServer {
                 coordinator.getNodeName()));
         }
 
-        List<Pair<String, String>> entries = _disk.getAll();
-        entries = entries.stream().filter(entry -> {
-            return range.inRange(new HashRing.Hash(entry.getKey()));
-        }).collect(Collectors.toList());
-
-        return new KVDataSet(entries);
+        return _disk;
     }
 
-    public void recvData(KVDataSet dataSet) {
+    /**
+     * Stores a chunk of data moved or recovered to this server.
+     *
+     * @throws Exception if the chunk cannot be stored; the sender
+     *         then keeps it
+     */
+    public void recvData(KVDataSet dataSet) throws Exception {
         List<Pair<String, String>> entries = dataSet.getEntries();
         try {
-            for (Pair<String, String> entry : entries) {
-                cache.putKV(entry.getKey(), entry.getValue());
-            }
+            cache.putAll(entries, dataSet.getExpiresAt());
         } catch (Exception e) {
             logger.error(String.format(
                 "Unable to transfer data: %s. Data: %s",
                 e.getMessage(), dataSet.serialize()
             ), e);
+            throw e;
         }
     }
 
-    public void recvReplicatedData(KVDataSet dataSet, ECSNode primary) {
-        dataSet.print("DEBUGGING\n");
+    /**
+     * Adds a chunk of the data of /primary/ to its replica store. A
+     * primary streams its data in several chunks, so the replica
+     * store is only created by the first one.
+     *
+     * @throws Exception if the chunk cannot be stored
+     */
+    public void recvReplicatedData(KVDataSet dataSet, ECSNode primary) throws Exception {
         logger.info("PRIMARY {} {}\n", primary.getNodeName(), primary.getNodePort());
         logger.info("RECEIVER {} {}\n", this.getHostname(), this.getPort());
 
         List<Pair<String, String>> entries = dataSet.getEntries();
-        Disk disk = new Disk((String.format("%s_%s_%s.txt",
-            REPLICA_DISK_PREFIX, getMetdata().getName(),
-            primary.getNodeName())));
+        StorageEngine disk = replicatedDisks.get(primary.getNodeName());
+        if (Objects.isNull(disk)) {
+            disk = newReplicaDisk(primary);
+        }
 
         try {
-            for (Pair<String, String> entry : entries) {
-                disk.putKV(entry.getKey(), entry.getValue());
-                logger.info("INSIDE recvReplicatedData {} {}", entry.getKey(), entry.getValue());
-            }
+            disk.putAll(entries, dataSet.getExpiresAt());
+            logger.debug("INSIDE recvReplicatedData {} entries", entries.size());
         } catch (Exception e) {
             logger.error(String.format(
                 "Unable to transfer data: %s. Data: %s",
                 e.getMessage(), dataSet.serialize()
             ), e);
+            throw e;
+        } finally {
+            putReplicatedDisk(primary.getNodeName(), disk);
+        }
+    }
+
+    /**
+     * Existing replica stores keep the engine that wrote them; new
+     * ones use the engine of the primary store.
+     */
+    private StorageEngine newDisk(String name) {
+        return StorageEngine.open(storageEngine, name);
+    }
+
+    private StorageEngine newReplicaDisk(ECSNode coordinator) {
+        return newDisk(String.format("%s_%s_%s",
+            REPLICA_DISK_PREFIX, getMetdata().getName(),
+            coordinator.getNodeName()));
+    }
+
+    /**
+     * Replaces the primary store with an empty store of /type/, if
+     * the primary store is empty. See initKVServer.
+     */
+    private void switchStorageEngine(StorageEngineType type) {
+        if (type == storageEngine) {
+            return;
+        }
+
+        boolean empty;
+        try (KVCursor cursor = disk.cursor()) {
+            empty = !cursor.next();
+        } catch (IOException e) {
+            empty = false;
         }
-        this.replicatedDisks.put(primary.getNodeName(), disk);
+        if (!empty) {
+            logger.warn("{}:{} - Storage holds data written by {}, not switching to {}",
+                getHostname(), getPort(), storageEngine, type);
+            return;
+        }
+
+        logger.info("{}:{} - Switching storage engine {} -> {}",
+            getHostname(), getPort(), storageEngine, type);
+        compactor.unregister(disk);
+        disk.destroy();
+        storageEngine = type;
+        disk = StorageEngine.create(type, disk.getName());
+        compactor.register(disk);
+    }
+
+    /**
+     * Tracks the replica disk of /coordinatorName/ and hands it to
+     * the compactor in place of the disk it replaces, if any.
+     */
+    private void putReplicatedDisk(String coordinatorName, StorageEngine disk) {
+        StorageEngine old = this.replicatedDisks.put(coordinatorName, disk);
+        if (old == disk) {
+            return;
+        }
+        if (Objects.nonNull(old)) {
+            compactor.unregister(old);
+        }
+        compactor.register(disk);
     }
 
     public void clearReplicatedData(ECSNode primary) {
         String primaryName = primary.getNodeName();
-        Disk primaryDisk = this.replicatedDisks.get(primaryName);
+        StorageEngine primaryDisk = this.replicatedDisks.get(primaryName);
+        compactor.unregister(primaryDisk);
         primaryDisk.clearStorage();
         this.replicatedDisks.remove(primaryName);
         this.replicatedPutRequestList.remove(primaryName);
@@ -831,34 +993,42 @@ public class Server implements IServer {
     }
 
     public KVDataSet getAllData() {
+        cache.flush();
         List<Pair<String, String>> entries = disk.getAll();
         KVDataSet dataSet = new KVDataSet(entries);
-        logger.info("GET ALL DATA: {}", dataSet.print(""));
+        logger.info("GET ALL DATA: {} entries", dataSet.size());
         return dataSet;
     }
 
+    public CacheReport getCacheStats() {
+        CacheReport report = cache.getStats();
+        logger.info("CACHE STATS: hit ratio {}", report.getHitRatio());
+        return report;
+    }
+
     public KVDataSet getReplicaData(ECSNode coordinator) throws Exception {
-        Disk replicaDisk = replicatedDisks.get(coordinator.getNodeName());
+        StorageEngine replicaDisk = replicatedDisks.get(coordinator.getNodeName());
         if (Objects.isNull(replicaDisk)) {
             throw new Exception("Coordinator doesn't exist");
         }
 
         List<Pair<String, String>> entries = replicaDisk.getAll();
         KVDataSet dataSet = new KVDataSet(entries);
-        logger.info("GET ALL REPLICA DATA: {}", dataSet.print(""));
+        logger.info("GET ALL REPLICA DATA: {} entries", dataSet.size());
         return dataSet;
     }
 
     public void replicaRecoverData(ECSNode destination,
                                    ECSNode oldPrimary,
                                    String[] range) throws Exception {
-        KVDataSet dataSet = getReplicaDataSet(oldPrimary,
-            new HashRing.HashRange(range));
+        StorageEngine replicaDisk = getReplicaDisk(oldPrimary);
 
-        try {
+        try (KVCursor cursor = replicaDisk.cursor(new HashRing.HashRange(range))) {
             ECSNode thisServer = metadata.getHashRing().getServerByName(metadata.getName());
-            ServerRequestLib.replicaRecoverData(
-                thisServer, destination, dataSet);
+            KVDataSet chunk = nextChunk(cursor);
+            do {
+                ServerRequestLib.replicaRecoverData(thisServer, destination, chunk);
+            } while ((chunk = nextChunk(cursor)).size() > 0);
         } catch (Exception e) {
             logger.error("Replica could not recover data", e);
             throw e;
@@ -867,8 +1037,48 @@ public class Server implements IServer {
 
     @Override
     public void initKVServer(ServerMetadata metadata, int cacheSize, String cacheStrategy) {
+        initKVServer(metadata, cacheSize, cacheStrategy, null);
+    }
+
+    /**
+     * Same as {@link #initKVServer(ServerMetadata, int, String)}, but
+     * also switches the storage engine to /engine/ (null to keep the
+     * current one).
+     *
+     * The engines store their data in different formats, so the
+     * engine is only switched while the primary store holds no data;
+     * otherwise the server keeps the engine its data was written by.
+     * Replica stores created from now on use the new engine.
+     */
+    @Override
+    public void initKVServer(ServerMetadata metadata, int cacheSize, String cacheStrategy,
+                             String engine) {
+        initKVServer(metadata, cacheSize, cacheStrategy, engine, null);
+    }
+
+    @Override
+    public void initKVServer(ServerMetadata metadata, int cacheSize, String cacheStrategy,
+                             String engine, Long cacheMaxBytes) {
+        initKVServer(metadata, cacheSize, cacheStrategy, engine, cacheMaxBytes, null);
+    }
+
+    @Override
+    public void initKVServer(ServerMetadata metadata, int cacheSize, String cacheStrategy,
+                             String engine, Long cacheMaxBytes, Boolean cacheWriteBack) {
         this.update(metadata);
-        this.cache = new DSCache(cacheSize, cacheStrategy, disk);
+        /* Dirty entries of the old cache go to disk before it is replaced */
+        this.cache.close();
+        if (Objects.nonNull(engine)) {
+            switchStorageEngine(StorageEngineType.valueOf(engine));
+        }
+        if (Objects.nonNull(cacheMaxBytes)) {
+            this.cacheMaxBytes = cacheMaxBytes;
+        }
+        if (Objects.nonNull(cacheWriteBack)) {
+            this.cacheWriteBack = cacheWriteBack;
+        }
+        this.cache = new DSCache(cacheSize, this.cacheMaxBytes, cacheStrategy, disk,
+            !this.cacheWriteBack);
         logger.info("Updated metadata");
 		/*if (metadata.getHashRing().getNumServersOnRing() >= 3) {
 	       		logger.info("More than 3 servers exist. start replication");
@@ -888,14 +1098,15 @@ public class Server implements IServer {
         try {
             new LogSetup(String.format("logs/server-%s.log", args[0]), Level.ALL);
 
-            if(args.length != 3) {
+            if(args.length != 3 && args.length != 4) {
                 System.out.println("Error! Invalid number of arguments!");
-                System.out.println("Usage: Server <port> <cache size> <caching strategy>!");
+                System.out.println("Usage: Server <port> <cache size> <caching strategy> [<storage engine>]!");
             } else {
                 int port = Integer.parseInt(args[0]);
                 int cacheSize = Integer.parseInt(args[1]);
                 String strategy = args[2];
-                new Server(port, cacheSize, strategy);
+                String engine = args.length == 4 ? args[3] : StorageEngineType.LOG.name();
+                new Server(port, cacheSize, strategy, engine);
             }
         } catch (IOException e) {
             System.out.println("Error! Unable to initialize logger!");
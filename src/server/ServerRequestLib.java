@@ -27,7 +27,12 @@ public class ServerRequestLib {
             .withDataSet(dataSet)
             .build();
 
-        send(dest, msg);
+        UnifiedMessage resp = send(dest, msg);
+        if (resp.getStatusType() != KVMessage.StatusType.SUCCESS) {
+            throw new Exception(String.format(
+                "%s failed to store recovered data: %s",
+                dest.getNodeName(), resp.getStatusType()));
+        }
     }
 
     public static Pair<String, String> serverGetKV(HashRing ring,
@@ -49,11 +54,22 @@ public class ServerRequestLib {
 
     public static void serverPutKV(HashRing ring,
                                    Pair<String, String> entry) throws Exception {
+        serverPutKV(ring, entry, 0);
+    }
+
+    /**
+     * @param ttlMillis the entry expires this many ms after it is
+     *                  stored; 0 if it never expires
+     */
+    public static void serverPutKV(HashRing ring,
+                                   Pair<String, String> entry,
+                                   long ttlMillis) throws Exception {
         UnifiedMessage msg = new UnifiedMessage.Builder()
             .withMessageType(MessageType.SERVER_TO_SERVER)
             .withStatusType(KVMessage.StatusType.PUT_DATA)
             .withKey(entry.getKey())
             .withValue(entry.getValue())
+            .withTtl(ttlMillis > 0 ? ttlMillis : null)
             .withUUID(UUID.randomUUID())
             .build();
 
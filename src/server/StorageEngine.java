@@ -0,0 +1,186 @@
+package server;
+
+import ecs.HashRing;
+import shared.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Persistent key-value store of a server: the store under its
+ * DSCache, and each of its replica stores. Engines:
+ *      LOG     {@link Disk}, log-structured segments with an
+ *              in-memory hash index (the legacy engine)
+ *      LSM     {@link LSMDisk}, LSM-tree ordered by ring hash
+ *
+ * The engine of a server is chosen when it starts, or by the ECS in
+ * SERVER_INIT (see {@link IServer.StorageEngineType}). The directory
+ * of a store records its engine (see {@link StoreDir}); a store is
+ * always reopened by the engine that wrote it.
+ *
+ * Implementations are thread safe, create their files on first use,
+ * and keep their data across restarts. A put returns once the pair
+ * is durable, and throws an unchecked exception if it cannot be made
+ * durable.
+ */
+public interface StorageEngine {
+    /**
+     * Returns a new engine of /type/, storing its data in the
+     * directory /name/.
+     *
+     * @throws IllegalStateException if /name/ holds data of another
+     *         engine
+     */
+    static StorageEngine create(IServer.StorageEngineType type, String name) {
+        IServer.StorageEngineType found = detect(name);
+        if (Objects.nonNull(found) && found != type) {
+            throw new IllegalStateException(String.format(
+                "%s holds data of storage engine %s, not %s", name, found, type));
+        }
+        switch (type) {
+            case LSM:
+                return new LSMDisk(name);
+            default:
+                return new Disk(name);
+        }
+    }
+
+    /**
+     * Returns an engine for the directory /name/: of the engine that
+     * wrote its data, or of /type/ if it holds none.
+     */
+    static StorageEngine open(IServer.StorageEngineType type, String name) {
+        IServer.StorageEngineType found = detect(name);
+        return create(Objects.nonNull(found) ? found : type, name);
+    }
+
+    /**
+     * @return engine that wrote the data of the directory /name/, or
+     *         null if it holds none
+     */
+    static IServer.StorageEngineType detect(String name) {
+        try {
+            return StoreDir.detect(new File(name));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot read storage engine of " + name, ex);
+        }
+    }
+
+    /**
+     * @return name of the directory the engine stores its data in
+     */
+    String getName();
+
+    IServer.StorageEngineType getType();
+
+    /**
+     * @return value of /key/, or null if the key DNE or has expired
+     * @throws java.io.UncheckedIOException if the value cannot be read
+     */
+    String getKV(String key);
+
+    /**
+     * Same as {@link #getKV(String)}, but also returns the expiry
+     * time of the value (ms since the epoch, 0 if it never expires).
+     *
+     * @return {value, expiresAt}, or null if the key DNE or has
+     *         expired
+     */
+    Pair<String, Long> getWithExpiry(String key);
+
+    /**
+     * Inserts, updates, or (if /value/ is null) deletes a pair.
+     *
+     * @return true if /key/ existed before the call
+     */
+    default boolean putKV(String key, String value) {
+        return putKV(key, value, 0);
+    }
+
+    /**
+     * Same as {@link #putKV(String, String)}, but the pair expires at
+     * /expiresAt/ (ms since the epoch), after which it reads as DNE.
+     *
+     * @param expiresAt 0 if the pair never expires; ignored for deletes
+     */
+    boolean putKV(String key, String value, long expiresAt);
+
+    /**
+     * @return true if /key/ existed before the call
+     */
+    default boolean deleteKV(String key) {
+        return putKV(key, null);
+    }
+
+    /**
+     * Stores every pair of /entries/. A null value deletes its key.
+     * Later pairs of the same key win.
+     */
+    default void putAll(List<Pair<String, String>> entries) {
+        putAll(entries, null);
+    }
+
+    /**
+     * Same as {@link #putAll(List)}, but the i-th pair expires at
+     * /expiresAt[i]/ (see {@link #putKV(String, String, long)}).
+     *
+     * @param expiresAt null if no pair expires
+     */
+    default void putAll(List<Pair<String, String>> entries, long[] expiresAt) {
+        for (int i = 0; i < entries.size(); i++) {
+            putKV(entries.get(i).getKey(), entries.get(i).getValue(),
+                Objects.nonNull(expiresAt) ? expiresAt[i] : 0);
+        }
+    }
+
+    boolean inStorage(String key);
+
+    /**
+     * Returns a cursor over the live pairs whose key hashes into
+     * /range/ (all pairs if null). Must be closed.
+     */
+    KVCursor cursor(HashRing.HashRange range);
+
+    default KVCursor cursor() {
+        return cursor(null);
+    }
+
+    List<Pair<String, String>> getAll();
+
+    List<Pair<String, String>> getRange(HashRing.HashRange range);
+
+    /**
+     * Removes all data of the engine. The directory stays claimed by
+     * the engine.
+     */
+    void clearStorage();
+
+    /**
+     * Removes all data of the engine and releases its directory to
+     * any engine. The engine must not be used afterwards.
+     */
+    default void destroy() {
+        clearStorage();
+        StoreDir.release(new File(getName()));
+    }
+
+    /*
+     * Maintenance, run by the Compactor thread
+     */
+
+    /**
+     * Reclaims expired keys.
+     * @return number of keys reclaimed
+     */
+    int reapExpired();
+
+    boolean needsCompaction(double minGarbageRatio);
+
+    /**
+     * @param throttle rate limits the compaction; null to run flat out
+     * @return true if anything was compacted
+     */
+    boolean compact(Compactor throttle);
+}
@@ -0,0 +1,181 @@
+package server;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+
+/**
+ * Directory of a StorageEngine, and the parts of opening it that
+ * both engines share.
+ *
+ * The directory names the engine its files were written by in a
+ * marker file:
+ *      <name>/ENGINE       "LOG" or "LSM"
+ *
+ * An engine claims its directory when it opens it, and refuses to
+ * open a directory claimed by the other engine: LOG segments and LSM
+ * write-ahead logs share a file name, and reading one as the other
+ * loses data.
+ *
+ * Directories written before the marker existed are recognized by
+ * their files instead (see detect).
+ */
+final class StoreDir {
+    static final String ENGINE_FILE = "ENGINE";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static Logger logger = Logger.getLogger(StoreDir.class);
+
+    /**
+     * Applies one record of a log being replayed
+     */
+    interface Replay {
+        void apply(Record record, long offset, int length) throws IOException;
+    }
+
+    private StoreDir() {
+    }
+
+    /**
+     * Applies every record of /log/ (a LOG segment or an LSM
+     * write-ahead log) in write order.
+     *
+     * Only the last log of a store was being written when the
+     * process stopped, so only its tail can hold a write torn by a
+     * crash; that is cut off. An unreadable record anywhere else is
+     * corruption: a record that fails its checksum is skipped, and
+     * one whose length cannot be read stops the store from opening.
+     *
+     * @param last true if /log/ is the newest log of the store
+     * @throws IllegalStateException if /log/ is corrupt beyond repair
+     */
+    static void replay(Segment log, boolean last, Replay replay) throws IOException {
+        try (Record.Reader reader = log.newReader()) {
+            Record record;
+            while (true) {
+                while ((record = reader.next()) != null) {
+                    replay.apply(record, reader.recordOffset(), reader.recordLength());
+                }
+                if (!reader.isTruncated()) {
+                    return;
+                }
+
+                if (last) {
+                    logger.warn(String.format("%s: torn record at %d, truncating",
+                        log.file, reader.recordOffset()));
+                    log.truncate(reader.recordOffset());
+                    return;
+                }
+                if (!reader.skipCorrupt()) {
+                    throw new IllegalStateException(String.format(
+                        "%s: unreadable record at %d of a sealed log", log.file, reader.recordOffset()));
+                }
+                logger.error(String.format("%s: corrupt record at %d, skipping it",
+                    log.file, reader.recordOffset()));
+            }
+        }
+    }
+
+    /**
+     * Error of a write to /dir/ to throw to the caller of a put;
+     * puts are not declared to throw checked exceptions.
+     */
+    static RuntimeException writeError(String dir, Exception ex) {
+        if (ex instanceof RuntimeException) {
+            return (RuntimeException) ex;
+        }
+        IOException cause = ex instanceof IOException ? (IOException) ex : new IOException(ex);
+        return new UncheckedIOException("Error writing to " + dir, cause);
+    }
+
+    /**
+     * Error of a read from /dir/ to throw to the caller of a get; a
+     * get that fails must not be taken for a key that DNE.
+     */
+    static RuntimeException readError(String dir, Exception ex) {
+        if (ex instanceof RuntimeException) {
+            return (RuntimeException) ex;
+        }
+        IOException cause = ex instanceof IOException ? (IOException) ex : new IOException(ex);
+        return new UncheckedIOException("Error reading " + dir, cause);
+    }
+
+    /**
+     * @return engine the files of /dir/ were written by, or null if
+     *         /dir/ DNE or holds no data
+     */
+    static IServer.StorageEngineType detect(File dir) throws IOException {
+        File marker = new File(dir, ENGINE_FILE);
+        if (marker.exists()) {
+            String name = new String(Files.readAllBytes(marker.toPath()),
+                StandardCharsets.UTF_8).trim();
+            try {
+                return IServer.StorageEngineType.valueOf(name);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException(String.format("%s: unknown storage engine '%s'", marker, name));
+            }
+        }
+
+        /*
+         * No marker: only LSM writes tables, only LOG writes hint
+         * files. A store holding nothing but logs is taken to be
+         * LOG, the engine every store used before LSM existed.
+         */
+        File[] files = dir.listFiles();
+        if (Objects.isNull(files)) {
+            return null;
+        }
+        boolean logs = false;
+        for (File file : files) {
+            if (file.length() == 0) {
+                continue;
+            }
+            if (Objects.nonNull(SSTable.parseName(file.getName()))) {
+                return IServer.StorageEngineType.LSM;
+            } else if (file.getName().endsWith(HintFile.SUFFIX)) {
+                return IServer.StorageEngineType.LOG;
+            } else if (Segment.parseId(file.getName()) >= 0) {
+                logs = true;
+            }
+        }
+        return logs ? IServer.StorageEngineType.LOG : null;
+    }
+
+    /**
+     * Marks /dir/ as written by /type/, creating it if DNE.
+     *
+     * @throws IllegalStateException if /dir/ holds data of another
+     *         engine
+     */
+    static void claim(File dir, IServer.StorageEngineType type) throws IOException {
+        IServer.StorageEngineType found = detect(dir);
+        if (Objects.nonNull(found) && found != type) {
+            throw new IllegalStateException(String.format(
+                "%s holds data of storage engine %s, not %s", dir, found, type));
+        }
+
+        File marker = new File(dir, ENGINE_FILE);
+        if (marker.exists()) {
+            return;
+        }
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File tmp = new File(dir, ENGINE_FILE + TMP_SUFFIX);
+        Files.write(tmp.toPath(), type.name().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), marker.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the marker of /dir/, so that another engine may claim
+     * it. Assumes the data of /dir/ has been cleared.
+     */
+    static void release(File dir) {
+        new File(dir, ENGINE_FILE).delete();
+    }
+}
@@ -0,0 +1,66 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed set of read-write locks, one of which guards each key,
+ * picked by the hash of the key. Operations on keys that fall into
+ * different stripes never wait for each other.
+ */
+class StripedLock {
+    private final ReadWriteLock[] stripes;
+
+    /**
+     * @param n number of stripes, rounded up to a power of 2
+     */
+    StripedLock(int n) {
+        int size = Integer.highestOneBit(Math.max(1, n - 1)) << 1;
+        stripes = new ReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private int indexOf(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+
+    ReadWriteLock get(String key) {
+        return stripes[indexOf(key)];
+    }
+
+    /**
+     * Write locks the stripes of all /keys/. Stripes are always taken
+     * in index order, so two callers can never deadlock.
+     *
+     * @return the locks taken, to be handed to {@link #unlock(List)}
+     */
+    List<Lock> lockAll(Collection<String> keys) {
+        TreeSet<Integer> indices = new TreeSet<>();
+        for (String key : keys) {
+            indices.add(indexOf(key));
+        }
+
+        List<Lock> locks = new ArrayList<>(indices.size());
+        Lock lock;
+        for (int i : indices) {
+            lock = stripes[i].writeLock();
+            lock.lock();
+            locks.add(lock);
+        }
+        return locks;
+    }
+
+    static void unlock(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+}
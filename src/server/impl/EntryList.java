@@ -0,0 +1,131 @@
+package server.impl;
+
+import server.DSCache.CacheEntry;
+
+import java.util.Objects;
+
+/**
+ * Intrusive doubly linked list of cache entries, threaded through
+ * CacheEntry.prev/next, so that a policy can move or unlink an entry
+ * it holds in O(1) without looking it up. An entry is in at most one
+ * list at a time.
+ *
+ * Not thread safe; the policy using it is only called under the
+ * global lock of DSCache.
+ */
+public class EntryList {
+    private CacheEntry head;
+    private CacheEntry tail;
+    private int size;
+
+    public EntryList() {
+        head = null;
+        tail = null;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the first entry, or null if the list is empty
+     */
+    public CacheEntry first() {
+        return head;
+    }
+
+    /**
+     * @return the last entry, or null if the list is empty
+     */
+    public CacheEntry last() {
+        return tail;
+    }
+
+    public void addFirst(CacheEntry entry) {
+        entry.prev = null;
+        entry.next = head;
+        if (Objects.nonNull(head)) {
+            head.prev = entry;
+        } else {
+            tail = entry;
+        }
+        head = entry;
+        entry.list = this;
+        size++;
+    }
+
+    public void addLast(CacheEntry entry) {
+        entry.prev = tail;
+        entry.next = null;
+        if (Objects.nonNull(tail)) {
+            tail.next = entry;
+        } else {
+            head = entry;
+        }
+        tail = entry;
+        entry.list = this;
+        size++;
+    }
+
+    /**
+     * Unlinks /entry/, if it is in this list.
+     */
+    public void remove(CacheEntry entry) {
+        if (entry.list != this) {
+            return;
+        }
+        if (Objects.nonNull(entry.prev)) {
+            entry.prev.next = entry.next;
+        } else {
+            head = entry.next;
+        }
+        if (Objects.nonNull(entry.next)) {
+            entry.next.prev = entry.prev;
+        } else {
+            tail = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.list = null;
+        size--;
+    }
+
+    public boolean contains(CacheEntry entry) {
+        return entry.list == this;
+    }
+
+    public void moveToFront(CacheEntry entry) {
+        remove(entry);
+        addFirst(entry);
+    }
+
+    /**
+     * @return the last entry, unlinked; null if the list is empty
+     */
+    public CacheEntry removeLast() {
+        CacheEntry last = tail;
+        if (Objects.nonNull(last)) {
+            remove(last);
+        }
+        return last;
+    }
+
+    public void clear() {
+        CacheEntry entry = head, next;
+        while (Objects.nonNull(entry)) {
+            next = entry.next;
+            entry.prev = null;
+            entry.next = null;
+            entry.list = null;
+            entry = next;
+        }
+        head = null;
+        tail = null;
+        size = 0;
+    }
+}
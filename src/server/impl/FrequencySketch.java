@@ -0,0 +1,94 @@
+package server.impl;
+
+/**
+ * Count-Min sketch of how often keys were seen recently, as used by
+ * TinyLFU. Each key maps to one counter in each of DEPTH rows; its
+ * estimate is the smallest of them, which overestimates only when
+ * all of its counters are shared with more frequent keys.
+ *
+ * Counters saturate at MAX_COUNT. Once sampleSize keys have been
+ * recorded, every counter is halved, so the estimates follow the
+ * recent popularity of a key instead of its all-time count.
+ *
+ * Not thread safe; the policy using it is only called under the
+ * global lock of its cache shard.
+ */
+public class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {
+        0x97cb3127, 0xb8f9b3e5, 0x0e7d8f3b, 0x63b4fc61
+    };
+
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param capacity number of entries of the cache the sketch
+     *                 counts keys for
+     */
+    public FrequencySketch(int capacity) {
+        int width = Integer.highestOneBit(Math.max(capacity, 8) - 1) << 1;
+        this.table = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * Math.max(capacity, 1);
+        this.additions = 0;
+    }
+
+    /**
+     * Records one occurrence of /key/.
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        int i;
+        for (int row = 0; row < DEPTH; row++) {
+            i = index(hash, row);
+            if (table[row][i] < MAX_COUNT) {
+                table[row][i]++;
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @return estimated number of recent occurrences of /key/
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, table[row][index(hash, row)]);
+        }
+        return min;
+    }
+
+    /**
+     * Halves every counter.
+     */
+    private void reset() {
+        for (byte[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[row];
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+}
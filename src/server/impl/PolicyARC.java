@@ -0,0 +1,174 @@
+package server.impl;
+
+import server.DSCache;
+import server.DSCache.CacheEntry;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * ARC (Adaptive Replacement Cache, Megiddo and Modha). Entries seen
+ * once are kept in recent (t1), entries seen again in frequent (t2).
+ * Each has a ghost list of the keys it recently evicted, without
+ * their values: ghostRecent (b1) and ghostFrequent (b2).
+ *
+ * target is how many entries recent should hold; evict takes from
+ * recent while it holds more, else from frequent. A miss on a key in
+ * ghostRecent means recent was too small, so target grows; a miss on
+ * a key in ghostFrequent means frequent was, so target shrinks.
+ * Either way the key comes back into frequent. The split between
+ * recency and frequency thereby follows the traffic: scans of keys
+ * read once only churn recent, and a working set read again and
+ * again stays in frequent.
+ *
+ * Only the entries evict picks are remembered in a ghost list;
+ * deleted and invalidated entries are not.
+ */
+public class PolicyARC implements DSCache.Policy {
+    private final int capacity;
+    /* Target size of recent, between 0 and capacity */
+    private int target;
+
+    /* All most recently used first */
+    private EntryList recent = new EntryList();
+    private EntryList frequent = new EntryList();
+    /* Keys only, least recently evicted first */
+    private LinkedHashSet<String> ghostRecent = new LinkedHashSet<>();
+    private LinkedHashSet<String> ghostFrequent = new LinkedHashSet<>();
+
+    /* Last entry picked by evict, which onRemove moves to a ghost list */
+    private CacheEntry victim;
+    /* Key whose ghost hit target was already adapted to by evict */
+    private String adapted;
+
+    /**
+     * @param capacity number of entries of the cache (shard) the
+     *                 policy evicts for
+     */
+    public PolicyARC(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.target = 0;
+    }
+
+    /**
+     * Find the entry to evict for /key/: the least recently used
+     * entry of recent if it holds more than target (or exactly target
+     * and /key/ is a ghost of frequent), else that of frequent.
+     * Assumes synchronization on _cache outside of this function.
+     * Assumes _cache is non-empty.
+     *
+     * This function should always return a non-null value.
+     *
+     * @param _cache The cache
+     * @param key New key to be inserted
+     */
+    @Override
+    public CacheEntry evict(Map<String, CacheEntry> _cache, String key) {
+        assert(_cache.size() != 0);
+
+        if (!key.equals(adapted)) {
+            adapt(key);
+            adapted = key;
+        }
+
+        boolean fromRecent = !recent.isEmpty() && (recent.size() > target
+            || (ghostFrequent.contains(key) && recent.size() == target)
+            || frequent.isEmpty());
+        victim = fromRecent ? recent.last() : frequent.last();
+
+        assert(Objects.nonNull(victim));
+        return victim;
+    }
+
+    @Override
+    public void onInsert(CacheEntry entry) {
+        String key = entry.getKey();
+        if (!key.equals(adapted)) {
+            adapt(key);
+        }
+        adapted = null;
+
+        if (ghostRecent.remove(key) || ghostFrequent.remove(key)) {
+            frequent.addFirst(entry);
+        } else {
+            recent.addFirst(entry);
+        }
+        trimGhosts();
+    }
+
+    @Override
+    public void onAccess(CacheEntry entry) {
+        if (recent.contains(entry)) {
+            recent.remove(entry);
+            frequent.addFirst(entry);
+        } else if (frequent.contains(entry)) {
+            frequent.moveToFront(entry);
+        }
+    }
+
+    @Override
+    public void onRemove(CacheEntry entry) {
+        if (entry == victim) {
+            if (recent.contains(entry)) {
+                ghostRecent.add(entry.getKey());
+            } else if (frequent.contains(entry)) {
+                ghostFrequent.add(entry.getKey());
+            }
+            victim = null;
+        }
+        if (Objects.nonNull(entry.list)) {
+            entry.list.remove(entry);
+        }
+        trimGhosts();
+    }
+
+    /**
+     * target is kept: a flush of the cache does not change the mix
+     * of the traffic.
+     */
+    @Override
+    public void onClear() {
+        recent.clear();
+        frequent.clear();
+        ghostRecent.clear();
+        ghostFrequent.clear();
+        victim = null;
+        adapted = null;
+    }
+
+    /**
+     * Moves target towards the list whose ghost /key/ is in, by the
+     * ratio of the ghost list sizes (at least 1).
+     */
+    private void adapt(String key) {
+        if (ghostRecent.contains(key)) {
+            int delta = Math.max(1, ghostFrequent.size() / ghostRecent.size());
+            target = Math.min(capacity, target + delta);
+        } else if (ghostFrequent.contains(key)) {
+            int delta = Math.max(1, ghostRecent.size() / ghostFrequent.size());
+            target = Math.max(0, target - delta);
+        }
+    }
+
+    /**
+     * Keeps recent plus its ghosts within capacity, and all lists
+     * together within twice the capacity.
+     */
+    private void trimGhosts() {
+        while (!ghostRecent.isEmpty() && recent.size() + ghostRecent.size() > capacity) {
+            removeOldest(ghostRecent);
+        }
+        while (!ghostFrequent.isEmpty() && recent.size() + frequent.size()
+            + ghostRecent.size() + ghostFrequent.size() > 2 * capacity) {
+            removeOldest(ghostFrequent);
+        }
+    }
+
+    private static void removeOldest(LinkedHashSet<String> ghosts) {
+        Iterator<String> it = ghosts.iterator();
+        it.next();
+        it.remove();
+    }
+}
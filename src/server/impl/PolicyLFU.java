@@ -6,7 +6,55 @@ import server.DSCache.CacheEntry;
 import java.util.Map;
 import java.util.Objects;
 
+/**
+ * LFU in O(1): entries are kept in frequency buckets, one list per
+ * access count, and the buckets in a list by ascending count. An
+ * access moves its entry into the next bucket up; evict takes the
+ * least recently used entry of the lowest bucket.
+ *
+ * Counts decay: once the entries have been accessed /decayFactor/
+ * times the number of cached entries, all counts are halved. Keys
+ * that were popular a long time ago then age out instead of staying
+ * pinned, while the relative order of the counts is kept. Halving is
+ * O(n), but only happens every O(n) accesses.
+ */
 public class PolicyLFU implements DSCache.Policy {
+    public static final int DECAY_FACTOR = 10;
+
+    /**
+     * Entries of the same count, most recently used first
+     */
+    private static class Bucket extends EntryList {
+        int freq;
+        Bucket prev;
+        Bucket next;
+
+        Bucket(int freq) {
+            this.freq = freq;
+        }
+    }
+
+    private final int decayFactor;
+    /* Lowest count first */
+    private Bucket lowest;
+    private int size;
+    private long accesses;
+
+    public PolicyLFU() {
+        this(DECAY_FACTOR);
+    }
+
+    /**
+     * @param decayFactor halve the counts every decayFactor * size
+     *                    accesses; 0 to never decay
+     */
+    public PolicyLFU(int decayFactor) {
+        this.decayFactor = decayFactor;
+        this.lowest = null;
+        this.size = 0;
+        this.accesses = 0;
+    }
+
     /**
      * Find the least frequently used entry. Assumes synchronization
      * is enforced on _cache outside of this function. Assumes _cache
@@ -21,22 +69,122 @@ public class PolicyLFU implements DSCache.Policy {
     public CacheEntry evict(Map<String, CacheEntry> _cache, String key) {
         assert(_cache.size() != 0);
 
-        CacheEntry lfu = null;
-        long least = Long.MAX_VALUE;
-        for (DSCache.CacheEntry entry : _cache.values()) {
-            if (Objects.isNull(lfu)) {
-                lfu = entry;
-                least = entry.accessFrequency;
-                continue;
-            }
+        CacheEntry lfu = Objects.nonNull(lowest) ? lowest.last() : null;
+
+        assert(Objects.nonNull(lfu));
+        return lfu;
+    }
+
+    @Override
+    public void onInsert(CacheEntry entry) {
+        if (Objects.isNull(lowest) || lowest.freq != 1) {
+            linkAfter(new Bucket(1), null);
+        }
+        lowest.addFirst(entry);
+        size++;
+        tick();
+    }
+
+    @Override
+    public void onAccess(CacheEntry entry) {
+        Bucket bucket = (Bucket) entry.list;
+        if (Objects.isNull(bucket)) {
+            return;
+        }
+
+        Bucket up = bucket.next;
+        if (Objects.isNull(up) || up.freq != bucket.freq + 1) {
+            up = new Bucket(bucket.freq + 1);
+            linkAfter(up, bucket);
+        }
+        bucket.remove(entry);
+        up.addFirst(entry);
+        if (bucket.isEmpty()) {
+            unlink(bucket);
+        }
+        tick();
+    }
+
+    @Override
+    public void onRemove(CacheEntry entry) {
+        Bucket bucket = (Bucket) entry.list;
+        if (Objects.isNull(bucket)) {
+            return;
+        }
+
+        bucket.remove(entry);
+        if (bucket.isEmpty()) {
+            unlink(bucket);
+        }
+        size--;
+    }
+
+    @Override
+    public void onClear() {
+        for (Bucket bucket = lowest; Objects.nonNull(bucket); bucket = bucket.next) {
+            bucket.clear();
+        }
+        lowest = null;
+        size = 0;
+        accesses = 0;
+    }
+
+    private void tick() {
+        if (decayFactor > 0 && ++accesses >= (long) decayFactor * size) {
+            decay();
+            accesses = 0;
+        }
+    }
 
-            if (entry.accessFrequency < least) {
-                lfu = entry;
-                least = entry.accessFrequency;
+    /**
+     * Halves every count (rounding up, so no count drops to 0).
+     * Buckets whose counts become equal are merged; the entries of
+     * the higher bucket go in front, as if used more recently.
+     */
+    private void decay() {
+        Bucket bucket = lowest, next, last = null;
+        CacheEntry entry;
+        while (Objects.nonNull(bucket)) {
+            next = bucket.next;
+            bucket.freq = (bucket.freq + 1) / 2;
+            if (Objects.nonNull(last) && last.freq == bucket.freq) {
+                while (Objects.nonNull(entry = bucket.removeLast())) {
+                    last.addFirst(entry);
+                }
+                unlink(bucket);
+            } else {
+                last = bucket;
             }
+            bucket = next;
         }
+    }
 
-        assert(Objects.nonNull(lfu));
-        return lfu;
+    /**
+     * Links /bucket/ in after /prev/, or first if /prev/ is null.
+     */
+    private void linkAfter(Bucket bucket, Bucket prev) {
+        bucket.prev = prev;
+        bucket.next = Objects.nonNull(prev) ? prev.next : lowest;
+        if (Objects.nonNull(bucket.next)) {
+            bucket.next.prev = bucket;
+        }
+        if (Objects.nonNull(prev)) {
+            prev.next = bucket;
+        } else {
+            lowest = bucket;
+        }
+    }
+
+    private void unlink(Bucket bucket) {
+        if (Objects.nonNull(bucket.prev)) {
+            bucket.prev.next = bucket.next;
+        } else {
+            lowest = bucket.next;
+        }
+        if (Objects.nonNull(bucket.next)) {
+            bucket.next.prev = bucket.prev;
+        }
+        bucket.prev = null;
+        bucket.next = null;
     }
 }
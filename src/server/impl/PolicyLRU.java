@@ -7,9 +7,14 @@ import java.util.Map;
 import java.util.Objects;
 
 public class PolicyLRU implements DSCache.Policy {
+    /* Most recently used first */
+    private EntryList recency = new EntryList();
+
     /**
-     * Find the oldest entry. Assumes synchronization on _cache
-     * outside of this function. Assumes _cache is non-empty.
+     * Find the oldest entry: the tail of the recency list, which
+     * every access moves its entry to the head of. Assumes
+     * synchronization on _cache outside of this function. Assumes
+     * _cache is non-empty.
      *
      * This function should always return a non-null value.
      *
@@ -20,22 +25,29 @@ public class PolicyLRU implements DSCache.Policy {
     public CacheEntry evict(Map<String, CacheEntry> _cache, String key) {
         assert(_cache.size() != 0);
 
-        CacheEntry oldest = null;
-        long oldestTime = Long.MAX_VALUE;
-        for (CacheEntry entry : _cache.values()) {
-            if (Objects.isNull(oldest)) {
-                oldest = entry;
-                oldestTime = entry.lastAccessed;
-                continue;
-            }
-
-            if (entry.lastAccessed < oldestTime) {
-                oldest = entry;
-                oldestTime = entry.lastAccessed;
-            }
-        }
+        CacheEntry oldest = recency.last();
 
         assert(Objects.nonNull(oldest));
         return oldest;
     }
+
+    @Override
+    public void onInsert(CacheEntry entry) {
+        recency.addFirst(entry);
+    }
+
+    @Override
+    public void onAccess(CacheEntry entry) {
+        recency.moveToFront(entry);
+    }
+
+    @Override
+    public void onRemove(CacheEntry entry) {
+        recency.remove(entry);
+    }
+
+    @Override
+    public void onClear() {
+        recency.clear();
+    }
 }
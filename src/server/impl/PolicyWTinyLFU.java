@@ -0,0 +1,132 @@
+package server.impl;
+
+import server.DSCache;
+import server.DSCache.CacheEntry;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * W-TinyLFU (as in Caffeine). New entries go into a small LRU
+ * admission window (WINDOW_PERCENT of the capacity). An entry pushed
+ * out of the window is only admitted into the main cache if a
+ * FrequencySketch says its key was seen more often recently than the
+ * key the main cache would evict for it; otherwise it is the one
+ * evicted. A scan of keys that are read once therefore only churns
+ * the window, and the working set in the main cache stays.
+ *
+ * The main cache is a segmented LRU: admitted entries start in
+ * probation, and move to protected (PROTECTED_PERCENT of the main
+ * cache) when accessed again. Protected overflows back into
+ * probation, and the main cache evicts from probation first.
+ */
+public class PolicyWTinyLFU implements DSCache.Policy {
+    public static final int WINDOW_PERCENT = 1;
+    public static final int PROTECTED_PERCENT = 80;
+
+    private final int windowMax;
+    private final int protectedMax;
+    private final FrequencySketch sketch;
+
+    /* All most recently used first */
+    private EntryList window = new EntryList();
+    private EntryList probation = new EntryList();
+    private EntryList protect = new EntryList();
+
+    /**
+     * @param capacity number of entries of the cache (shard) the
+     *                 policy evicts for
+     */
+    public PolicyWTinyLFU(int capacity) {
+        this.windowMax = Math.max(1, capacity * WINDOW_PERCENT / 100);
+        this.protectedMax = Math.max(0, capacity - windowMax) * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch(capacity);
+    }
+
+    /**
+     * Picks the entry to make room for /key/, which is about to be
+     * inserted into the window. If the window is full, its least
+     * recently used entry is the candidate for the main cache: it
+     * is admitted (moved to probation) if its key is more frequent
+     * than that of the main cache's victim, which is then evicted;
+     * otherwise the candidate itself is evicted. If the main cache is
+     * empty, as when the byte budget fills up before the window does,
+     * the window evicts its least recently used entry. Assumes
+     * synchronization on _cache outside of this function. Assumes
+     * _cache is non-empty.
+     *
+     * This function should always return a non-null value.
+     *
+     * @param _cache The cache
+     * @param key New key to be inserted
+     */
+    @Override
+    public CacheEntry evict(Map<String, CacheEntry> _cache, String key) {
+        assert(_cache.size() != 0);
+
+        CacheEntry victim = Objects.nonNull(probation.last()) ? probation.last() : protect.last();
+        CacheEntry candidate = window.size() >= windowMax || Objects.isNull(victim)
+            ? window.last() : null;
+
+        CacheEntry evict;
+        if (Objects.isNull(candidate)) {
+            evict = victim;
+        } else if (Objects.isNull(victim)) {
+            evict = candidate;
+        } else if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim.getKey())) {
+            window.remove(candidate);
+            probation.addFirst(candidate);
+            evict = victim;
+        } else {
+            evict = candidate;
+        }
+
+        assert(Objects.nonNull(evict));
+        return evict;
+    }
+
+    @Override
+    public void onInsert(CacheEntry entry) {
+        sketch.increment(entry.getKey());
+        window.addFirst(entry);
+
+        /* Cache not full yet: the window overflows into the main cache */
+        while (window.size() > windowMax) {
+            probation.addFirst(window.removeLast());
+        }
+    }
+
+    @Override
+    public void onAccess(CacheEntry entry) {
+        sketch.increment(entry.getKey());
+        if (window.contains(entry)) {
+            window.moveToFront(entry);
+        } else if (probation.contains(entry)) {
+            probation.remove(entry);
+            protect.addFirst(entry);
+            while (protect.size() > protectedMax) {
+                probation.addFirst(protect.removeLast());
+            }
+        } else if (protect.contains(entry)) {
+            protect.moveToFront(entry);
+        }
+    }
+
+    @Override
+    public void onRemove(CacheEntry entry) {
+        if (Objects.nonNull(entry.list)) {
+            entry.list.remove(entry);
+        }
+    }
+
+    /**
+     * The sketch is kept: a flush of the cache does not change which
+     * keys are popular.
+     */
+    @Override
+    public void onClear() {
+        window.clear();
+        probation.clear();
+        protect.clear();
+    }
+}
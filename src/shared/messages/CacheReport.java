@@ -0,0 +1,256 @@
+package shared.messages;
+
+import com.google.gson.annotations.Expose;
+
+/**
+ * Snapshot of the statistics of the cache of a server (see
+ * DSCache.getStats), as sent to the ECS for SERVER_CACHE_STATS.
+ *
+ * Every get is either a hit or a miss. Misses are answered by the
+ * negative cache, by waiting on a disk read of the key already in
+ * flight (coalesced), or else by a disk read of their own (loads).
+ * loadLatency is a histogram of the loads: bucket i counts those
+ * that took less than 2^(i+1) us (the last bucket, all slower ones).
+ */
+public class CacheReport {
+    public static final int LATENCY_BUCKETS = 24;
+
+    @Expose
+    private String strategy;
+    @Expose
+    private int capacity = 0;
+    @Expose
+    private long maxBytes = 0L;
+    @Expose
+    private int shards = 0;
+    @Expose
+    private boolean writeThrough = true;
+    @Expose
+    private int size = 0;
+    @Expose
+    private long weight = 0L;
+    @Expose
+    private long dirtyBytes = 0L;
+    @Expose
+    private long hits = 0L;
+    @Expose
+    private long misses = 0L;
+    @Expose
+    private long negativeHits = 0L;
+    @Expose
+    private long coalescedMisses = 0L;
+    @Expose
+    private long loads = 0L;
+    @Expose
+    private long loadNanos = 0L;
+    @Expose
+    private long[] loadLatency = new long[LATENCY_BUCKETS];
+    @Expose
+    private long evictions = 0L;
+    @Expose
+    private long writeBacks = 0L;
+
+    public String getStrategy() {
+        return strategy;
+    }
+
+    public CacheReport setStrategy(String strategy) {
+        this.strategy = strategy;
+        return this;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public CacheReport setCapacity(int capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public CacheReport setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public CacheReport setShards(int shards) {
+        this.shards = shards;
+        return this;
+    }
+
+    public boolean isWriteThrough() {
+        return writeThrough;
+    }
+
+    public CacheReport setWriteThrough(boolean writeThrough) {
+        this.writeThrough = writeThrough;
+        return this;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public CacheReport setSize(int size) {
+        this.size = size;
+        return this;
+    }
+
+    public long getWeight() {
+        return weight;
+    }
+
+    public CacheReport setWeight(long weight) {
+        this.weight = weight;
+        return this;
+    }
+
+    public long getDirtyBytes() {
+        return dirtyBytes;
+    }
+
+    public CacheReport setDirtyBytes(long dirtyBytes) {
+        this.dirtyBytes = dirtyBytes;
+        return this;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public CacheReport setHits(long hits) {
+        this.hits = hits;
+        return this;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public CacheReport setMisses(long misses) {
+        this.misses = misses;
+        return this;
+    }
+
+    public long getNegativeHits() {
+        return negativeHits;
+    }
+
+    public CacheReport setNegativeHits(long negativeHits) {
+        this.negativeHits = negativeHits;
+        return this;
+    }
+
+    public long getCoalescedMisses() {
+        return coalescedMisses;
+    }
+
+    public CacheReport setCoalescedMisses(long coalescedMisses) {
+        this.coalescedMisses = coalescedMisses;
+        return this;
+    }
+
+    public long getLoads() {
+        return loads;
+    }
+
+    public CacheReport setLoads(long loads) {
+        this.loads = loads;
+        return this;
+    }
+
+    public long getLoadNanos() {
+        return loadNanos;
+    }
+
+    public CacheReport setLoadNanos(long loadNanos) {
+        this.loadNanos = loadNanos;
+        return this;
+    }
+
+    public long[] getLoadLatency() {
+        return loadLatency;
+    }
+
+    public CacheReport setLoadLatency(long[] loadLatency) {
+        this.loadLatency = loadLatency;
+        return this;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public CacheReport setEvictions(long evictions) {
+        this.evictions = evictions;
+        return this;
+    }
+
+    public long getWriteBacks() {
+        return writeBacks;
+    }
+
+    public CacheReport setWriteBacks(long writeBacks) {
+        this.writeBacks = writeBacks;
+        return this;
+    }
+
+    /**
+     * @return hits / gets; 0 if there were no gets
+     */
+    public double getHitRatio() {
+        long gets = hits + misses;
+        return gets == 0 ? 0 : (double) hits / gets;
+    }
+
+    /**
+     * @return upper bound in us of the load latency of the given
+     *         percentile (0-100), per the histogram; 0 if no loads
+     */
+    public long getLoadLatencyPercentile(double percentile) {
+        long total = 0;
+        for (long count : loadLatency) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100), seen = 0;
+        for (int i = 0; i < loadLatency.length; i++) {
+            seen += loadLatency[i];
+            if (seen >= Math.max(rank, 1)) {
+                return 1L << (i + 1);
+            }
+        }
+        return 1L << loadLatency.length;
+    }
+
+    public String print(String header) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("\n============%s: CACHE===========\n", header));
+        sb.append(String.format("\tStrategy: %s, %s, %d shard(s)\n",
+            strategy, writeThrough ? "write-through" : "write-back", shards));
+        sb.append(String.format("\tEntries: %d / %d\n", size, capacity));
+        sb.append(String.format("\tBytes: %d / %s, dirty: %d\n",
+            weight, maxBytes == 0 ? "no limit" : Long.toString(maxBytes), dirtyBytes));
+        sb.append(String.format("\tHit ratio: %.2f%% (%d hits, %d misses)\n",
+            100 * getHitRatio(), hits, misses));
+        sb.append(String.format("\tMisses: %d negative, %d coalesced, %d loaded\n",
+            negativeHits, coalescedMisses, loads));
+        sb.append(String.format("\tLoad latency: avg %dus, p50 <%dus, p99 <%dus\n",
+            loads == 0 ? 0 : loadNanos / loads / 1000,
+            getLoadLatencyPercentile(50), getLoadLatencyPercentile(99)));
+        sb.append(String.format("\tEvictions: %d, write-backs: %d\n",
+            evictions, writeBacks));
+        return sb.toString();
+    }
+}
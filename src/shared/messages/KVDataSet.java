@@ -19,6 +19,14 @@ public class KVDataSet implements Iterable<Pair<String, String>> {
     @Expose
     private List<Pair<String, String>> entries;
 
+    /*
+     * Expiry (ms since the epoch) of the keys of entries that expire;
+     * null if none does. Keyed by key, so that sorting and merging
+     * entries keeps it.
+     */
+    @Expose
+    private Map<String, Long> expiresAt;
+
     public KVDataSet() {
         /* Default constructor */
         entries = new ArrayList<>();
@@ -51,8 +59,44 @@ public class KVDataSet implements Iterable<Pair<String, String>> {
         this.entries.add(entry);
     }
 
+    /**
+     * Same as {@link #addEntry(Pair)}, but the key of /entry/ expires
+     * at /expiresAt/ (ms since the epoch; 0 if it never expires).
+     */
+    public void addEntry(Pair<String, String> entry, long expiresAt) {
+        addEntry(entry);
+        if (expiresAt != 0) {
+            if (Objects.isNull(this.expiresAt)) {
+                this.expiresAt = new HashMap<>();
+            }
+            this.expiresAt.put(entry.getKey(), expiresAt);
+        }
+    }
+
+    /**
+     * @return expiry of each entry, in the order of getEntries (0 if
+     *         it never expires), or null if no entry expires. See
+     *         server.StorageEngine#putAll(List, long[]).
+     */
+    public long[] getExpiresAt() {
+        if (Objects.isNull(expiresAt) || expiresAt.isEmpty()) {
+            return null;
+        }
+        long[] arr = new long[entries.size()];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = expiresAt.getOrDefault(entries.get(i).getKey(), 0L);
+        }
+        return arr;
+    }
+
     public void merge(KVDataSet other) {
         entries.addAll(other.getEntries());
+        if (Objects.nonNull(other.expiresAt)) {
+            if (Objects.isNull(expiresAt)) {
+                expiresAt = new HashMap<>();
+            }
+            expiresAt.putAll(other.expiresAt);
+        }
     }
 
     public void sortByKeys(boolean ascending) {
@@ -101,15 +145,29 @@ public class KVDataSet implements Iterable<Pair<String, String>> {
         return entries.size();
     }
 
+    /**
+     * A data set without expiring entries is written as the bare list
+     * of its entries, the format of data sets before expiry existed.
+     */
     public String serialize() {
-        String str = KVDATA_GSON.toJson(entries);
+        String str = Objects.isNull(expiresAt) || expiresAt.isEmpty()
+            ? KVDATA_GSON.toJson(entries)
+            : KVDATA_GSON.toJson(this);
         return Base64.getEncoder().encodeToString(str.getBytes());
     }
 
     public KVDataSet deserialize(String b64str) {
         String json = new String(Base64.getDecoder().decode(b64str));
+        if (json.trim().startsWith("{")) {
+            KVDataSet other = KVDATA_GSON.fromJson(json, KVDataSet.class);
+            this.entries = other.entries;
+            this.expiresAt = other.expiresAt;
+            return this;
+        }
+
         Type type = new TypeToken<List<Pair<String, String>>>() {}.getType();
         this.entries = KVDATA_GSON.fromJson(json, type);
+        this.expiresAt = null;
 
         return this;
     }
@@ -51,11 +51,21 @@ public class UnifiedMessage implements KVMessage {
         @Expose
         Integer cacheSize;
         @Expose
+        String storageEngine;
+        @Expose
+        Long cacheMaxBytes;
+        @Expose
+        Boolean cacheWriteBack;
+        @Expose
         String message;
         @Expose
         String[] keys;
         @Expose
         MRReport mrReport;
+        @Expose
+        CacheReport cacheReport;
+        @Expose
+        Long ttl;
 
         __Serialized__(UUID uuid,
                        MessageType messageType,
@@ -70,9 +80,14 @@ public class UnifiedMessage implements KVMessage {
                        ECSNode primary,
                        String cacheStrategy,
                        Integer cacheSize,
+                       String storageEngine,
+                       Long cacheMaxBytes,
+                       Boolean cacheWriteBack,
                        String message,
                        String[] keys,
-                       MRReport mrReport) {
+                       MRReport mrReport,
+                       CacheReport cacheReport,
+                       Long ttl) {
             this.uuid = uuid;
             this.messageType = messageType;
             this.statusType = statusType;
@@ -86,9 +101,14 @@ public class UnifiedMessage implements KVMessage {
             this.primary = primary;
             this.cacheStrategy = cacheStrategy;
             this.cacheSize = cacheSize;
+            this.storageEngine = storageEngine;
+            this.cacheMaxBytes = cacheMaxBytes;
+            this.cacheWriteBack = cacheWriteBack;
             this.message = message;
             this.keys = keys;
             this.mrReport = mrReport;
+            this.cacheReport = cacheReport;
+            this.ttl = ttl;
         }
     }
 
@@ -108,11 +128,18 @@ public class UnifiedMessage implements KVMessage {
     @Expose private ECSNode primary;
     @Expose private String cacheStrategy;
     @Expose private Integer cacheSize;
+    @Expose private String storageEngine;
+    @Expose private Long cacheMaxBytes;
+    @Expose private Boolean cacheWriteBack;
 
     @Expose private String message;
 
     @Expose private String[] keys;
     @Expose private MRReport mrReport;
+    @Expose private CacheReport cacheReport;
+
+    /* Time to live of a PUT in ms; null if the pair never expires */
+    @Expose private Long ttl;
     ////////////////////////////////////////////////////////////////////
 
     public static class Builder {
@@ -187,6 +214,21 @@ public class UnifiedMessage implements KVMessage {
             return this;
         }
 
+        public Builder withStorageEngine(String storageEngine) {
+            object.storageEngine = storageEngine;
+            return this;
+        }
+
+        public Builder withCacheMaxBytes(Long cacheMaxBytes) {
+            object.cacheMaxBytes = cacheMaxBytes;
+            return this;
+        }
+
+        public Builder withCacheWriteBack(Boolean cacheWriteBack) {
+            object.cacheWriteBack = cacheWriteBack;
+            return this;
+        }
+
         public Builder withMessage(String message) {
             object.message = message;
             return this;
@@ -202,6 +244,16 @@ public class UnifiedMessage implements KVMessage {
             return this;
         }
 
+        public Builder withCacheReport(CacheReport cacheReport) {
+            object.cacheReport = cacheReport;
+            return this;
+        }
+
+        public Builder withTtl(Long ttl) {
+            object.ttl = ttl;
+            return this;
+        }
+
         public UnifiedMessage build() {
             return object;
         }
@@ -222,9 +274,14 @@ public class UnifiedMessage implements KVMessage {
             Objects.nonNull(primary) ? primary : null,
             Objects.nonNull(cacheStrategy) ? cacheStrategy : null,
             Objects.nonNull(cacheSize) ? cacheSize : null,
+            storageEngine,
+            cacheMaxBytes,
+            cacheWriteBack,
             Objects.nonNull(message) ? message: null,
             keys,
-            Objects.nonNull(mrReport) ? mrReport : null
+            Objects.nonNull(mrReport) ? mrReport : null,
+            cacheReport,
+            ttl
         );
 
         String str = UNIFIED_GSON.toJson(s);
@@ -246,9 +303,14 @@ public class UnifiedMessage implements KVMessage {
         this.primary = s.primary;
         this.cacheStrategy = s.cacheStrategy;
         this.cacheSize = s.cacheSize;
+        this.storageEngine = s.storageEngine;
+        this.cacheMaxBytes = s.cacheMaxBytes;
+        this.cacheWriteBack = s.cacheWriteBack;
         this.message = s.message;
         this.keys = s.keys;
         this.mrReport = s.mrReport;
+        this.cacheReport = s.cacheReport;
+        this.ttl = s.ttl;
 
         if (Objects.nonNull(s.metadata)) {
             this.metadata = new ServerMetadataImpl().deserialize(s.metadata);
@@ -384,6 +446,33 @@ public class UnifiedMessage implements KVMessage {
         return this;
     }
 
+    public String getStorageEngine() {
+        return storageEngine;
+    }
+
+    public UnifiedMessage setStorageEngine(String storageEngine) {
+        this.storageEngine = storageEngine;
+        return this;
+    }
+
+    public Long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public UnifiedMessage setCacheMaxBytes(Long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+        return this;
+    }
+
+    public Boolean getCacheWriteBack() {
+        return cacheWriteBack;
+    }
+
+    public UnifiedMessage setCacheWriteBack(Boolean cacheWriteBack) {
+        this.cacheWriteBack = cacheWriteBack;
+        return this;
+    }
+
     public String getMessage() {
         return message;
     }
@@ -420,6 +509,24 @@ public class UnifiedMessage implements KVMessage {
         return this;
     }
 
+    public CacheReport getCacheReport() {
+        return cacheReport;
+    }
+
+    public UnifiedMessage setCacheReport(CacheReport cacheReport) {
+        this.cacheReport = cacheReport;
+        return this;
+    }
+
+    public Long getTtl() {
+        return ttl;
+    }
+
+    public UnifiedMessage setTtl(Long ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
     @Override
     public String toString() {
         return PRINT_UNIFIED_GSON.toJson(this);
@@ -1,16 +1,27 @@
 package testing;
 
+import ecs.ECSNode;
 import server.DSCache;
 import server.Disk;
+import server.Server;
 import client.KVStore;
 import org.junit.Rule;
 import org.junit.Test;
 
 import junit.framework.TestCase;
 import org.junit.rules.Timeout;
+import shared.Pair;
+import shared.messages.CacheReport;
 import shared.messages.KVMessage;
+import shared.messages.MessageType;
+import shared.messages.UnifiedMessage;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AdditionalTest extends TestCase {
 
@@ -26,7 +37,7 @@ public class AdditionalTest extends TestCase {
 
 	public void setUp() {
 		kvClient = new KVStore("localhost", 50000);
-		disk = new Disk("test.txt");
+		disk = new Disk("test_kv_store");
 		try {
 			kvClient.connect();
 		} catch (Exception e) {
@@ -36,6 +47,8 @@ public class AdditionalTest extends TestCase {
 	public void tearDown() {
 		kvClient.disconnect();
 		disk.clearStorage();
+		TestStores.delete("test_kv_store");
+		TestStores.delete("test_slow_kv_store");
 	}
 
 	@Test
@@ -211,6 +224,42 @@ public class AdditionalTest extends TestCase {
 		assertEquals(dsCache.getKV("4"), "6531077644");
 	}
 
+	@Test
+	public void testCacheLRUUpdateAndDelete() throws Exception {
+		DSCache dsCache = new DSCache(3, "LRU", disk);
+		dsCache.putKV("1", "a");
+		dsCache.putKV("2", "b");
+		dsCache.putKV("3", "c");
+
+		/*
+		 * An update counts as a use, and a deleted entry frees its
+		 * slot: "1" is now the most recently used, "2" is gone.
+		 */
+		dsCache.putKV("1", "aa");
+		dsCache.putKV("2", null);
+		dsCache.putKV("4", "d"); // fills the free slot
+		dsCache.putKV("5", "e"); // should evict "3"
+
+		assertTrue(!dsCache.inCache("3"));
+		assertTrue(dsCache.inCache("1"));
+		assertTrue(dsCache.inCache("4"));
+		assertTrue(dsCache.inCache("5"));
+
+		/* Reloading from disk evicts the least recently used again */
+		assertEquals(dsCache.getKV("3"), "c"); // should evict "1"
+		assertTrue(!dsCache.inCache("1"));
+
+		/* After a flush, the cache fills up and evicts as before */
+		dsCache.clearCache(false);
+		for (int i = 0; i < 100; i++) {
+			dsCache.putKV("k" + i, Integer.toString(i));
+		}
+		assertTrue(dsCache.inCache("k99"));
+		assertTrue(dsCache.inCache("k97"));
+		assertTrue(!dsCache.inCache("k96"));
+		assertEquals(dsCache.getKV("k0"), "0");
+	}
+
 	@Test
 	public void testCacheFIFO() throws Exception {
 		DSCache dsCache = new DSCache(4, "FIFO", disk);
@@ -351,6 +400,457 @@ public class AdditionalTest extends TestCase {
 		assertEquals(dsCache.getKV("4"), "6531077644");
 	}
 
+	@Test
+	public void testCacheLFUDecay() throws Exception {
+		DSCache dsCache = new DSCache(2, "LFU", disk);
+
+		/*
+		 * "old" is hot first, then "new" takes over. Without decay
+		 * "old" would stay pinned on its 100 accesses; with counts
+		 * halved periodically, "new" overtakes it and "old" is the
+		 * one evicted.
+		 */
+		dsCache.putKV("old", "1");
+		for (int i = 0; i < 100; i++) {
+			dsCache.getKV("old");
+		}
+		dsCache.putKV("new", "2");
+		for (int i = 0; i < 60; i++) {
+			dsCache.getKV("new");
+		}
+
+		dsCache.putKV("next", "3"); // should evict "old"
+
+		assertTrue(!dsCache.inCache("old"));
+		assertTrue(dsCache.inCache("new"));
+		assertTrue(dsCache.inCache("next"));
+		assertEquals(dsCache.getKV("old"), "1");
+	}
+
+	@Test
+	public void testCacheWTinyLFU() throws Exception {
+		DSCache dsCache = new DSCache(100, "WTinyLFU", disk);
+
+		// Working set: 50 keys, each read a few times
+		for (int i = 0; i < 50; i++) {
+			dsCache.putKV("hot" + i, "h" + i);
+		}
+		for (int round = 0; round < 4; round++) {
+			for (int i = 0; i < 50; i++) {
+				assertEquals(dsCache.getKV("hot" + i), "h" + i);
+			}
+		}
+
+		/*
+		 * A one-off scan of 500 keys that are only on disk. Under LRU
+		 * it would flush the whole working set; here the scanned keys
+		 * are not admitted past the window, as they are seen once.
+		 */
+		for (int i = 0; i < 500; i++) {
+			disk.putKV("scan" + i, "s" + i);
+		}
+		for (int i = 0; i < 500; i++) {
+			assertEquals(dsCache.getKV("scan" + i), "s" + i);
+		}
+
+		for (int i = 0; i < 50; i++) {
+			assertTrue(dsCache.inCache("hot" + i));
+		}
+		assertTrue(dsCache.getAll().size() <= 100);
+		assertTrue(dsCache.inCache("scan499"));
+	}
+
+	@Test
+	public void testCacheARC() throws Exception {
+		DSCache dsCache = new DSCache(100, "ARC", disk);
+
+		// Working set: 50 keys, each read a few times
+		for (int i = 0; i < 50; i++) {
+			dsCache.putKV("hot" + i, "h" + i);
+		}
+		for (int round = 0; round < 4; round++) {
+			for (int i = 0; i < 50; i++) {
+				assertEquals(dsCache.getKV("hot" + i), "h" + i);
+			}
+		}
+
+		/* A one-off scan only churns the entries seen once */
+		for (int i = 0; i < 500; i++) {
+			disk.putKV("scan" + i, "s" + i);
+		}
+		for (int i = 0; i < 500; i++) {
+			assertEquals(dsCache.getKV("scan" + i), "s" + i);
+		}
+		for (int i = 0; i < 50; i++) {
+			assertTrue(dsCache.inCache("hot" + i));
+		}
+
+		/*
+		 * Scanned keys that were just evicted are read again: their
+		 * ghosts make the cache favour recency, and they are kept
+		 * over the working set that is no longer read.
+		 */
+		for (int round = 0; round < 2; round++) {
+			for (int i = 400; i < 450; i++) {
+				assertEquals(dsCache.getKV("scan" + i), "s" + i);
+			}
+		}
+		for (int i = 400; i < 450; i++) {
+			assertTrue(dsCache.inCache("scan" + i));
+		}
+		assertTrue(dsCache.getAll().size() <= 100);
+	}
+
+	@Test
+	public void testCacheByteCapacity() throws Exception {
+		char[] chars = new char[100];
+		Arrays.fill(chars, 'x');
+		String value = new String(chars);
+		long entryBytes = DSCache.weigh("k10", value);
+		DSCache dsCache = new DSCache(1000, 10 * entryBytes, "LRU", disk);
+
+		/*
+		 * The entry count allows 1000 entries, but the byte budget
+		 * only 10 of these: the least recently used are evicted to
+		 * stay within it.
+		 */
+		for (int i = 10; i < 30; i++) {
+			dsCache.putKV("k" + i, value);
+		}
+		assertTrue(dsCache.getCacheWeight() <= dsCache.getCacheMaxBytes());
+		assertEquals(dsCache.getAll().size(), 10);
+		assertTrue(!dsCache.inCache("k19"));
+		assertTrue(dsCache.inCache("k20"));
+
+		/* One heavy entry makes room for itself by evicting several */
+		chars = new char[400];
+		Arrays.fill(chars, 'y');
+		String heavy = new String(chars);
+		dsCache.putKV("heavy", heavy);
+		assertTrue(dsCache.inCache("heavy"));
+		assertTrue(dsCache.getCacheWeight() <= dsCache.getCacheMaxBytes());
+		assertTrue(dsCache.getAll().size() < 10);
+
+		/* A value larger than the whole cache is stored, not cached */
+		chars = new char[10000];
+		Arrays.fill(chars, 'z');
+		String huge = new String(chars);
+		dsCache.putKV("huge", huge);
+		assertTrue(!dsCache.inCache("huge"));
+		assertEquals(dsCache.getKV("huge"), huge);
+		assertTrue(!dsCache.inCache("huge"));
+		assertEquals(dsCache.getKV("k10"), value);
+	}
+
+	@Test
+	public void testCacheByteCapacityUpdate() throws Exception {
+		char[] chars = new char[100];
+		Arrays.fill(chars, 'x');
+		String value = new String(chars);
+		long entryBytes = DSCache.weigh("k10", value);
+		DSCache dsCache = new DSCache(1000, 10 * entryBytes, "LRU", disk, false, 1);
+
+		for (int i = 10; i < 20; i++) {
+			dsCache.putKV("k" + i, value);
+		}
+
+		/* An update that grows an entry evicts others to stay within budget */
+		chars = new char[400];
+		Arrays.fill(chars, 'y');
+		String heavy = new String(chars);
+		dsCache.putKV("k19", heavy);
+		assertTrue(dsCache.inCache("k19"));
+		assertTrue(dsCache.getCacheWeight() <= dsCache.getCacheMaxBytes());
+		assertTrue(!dsCache.inCache("k10"));
+		assertEquals(dsCache.getKV("k10"), value);
+
+		/* An update larger than the whole cache is stored, not cached */
+		chars = new char[10000];
+		Arrays.fill(chars, 'z');
+		String huge = new String(chars);
+		dsCache.putKV("k18", huge);
+		assertTrue(!dsCache.inCache("k18"));
+		assertTrue(dsCache.getCacheWeight() <= dsCache.getCacheMaxBytes());
+		assertEquals(disk.getKV("k18"), huge);
+		assertEquals(dsCache.getKV("k18"), huge);
+	}
+
+	@Test
+	public void testCacheWTinyLFUByteCapacity() throws Exception {
+		char[] chars = new char[1000];
+		Arrays.fill(chars, 'x');
+		String value = new String(chars);
+		long entryBytes = DSCache.weigh("k10", value);
+		DSCache dsCache = new DSCache(1000, 5 * entryBytes, "WTinyLFU", disk, true, 1);
+
+		/*
+		 * The byte budget fills up before the admission window (10
+		 * entries) does, so the main cache is still empty when room
+		 * must be made: the window evicts instead.
+		 */
+		for (int i = 10; i < 30; i++) {
+			dsCache.putKV("k" + i, value);
+		}
+		assertTrue(dsCache.getCacheWeight() <= dsCache.getCacheMaxBytes());
+		assertEquals(dsCache.getAll().size(), 5);
+		assertTrue(dsCache.inCache("k29"));
+		assertEquals(dsCache.getKV("k10"), value);
+	}
+
+	@Test
+	public void testCacheWriteBack() throws Exception {
+		DSCache dsCache = new DSCache(100, "LRU", disk, false);
+
+		/* Puts are acknowledged once cached; disk catches up later */
+		for (int i = 0; i < 10; i++) {
+			dsCache.putKV("wb" + i, "v" + i);
+		}
+		for (int i = 0; i < 5; i++) {
+			dsCache.putKV("wb0", "u" + i);
+		}
+		assertTrue(!disk.inStorage("wb0"));
+		assertTrue(dsCache.getDirtyWeight() > 0);
+		assertEquals(dsCache.getKV("wb0"), "u4");
+		/* Keys that are only cached still exist */
+		assertTrue(dsCache.contains("wb0"));
+		assertTrue(!dsCache.contains("missing"));
+
+		/* The updates of wb0 reach disk as its last value */
+		dsCache.flush();
+		assertEquals(dsCache.getDirtyWeight(), 0);
+		assertEquals(disk.getKV("wb0"), "u4");
+		for (int i = 1; i < 10; i++) {
+			assertEquals(disk.getKV("wb" + i), "v" + i);
+		}
+
+		/* The flusher writes what has been dirty for long enough */
+		dsCache.putKV("aged", "a");
+		Thread.sleep(DSCache.WRITE_BACK_MAX_AGE_MS + 500);
+		assertEquals(disk.getKV("aged"), "a");
+
+		/* Deletes are not deferred */
+		dsCache.putKV("wb1", null);
+		assertTrue(!disk.inStorage("wb1"));
+		assertTrue(!dsCache.contains("wb1"));
+		assertTrue(dsCache.contains("wb2"));
+
+		dsCache.putKV("closed", "c");
+		dsCache.close();
+		assertEquals(disk.getKV("closed"), "c");
+	}
+
+	@Test
+	public void testCacheNegativeLookup() throws Exception {
+		DSCache dsCache = new DSCache(100, "LRU", disk);
+		assertNull(dsCache.get("missing"));
+
+		/* A repeated miss is answered from memory, not from disk */
+		disk.putKV("missing", "behind the cache");
+		assertNull(dsCache.get("missing"));
+
+		/* Writes through the cache forget the miss */
+		dsCache.putKV("missing", "found");
+		assertEquals(dsCache.get("missing"), "found");
+		dsCache.putKV("missing", null);
+		assertNull(dsCache.get("missing"));
+
+		dsCache.get("polled");
+		List<Pair<String, String>> batch = new ArrayList<>();
+		batch.add(new Pair<>("polled", "result"));
+		dsCache.putAll(batch);
+		assertEquals(dsCache.get("polled"), "result");
+
+		Exception ex = null;
+		try {
+			dsCache.getKV("missing");
+		} catch (Exception e) {
+			ex = e;
+		}
+		assertNotNull(ex);
+	}
+
+	@Test
+	public void testCacheReadErrorNotCached() throws Exception {
+		DSCache dsCache = new DSCache(100, "LRU", disk);
+		disk.putKV("unreadable", "checksummed value");
+
+		/* Corrupt the value on disk: its record fails the checksum */
+		File segment = null;
+		byte[] bytes = null;
+		int at = -1;
+		for (File file : Objects.requireNonNull(new File("test_kv_store").listFiles())) {
+			if (file.getName().endsWith(".log")) {
+				bytes = Files.readAllBytes(file.toPath());
+				at = new String(bytes, "ISO-8859-1").indexOf("checksummed value");
+				if (at >= 0) {
+					segment = file;
+					break;
+				}
+			}
+		}
+		assertNotNull(segment);
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.seek(at);
+			raf.write('C');
+		}
+
+		/* A read error is an error, every time; not a miss */
+		for (int i = 0; i < 2; i++) {
+			Exception ex = null;
+			try {
+				dsCache.getKV("unreadable");
+			} catch (Exception e) {
+				ex = e;
+			}
+			assertNotNull(ex);
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.seek(at);
+			raf.write(bytes[at]);
+		}
+		assertEquals(dsCache.getKV("unreadable"), "checksummed value");
+	}
+
+	@Test
+	public void testCacheSingleFlightMiss() throws Exception {
+		AtomicInteger reads = new AtomicInteger(0);
+		Disk slowDisk = new Disk("test_slow_kv_store") {
+			@Override
+			public Pair<String, Long> getWithExpiry(String key) {
+				reads.incrementAndGet();
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+				}
+				return super.getWithExpiry(key);
+			}
+		};
+
+		try {
+			DSCache dsCache = new DSCache(100, "LRU", slowDisk);
+			slowDisk.putKV("herd", "value");
+
+			/* Concurrent misses of a key cost one disk read */
+			List<Thread> threads = new ArrayList<>();
+			List<String> results = Collections.synchronizedList(new ArrayList<>());
+			for (int i = 0; i < 8; i++) {
+				threads.add(new Thread(() -> {
+					try {
+						results.add(dsCache.get("herd"));
+					} catch (Exception e) {
+						results.add(e.getMessage());
+					}
+				}));
+			}
+			for (Thread t : threads) {
+				t.start();
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			assertEquals(reads.get(), 1);
+			assertEquals(results.size(), 8);
+			for (String result : results) {
+				assertEquals(result, "value");
+			}
+
+			/* A load overtaken by a delete does not cache the old value */
+			slowDisk.putKV("gone", "old");
+			Thread loader = new Thread(() -> {
+				try {
+					dsCache.get("gone");
+				} catch (Exception e) {
+				}
+			});
+			loader.start();
+			Thread.sleep(100);
+			dsCache.putKV("gone", null);
+			loader.join();
+			assertNull(dsCache.get("gone"));
+		} finally {
+			slowDisk.clearStorage();
+		}
+	}
+
+	@Test
+	public void testCacheStats() throws Exception {
+		DSCache dsCache = new DSCache(2, "LRU", disk);
+		dsCache.putKV("s1", "v1");
+		assertEquals(dsCache.getKV("s1"), "v1");       // hit
+		assertNull(dsCache.get("nope"));               // load
+		assertNull(dsCache.get("nope"));               // negative hit
+		disk.putKV("cold", "c");
+		assertEquals(dsCache.getKV("cold"), "c");      // load
+		dsCache.putKV("s2", "v2");                     // evicts s1
+
+		CacheReport report = dsCache.getStats();
+		assertEquals(report.getHits(), 1);
+		assertEquals(report.getMisses(), 3);
+		assertEquals(report.getNegativeHits(), 1);
+		assertEquals(report.getLoads(), 2);
+		assertEquals(report.getEvictions(), 1);
+		assertEquals(report.getSize(), 2);
+		assertEquals(report.getCapacity(), 2);
+		assertEquals(report.getHitRatio(), 0.25, 1e-9);
+		long loads = 0;
+		for (long count : report.getLoadLatency()) {
+			loads += count;
+		}
+		assertEquals(loads, 2);
+		assertTrue(report.getLoadLatencyPercentile(99) > 0);
+
+		/* Sent to the ECS in the admin response */
+		UnifiedMessage msg = new UnifiedMessage.Builder()
+			.withMessageType(MessageType.SERVER_TO_ECS)
+			.withStatusType(KVMessage.StatusType.SUCCESS)
+			.withCacheReport(report)
+			.build();
+		CacheReport received = new UnifiedMessage().deserialize(msg.serialize()).getCacheReport();
+		assertEquals(received.getStrategy(), "LRU");
+		assertEquals(received.getHits(), 1);
+		assertEquals(received.getLoads(), 2);
+		assertEquals(received.getHitRatio(), 0.25, 1e-9);
+	}
+
+	@Test
+	public void testShardedCache() throws Exception {
+		DSCache dsCache = new DSCache(2048, "LRU", disk, true, 4);
+		assertEquals(dsCache.getShardCount(), 4);
+
+		/*
+		 * Readers and writers on every shard at once; the cache stays
+		 * within its capacity, and every value is readable back.
+		 */
+		List<Thread> threads = new ArrayList<>();
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		for (int t = 0; t < 4; t++) {
+			final int base = t * 1000;
+			Thread thread = new Thread(() -> {
+				try {
+					for (int i = base; i < base + 1000; i++) {
+						dsCache.putKV(Integer.toString(i), "v" + i);
+						assertEquals(dsCache.getKV(Integer.toString(base)), "v" + base);
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		assertTrue(dsCache.getAll().size() <= 2048);
+		for (int i = 0; i < 4000; i += 7) {
+			assertEquals(dsCache.getKV(Integer.toString(i)), "v" + i);
+		}
+		assertTrue(dsCache.getAll().size() <= 2048);
+	}
+
 	@Test
 	public void testCacheToDisk() throws Exception {
 		// Choose arbitrary replacement strategy (any will do)
@@ -680,6 +1180,48 @@ public class AdditionalTest extends TestCase {
 
 	}
 
+	@Test
+	public void testMoveDataKeepsRejectedChunk() throws Exception {
+		/*
+		 * A receiver that cannot store a moved chunk answers ERROR,
+		 * and the sender keeps the chunk instead of deleting it. The
+		 * store of the receiver is a plain file, so every write to
+		 * it fails.
+		 */
+		File broken = new File("kv_store_50011");
+		File senderStore = new File("kv_store_50010");
+		assertTrue(broken.createNewFile());
+		Server receiver = new Server(50011, 10, "FIFO");
+		Server sender = new Server(50010, 10, "FIFO");
+		try {
+			sender.putKVProd("moved", "kept");
+
+			/* Wait for the receiver to listen */
+			long deadline = System.currentTimeMillis() + 5000;
+			while (true) {
+				try (Socket socket = new Socket("localhost", 50011)) {
+					break;
+				} catch (Exception e) {
+					assertTrue(System.currentTimeMillis() < deadline);
+					Thread.sleep(50);
+				}
+			}
+
+			String[] wholeRing = {"00000000000000000000000000000000", "00000000000000000000000000000000"};
+			sender.moveData(wholeRing, new ECSNode("receiver", "localhost", 50011));
+			assertEquals("kept", sender.getKV("moved"));
+			assertTrue(sender.inStorage("moved"));
+		} finally {
+			sender.kill();
+			receiver.kill();
+			broken.delete();
+			for (File file : Objects.requireNonNull(senderStore.listFiles())) {
+				file.delete();
+			}
+			senderStore.delete();
+		}
+	}
+
 	@Test
 	public void testTooLongKey() throws Exception {
 		String longKey = "012345678901234567890123456789"; //length = 30
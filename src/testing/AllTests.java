@@ -30,6 +30,8 @@ public class AllTests {
 		clientSuite.addTestSuite(ConnectionTest.class);
 		clientSuite.addTestSuite(InteractionTest.class); 
 		clientSuite.addTestSuite(AdditionalTest.class);
+		clientSuite.addTestSuite(StorageTest.class);
+		clientSuite.addTestSuite(LSMStorageTest.class);
 		return clientSuite;
 	}
 	
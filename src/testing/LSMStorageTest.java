@@ -0,0 +1,259 @@
+package testing;
+
+import ecs.HashRing;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.LSMDisk;
+import shared.Pair;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.Collectors;
+
+public class LSMStorageTest extends TestCase {
+	private static final String STORE = "test_lsm_storage";
+	/* Small memtable so that a few hundred writes span many tables */
+	private static final long MEMTABLE_BYTES = 4 * 1024;
+	private LSMDisk disk;
+
+	public void setUp() {
+		disk = new LSMDisk(STORE, MEMTABLE_BYTES);
+	}
+
+	public void tearDown() {
+		disk.clearStorage();
+		TestStores.delete(STORE);
+	}
+
+	private int countFiles(String prefix) {
+		String[] files = new File(STORE).list();
+		return (int) Arrays.stream(Objects.requireNonNull(files))
+			.filter(f -> f.startsWith(prefix))
+			.count();
+	}
+
+	private int countFilesEnding(String suffix) {
+		String[] files = new File(STORE).list();
+		return (int) Arrays.stream(Objects.requireNonNull(files))
+			.filter(f -> f.endsWith(suffix))
+			.count();
+	}
+
+	private Map<String, String> fill(int n, int distinct) {
+		Map<String, String> expected = new HashMap<>();
+		String key, value;
+		for (int i = 0; i < n; i++) {
+			key = Integer.toString(i % distinct);
+			value = UUID.randomUUID().toString();
+			disk.putKV(key, value);
+			expected.put(key, value);
+		}
+		for (int i = 0; i < distinct; i += 3) {
+			disk.putKV(Integer.toString(i), null);
+			expected.remove(Integer.toString(i));
+		}
+		/* Memtables are flushed in the background */
+		disk.awaitFlush();
+		return expected;
+	}
+
+	@Test
+	public void testReopenAcrossFlushes() {
+		/*
+		 * Data is spread over flushed tables and the write-ahead log
+		 * of the memtable; all of it must be visible after a reopen.
+		 */
+		Map<String, String> expected = fill(1000, 200);
+		assertTrue(countFiles("L0_") > 0);
+
+		LSMDisk reopened = new LSMDisk(STORE, MEMTABLE_BYTES);
+		for (int i = 0; i < 200; i++) {
+			String key = Integer.toString(i);
+			assertEquals(expected.get(key), disk.getKV(key));
+			assertEquals(expected.get(key), reopened.getKV(key));
+		}
+		assertEquals(expected.size(), reopened.getAll().size());
+	}
+
+	@Test
+	public void testExpiry() {
+		/*
+		 * Expired keys read as DNE in the memtable, in tables and
+		 * after compaction; keys that have not expired are unaffected.
+		 */
+		long past = System.currentTimeMillis() - 1;
+		long future = System.currentTimeMillis() + 60 * 60 * 1000;
+		for (int i = 0; i < 200; i++) {
+			disk.putKV("gone" + i, UUID.randomUUID().toString(), past);
+			disk.putKV("kept" + i, UUID.randomUUID().toString(), future);
+		}
+
+		assertNull(disk.getKV("gone0"));
+		assertFalse(disk.inStorage("gone199"));
+		assertFalse(disk.putKV("gone1", "back"));
+		assertEquals(201, disk.getAll().size());
+
+		disk.awaitFlush();
+		assertTrue(disk.compact());
+		LSMDisk reopened = new LSMDisk(STORE, MEMTABLE_BYTES);
+		assertNull(reopened.getKV("gone0"));
+		assertEquals("back", reopened.getKV("gone1"));
+		assertNotNull(reopened.getKV("kept0"));
+		assertEquals(201, reopened.getAll().size());
+	}
+
+	@Test
+	public void testConcurrentGroupCommit() throws Exception {
+		/*
+		 * Many writers share log forces while memtables are frozen
+		 * and flushed underneath them. Every acknowledged put must
+		 * be readable, and must survive a reopen.
+		 */
+		int nThreads = 8, perThread = 300;
+		Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++) {
+			final int id = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					disk.putKV(id + "_" + i, "value_" + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		disk.awaitFlush();
+		assertTrue(countFiles("L0_") > 0);
+
+		LSMDisk reopened = new LSMDisk(STORE, MEMTABLE_BYTES);
+		for (int t = 0; t < nThreads; t++) {
+			for (int i = 0; i < perThread; i++) {
+				assertEquals("value_" + i, disk.getKV(t + "_" + i));
+				assertEquals("value_" + i, reopened.getKV(t + "_" + i));
+			}
+		}
+		assertEquals(nThreads * perThread, reopened.getAll().size());
+	}
+
+	@Test
+	public void testCompaction() {
+		/*
+		 * Compaction merges level 0 into level 1, dropping overwritten
+		 * records and tombstones without changing what is visible.
+		 */
+		Map<String, String> expected = fill(2000, 200);
+		assertTrue(disk.compact());
+		assertEquals(0, countFiles("L0_"));
+		assertTrue(countFiles("L1_") > 0);
+
+		LSMDisk reopened = new LSMDisk(STORE, MEMTABLE_BYTES);
+		for (int i = 0; i < 200; i++) {
+			String key = Integer.toString(i);
+			assertEquals(expected.get(key), disk.getKV(key));
+			assertEquals(expected.get(key), reopened.getKV(key));
+		}
+
+		List<Pair<String, String>> entries = disk.getAll();
+		assertEquals(expected.size(), entries.size());
+		for (Pair<String, String> entry : entries) {
+			assertEquals(expected.get(entry.getKey()), entry.getValue());
+		}
+	}
+
+	@Test
+	public void testBloomFilters() {
+		/*
+		 * Every table has a Bloom filter next to it. A missing filter
+		 * is rebuilt on open, and must never hide a key that exists.
+		 */
+		Map<String, String> expected = fill(1000, 200);
+		assertTrue(countFilesEnding(".sst") > 0);
+		assertEquals(countFilesEnding(".sst"), countFilesEnding(".bloom"));
+
+		for (File file : Objects.requireNonNull(new File(STORE).listFiles())) {
+			if (file.getName().endsWith(".bloom")) {
+				assertTrue(file.delete());
+			}
+		}
+
+		LSMDisk reopened = new LSMDisk(STORE, MEMTABLE_BYTES);
+		for (int i = 0; i < 200; i++) {
+			String key = Integer.toString(i);
+			assertEquals(expected.get(key), reopened.getKV(key));
+		}
+		for (int i = 200; i < 1200; i++) {
+			assertNull(reopened.getKV(Integer.toString(i)));
+			assertFalse(reopened.inStorage(Integer.toString(i)));
+		}
+		assertEquals(countFilesEnding(".sst"), countFilesEnding(".bloom"));
+	}
+
+	@Test
+	public void testBlockIndexFiles() throws Exception {
+		/*
+		 * Every table has its block index next to it, so a reopen
+		 * does not scan the tables. An index file that is missing or
+		 * does not check out is rebuilt from the table.
+		 */
+		Map<String, String> expected = fill(1000, 200);
+		assertTrue(countFilesEnding(".sst") > 1);
+		assertEquals(countFilesEnding(".sst"), countFilesEnding(".index"));
+
+		List<File> indexes = new ArrayList<>();
+		for (File file : Objects.requireNonNull(new File(STORE).listFiles())) {
+			if (file.getName().endsWith(".index")) {
+				indexes.add(file);
+			}
+		}
+		assertTrue(indexes.get(0).delete());
+		byte[] garbage = new byte[(int) indexes.get(1).length()];
+		Arrays.fill(garbage, (byte) 7);
+		Files.write(indexes.get(1).toPath(), garbage);
+
+		LSMDisk reopened = new LSMDisk(STORE, MEMTABLE_BYTES);
+		for (int i = 0; i < 200; i++) {
+			String key = Integer.toString(i);
+			assertEquals(expected.get(key), reopened.getKV(key));
+		}
+		assertEquals(expected.size(), reopened.getAll().size());
+		assertEquals(countFilesEnding(".sst"), countFilesEnding(".index"));
+		assertFalse(Arrays.equals(garbage, Files.readAllBytes(indexes.get(1).toPath())));
+	}
+
+	@Test
+	public void testRangeScan() {
+		/*
+		 * A range scan must return exactly what filtering getAll by
+		 * hash returns, for plain and wrapped-around ranges.
+		 */
+		fill(1000, 300);
+		disk.compact();
+		fill(100, 50);
+
+		HashRing.Hash a = new HashRing.Hash("42");
+		HashRing.Hash b = new HashRing.Hash("137");
+		HashRing.Hash lo = a.lt(b) ? a : b;
+		HashRing.Hash hi = a.lt(b) ? b : a;
+		HashRing.HashRange[] ranges = {
+			new HashRing.HashRange(lo, hi),
+			new HashRing.HashRange(hi, lo),
+			new HashRing.HashRange(lo, lo)
+		};
+
+		List<Pair<String, String>> all = disk.getAll();
+		for (HashRing.HashRange range : ranges) {
+			Set<String> expected = all.stream()
+				.filter(e -> range.inRange(new HashRing.Hash(e.getKey())))
+				.map(e -> e.getKey() + "=" + e.getValue())
+				.collect(Collectors.toSet());
+			List<Pair<String, String>> actual = disk.getRange(range);
+
+			assertEquals(expected.size(), actual.size());
+			for (Pair<String, String> entry : actual) {
+				assertTrue(expected.contains(entry.getKey() + "=" + entry.getValue()));
+			}
+		}
+	}
+}
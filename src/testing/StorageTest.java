@@ -0,0 +1,735 @@
+package testing;
+
+import ecs.HashRing;
+import junit.framework.TestCase;
+import org.junit.Test;
+import server.Compactor;
+import server.Disk;
+import server.IServer;
+import server.KVCursor;
+import server.LSMDisk;
+import server.StorageEngine;
+import shared.Pair;
+import shared.messages.KVDataSet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.UUID;
+
+public class StorageTest extends TestCase {
+	private static final String STORE = "test_storage";
+	private Disk disk;
+
+	public void setUp() {
+		disk = new Disk(STORE);
+	}
+
+	public void tearDown() {
+		disk.clearStorage();
+		TestStores.delete(STORE);
+	}
+
+	@Test
+	public void testReopenReplaysLog() {
+		/*
+		 * Writes, overwrites and deletes are all appended to the
+		 * log. A new Disk on the same directory has to replay them
+		 * in order and end up with the same state.
+		 */
+		disk.putKV("1", "one");
+		disk.putKV("2", "two");
+		disk.putKV("3", "three");
+		disk.putKV("1", "uno");
+		disk.putKV("2", null);
+
+		Disk reopened = new Disk(STORE);
+		assertEquals("uno", reopened.getKV("1"));
+		assertNull(reopened.getKV("2"));
+		assertFalse(reopened.inStorage("2"));
+		assertEquals("three", reopened.getKV("3"));
+		assertEquals(2, reopened.getAll().size());
+	}
+
+	@Test
+	public void testGetAllLatestVersion() {
+		/*
+		 * Overwrite the same keys many times; getAll must only
+		 * report the newest value of each live key.
+		 */
+		Map<String, String> expected = new HashMap<>();
+		String key, value;
+		for (int i = 0; i < 500; i++) {
+			key = Integer.toString(i % 50);
+			value = UUID.randomUUID().toString();
+			disk.putKV(key, value);
+			expected.put(key, value);
+		}
+		disk.putKV("0", null);
+		expected.remove("0");
+
+		List<Pair<String, String>> entries = disk.getAll();
+		assertEquals(expected.size(), entries.size());
+		for (Pair<String, String> entry : entries) {
+			assertEquals(expected.get(entry.getKey()), entry.getValue());
+		}
+	}
+
+	@Test
+	public void testReadAcrossSegments() {
+		/*
+		 * Write enough data to roll over into several segments,
+		 * then check every key is read back through the index,
+		 * both before and after the index is rebuilt on reopen.
+		 */
+		char[] filler = new char[8 * 1024];
+		Arrays.fill(filler, 'x');
+		String big = new String(filler);
+
+		int n = 1200;
+		for (int i = 0; i < n; i++) {
+			disk.putKV(Integer.toString(i), i + big);
+		}
+		for (int i = 0; i < n; i += 2) {
+			disk.putKV(Integer.toString(i), null);
+		}
+
+		Disk reopened = new Disk(STORE);
+		for (int i = 0; i < n; i++) {
+			String key = Integer.toString(i);
+			if (i % 2 == 0) {
+				assertNull(disk.getKV(key));
+				assertFalse(reopened.inStorage(key));
+			} else {
+				assertEquals(i + big, disk.getKV(key));
+				assertEquals(i + big, reopened.getKV(key));
+			}
+		}
+	}
+
+	@Test
+	public void testCompaction() {
+		/*
+		 * Overwrite a small key set across many small segments, then
+		 * compact. Only the newest version of each live key may
+		 * survive, in fewer files, and the result must replay.
+		 */
+		Disk small = new Disk(STORE, 4 * 1024);
+		Map<String, String> expected = new HashMap<>();
+		String key, value;
+		for (int i = 0; i < 2000; i++) {
+			key = Integer.toString(i % 20);
+			value = UUID.randomUUID().toString();
+			small.putKV(key, value);
+			expected.put(key, value);
+		}
+		small.putKV("0", null);
+		expected.remove("0");
+
+		int before = new File(STORE).list().length;
+		assertTrue(small.garbageRatio() > 0.5);
+		assertTrue(small.compact());
+		assertTrue(new File(STORE).list().length < before);
+		assertEquals(0.0, small.garbageRatio());
+
+		Disk reopened = new Disk(STORE);
+		for (int i = 0; i < 20; i++) {
+			key = Integer.toString(i);
+			assertEquals(expected.get(key), small.getKV(key));
+			assertEquals(expected.get(key), reopened.getKV(key));
+		}
+		assertEquals(expected.size(), reopened.getAll().size());
+	}
+
+	@Test
+	public void testConcurrentGroupCommit() throws Exception {
+		/*
+		 * Many writers share commits. Every acknowledged put must
+		 * be readable, and must survive a reopen.
+		 */
+		disk.setGroupCommit(100 * 1000, 64 * 1024);
+		int nThreads = 8, perThread = 200;
+		Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++) {
+			final int id = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					disk.putKV(id + "_" + i, "value_" + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Disk reopened = new Disk(STORE);
+		for (int t = 0; t < nThreads; t++) {
+			for (int i = 0; i < perThread; i++) {
+				assertEquals("value_" + i, disk.getKV(t + "_" + i));
+				assertEquals("value_" + i, reopened.getKV(t + "_" + i));
+			}
+		}
+	}
+
+	@Test
+	public void testReadsUnderMappingCap() {
+		/*
+		 * Sealed segments are read through memory mappings. With a
+		 * cap that fits only a couple of segments, reads keep
+		 * unmapping and remapping segments and must stay correct.
+		 */
+		Disk small = new Disk(STORE, 16 * 1024);
+		char[] filler = new char[1024];
+		Arrays.fill(filler, 'y');
+		String big = new String(filler);
+		int n = 500;
+		for (int i = 0; i < n; i++) {
+			small.putKV(Integer.toString(i), i + big);
+		}
+
+		Disk.setMaxMappedBytes(40 * 1024);
+		try {
+			for (int round = 0; round < 2; round++) {
+				for (int i = 0; i < n; i++) {
+					int k = (i * 7919) % n;
+					assertEquals(k + big, small.getKV(Integer.toString(k)));
+				}
+			}
+		} finally {
+			Disk.setMaxMappedBytes(Disk.MAX_MAPPED_BYTES);
+		}
+	}
+
+	@Test
+	public void testPutReturnsExists() {
+		assertFalse(disk.putKV("key", "a"));
+		assertTrue(disk.putKV("key", "b"));
+		assertTrue(disk.putKV("key", null));
+		assertFalse(disk.putKV("key", null));
+	}
+
+	@Test
+	public void testArbitraryKeysAndValues() {
+		/*
+		 * Records are length-prefixed, so keys and values may hold
+		 * spaces, newlines and any other character.
+		 */
+		disk.putKV("a key", "a value\nover two lines");
+		disk.putKV("tab\tkey", "  \u00e9\u4e2d ");
+		disk.putKV("empty", "");
+
+		Disk reopened = new Disk(STORE);
+		assertEquals("a value\nover two lines", reopened.getKV("a key"));
+		assertEquals("  \u00e9\u4e2d ", reopened.getKV("tab\tkey"));
+		assertEquals("", reopened.getKV("empty"));
+		assertEquals(3, reopened.getAll().size());
+	}
+
+	@Test
+	public void testTornWriteRecovery() throws Exception {
+		/*
+		 * A crash in the middle of an append leaves a partial record
+		 * at the end of the log. On reopen it is cut off, and all
+		 * complete records before it survive.
+		 */
+		disk.putKV("1", "one");
+		disk.putKV("2", "two");
+
+		File[] logs = new File(STORE).listFiles((dir, name) -> name.endsWith(".log"));
+		assertNotNull(logs);
+		Arrays.sort(logs);
+		File last = logs[logs.length - 1];
+		long size = last.length();
+		try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(last, "rw")) {
+			raf.seek(size);
+			/* Version byte, flags, then nothing */
+			raf.write(new byte[]{1, 0, 5});
+		}
+
+		Disk reopened = new Disk(STORE);
+		assertEquals("one", reopened.getKV("1"));
+		assertEquals("two", reopened.getKV("2"));
+		assertEquals(size, last.length());
+
+		reopened.putKV("3", "three");
+		Disk again = new Disk(STORE);
+		assertEquals("three", again.getKV("3"));
+		assertEquals(3, again.getAll().size());
+	}
+
+	@Test
+	public void testCorruptSealedSegment() throws Exception {
+		/*
+		 * Only the active segment can end in a torn write. A record
+		 * of a sealed segment that fails its checksum is skipped,
+		 * and the records after it survive; a sealed segment cut
+		 * short keeps the store from opening.
+		 */
+		Disk small = new Disk(STORE, 4 * 1024);
+		for (int i = 0; i < 200; i++) {
+			small.putKV(Integer.toString(i), "value_" + i + "_end");
+		}
+
+		File[] logs = new File(STORE).listFiles((dir, name) -> name.endsWith(".log"));
+		assertNotNull(logs);
+		Arrays.sort(logs);
+		File sealed = null;
+		byte[] bytes = null;
+		int at = -1;
+		for (int i = 0; i < logs.length - 1 && at < 0; i++) {
+			sealed = logs[i];
+			bytes = java.nio.file.Files.readAllBytes(sealed.toPath());
+			at = new String(bytes, java.nio.charset.StandardCharsets.ISO_8859_1).indexOf("value_5_end");
+		}
+		assertTrue(at > 0);
+		for (File hint : Objects.requireNonNull(new File(STORE).listFiles((dir, name) -> name.endsWith(".hint")))) {
+			assertTrue(hint.delete());
+		}
+		try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(sealed, "rw")) {
+			raf.seek(at);
+			raf.write('V');
+		}
+
+		Disk reopened = new Disk(STORE, 4 * 1024);
+		assertNull(reopened.getKV("5"));
+		assertEquals("value_4_end", reopened.getKV("4"));
+		assertEquals("value_6_end", reopened.getKV("6"));
+		assertEquals("value_199_end", reopened.getKV("199"));
+		assertEquals(bytes.length, sealed.length());
+
+		for (File hint : Objects.requireNonNull(new File(STORE).listFiles((dir, name) -> name.endsWith(".hint")))) {
+			assertTrue(hint.delete());
+		}
+		try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(sealed, "rw")) {
+			raf.setLength(at);
+		}
+		try {
+			new Disk(STORE, 4 * 1024).getKV("4");
+			fail("Opened a store with a sealed segment cut short");
+		} catch (IllegalStateException expected) {
+		}
+		/* So that tearDown can open the store */
+		assertTrue(sealed.delete());
+	}
+
+	@Test
+	public void testReopenFromHints() throws Exception {
+		/*
+		 * Every sealed segment gets a hint file; reopening indexes
+		 * from the hints. A damaged hint file is ignored and its
+		 * segment replayed instead.
+		 */
+		Disk small = new Disk(STORE, 4 * 1024);
+		Map<String, String> expected = new HashMap<>();
+		String key, value;
+		for (int i = 0; i < 1000; i++) {
+			key = Integer.toString(i % 100);
+			value = UUID.randomUUID().toString();
+			small.putKV(key, value);
+			expected.put(key, value);
+		}
+		small.putKV("7", null);
+		expected.remove("7");
+
+		File dir = new File(STORE);
+		String[] logs = dir.list((d, name) -> name.endsWith(".log"));
+		String[] hints = dir.list((d, name) -> name.endsWith(".hint"));
+		assertNotNull(logs);
+		assertNotNull(hints);
+		assertTrue(hints.length > 1);
+		/* All but the active segment */
+		assertEquals(logs.length - 1, hints.length);
+
+		Disk reopened = new Disk(STORE, 4 * 1024);
+		for (int i = 0; i < 100; i++) {
+			key = Integer.toString(i);
+			assertEquals(expected.get(key), reopened.getKV(key));
+		}
+
+		Arrays.sort(hints);
+		try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(
+			new File(dir, hints[0]), "rw")) {
+			raf.seek(raf.length() / 2);
+			raf.write(0x7F);
+		}
+		Disk again = new Disk(STORE, 4 * 1024);
+		for (int i = 0; i < 100; i++) {
+			key = Integer.toString(i);
+			assertEquals(expected.get(key), again.getKV(key));
+		}
+
+		/* Compaction writes the hints of the merged segment */
+		assertTrue(again.compact());
+		Disk compacted = new Disk(STORE, 4 * 1024);
+		for (int i = 0; i < 100; i++) {
+			key = Integer.toString(i);
+			assertEquals(expected.get(key), compacted.getKV(key));
+		}
+		assertEquals(expected.size(), compacted.getAll().size());
+	}
+
+	@Test
+	public void testCursor() throws Exception {
+		/*
+		 * A cursor streams the live pairs of a range, keeps working
+		 * while the store is written to, and holds off compaction
+		 * until it is closed.
+		 */
+		Disk small = new Disk(STORE, 4 * 1024);
+		Map<String, String> expected = new HashMap<>();
+		String key, value;
+		for (int i = 0; i < 1000; i++) {
+			key = Integer.toString(i % 200);
+			value = UUID.randomUUID().toString();
+			small.putKV(key, value);
+			expected.put(key, value);
+		}
+
+		HashRing.HashRange range = new HashRing.HashRange(
+			new HashRing.Hash("12"), new HashRing.Hash("34"));
+		Map<String, String> inRange = new HashMap<>();
+		for (Map.Entry<String, String> entry : expected.entrySet()) {
+			if (range.inRange(new HashRing.Hash(entry.getKey()))) {
+				inRange.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		Map<String, String> seen = new HashMap<>();
+		try (KVCursor cursor = small.cursor(range)) {
+			assertTrue(cursor.next());
+			seen.put(cursor.key(), cursor.value());
+
+			/* Overwrite everything mid-scan */
+			for (int i = 0; i < 200; i++) {
+				key = Integer.toString(i);
+				small.putKV(key, "new" + i);
+				expected.put(key, "new" + i);
+			}
+			assertFalse(small.compact());
+
+			while (cursor.next()) {
+				seen.put(cursor.key(), cursor.value());
+			}
+		}
+		assertEquals(inRange.keySet(), seen.keySet());
+		for (String k : seen.keySet()) {
+			assertEquals(expected.get(k), seen.get(k));
+		}
+		assertTrue(small.compact());
+	}
+
+	@Test
+	public void testConcurrentStores() throws Exception {
+		/*
+		 * Two stores written and read at the same time from many
+		 * threads, with segments rolling underneath. Each reader
+		 * must only ever see values that were written to its store.
+		 */
+		Disk a = new Disk(STORE + "_a", 8 * 1024);
+		Disk b = new Disk(STORE + "_b", 8 * 1024);
+		int nThreads = 8, perThread = 300;
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++) {
+			final int id = t;
+			final Disk d = t % 2 == 0 ? a : b;
+			final String store = t % 2 == 0 ? "a" : "b";
+			threads[t] = new Thread(() -> {
+				try {
+					String key, value;
+					for (int i = 0; i < perThread; i++) {
+						key = Integer.toString(i % 20);
+						d.putKV(key, store + id + "_" + i);
+						value = d.getKV(Integer.toString((i * 7) % 20));
+						assertTrue(value == null || value.startsWith(store));
+					}
+				} catch (Throwable e) {
+					errors.add(e);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		Disk reopenedA = new Disk(STORE + "_a", 8 * 1024);
+		for (int i = 0; i < 20; i++) {
+			assertEquals(a.getKV(Integer.toString(i)), reopenedA.getKV(Integer.toString(i)));
+			assertTrue(b.getKV(Integer.toString(i)).startsWith("b"));
+		}
+		a.clearStorage();
+		b.clearStorage();
+	}
+
+	@Test
+	public void testCompression() {
+		/*
+		 * Large compressible values are stored compressed and read
+		 * back unchanged, through the active segment, a sealed
+		 * (mapped) segment, and a reopen. Small and incompressible
+		 * values are stored as is.
+		 */
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			sb.append("word").append(i % 50).append(' ');
+		}
+		String big = sb.toString();
+		StringBuilder noise = new StringBuilder();
+		Random random = new Random(42);
+		for (int i = 0; i < 8000; i++) {
+			noise.append((char) ('!' + random.nextInt(90)));
+		}
+
+		disk.putKV("big", big);
+		disk.putKV("noise", noise.toString());
+		disk.putKV("small", "tiny");
+		assertEquals(big, disk.getKV("big"));
+		assertEquals(noise.toString(), disk.getKV("noise"));
+		assertEquals("tiny", disk.getKV("small"));
+
+		File[] logs = new File(STORE).listFiles((dir, name) -> name.endsWith(".log"));
+		long stored = 0;
+		for (File log : Objects.requireNonNull(logs)) {
+			stored += log.length();
+		}
+		assertTrue(stored < big.length() / 4 + noise.length() + 1024);
+
+		Disk reopened = new Disk(STORE);
+		assertEquals(big, reopened.getKV("big"));
+		assertEquals(noise.toString(), reopened.getKV("noise"));
+		assertEquals("tiny", reopened.getKV("small"));
+	}
+
+	@Test
+	public void testStorageEngines() throws Exception {
+		/*
+		 * Every engine behaves the same through the StorageEngine
+		 * interface.
+		 */
+		for (IServer.StorageEngineType type : IServer.StorageEngineType.values()) {
+			StorageEngine engine = StorageEngine.create(type, STORE + "_engine");
+			assertEquals(type == IServer.StorageEngineType.LSM, engine instanceof LSMDisk);
+			try {
+				assertFalse(engine.putKV("a", "1"));
+				assertTrue(engine.putKV("a", "2"));
+				assertEquals("2", engine.getKV("a"));
+				assertEquals("2", engine.getWithExpiry("a").getKey());
+				assertEquals(0L, (long) engine.getWithExpiry("a").getValue());
+				assertTrue(engine.deleteKV("a"));
+				assertNull(engine.getKV("a"));
+				assertFalse(engine.inStorage("a"));
+
+				List<Pair<String, String>> entries = new ArrayList<>();
+				for (int i = 0; i < 100; i++) {
+					entries.add(new Pair<>("k" + i, "v" + i));
+				}
+				engine.putAll(entries);
+				int n = 0;
+				try (KVCursor cursor = engine.cursor()) {
+					while (cursor.next()) {
+						assertEquals("v" + cursor.key().substring(1), cursor.value());
+						n++;
+					}
+				}
+				assertEquals(100, n);
+			} finally {
+				engine.destroy();
+			}
+		}
+	}
+
+	@Test
+	public void testStorageEngineMarker() {
+		/*
+		 * A store is reopened by the engine that wrote it, whatever
+		 * engine is asked for; the other engine refuses to open it
+		 * until it is destroyed.
+		 */
+		String name = STORE + "_marker";
+		StorageEngine lsm = StorageEngine.create(IServer.StorageEngineType.LSM, name);
+		try {
+			lsm.putKV("a", "1");
+
+			StorageEngine reopened = StorageEngine.open(IServer.StorageEngineType.LOG, name);
+			assertEquals(IServer.StorageEngineType.LSM, reopened.getType());
+			assertEquals("1", reopened.getKV("a"));
+
+			try {
+				StorageEngine.create(IServer.StorageEngineType.LOG, name);
+				fail("LOG engine opened an LSM store");
+			} catch (IllegalStateException expected) {
+			}
+			try {
+				new Disk(name).getKV("a");
+				fail("LOG engine opened an LSM store");
+			} catch (IllegalStateException expected) {
+			}
+		} finally {
+			lsm.destroy();
+		}
+
+		StorageEngine log = StorageEngine.create(IServer.StorageEngineType.LOG, name);
+		try {
+			assertFalse(log.putKV("a", "2"));
+			assertEquals(IServer.StorageEngineType.LOG,
+				StorageEngine.open(IServer.StorageEngineType.LSM, name).getType());
+		} finally {
+			log.destroy();
+		}
+	}
+
+	@Test
+	public void testBulkLoad() {
+		/*
+		 * putAll stores inserts, overwrites and deletes in one batch,
+		 * on every engine; the last pair of a key wins, deleting a
+		 * key that DNE is a no-op, and the batch survives a reopen.
+		 */
+		for (IServer.StorageEngineType type : IServer.StorageEngineType.values()) {
+			StorageEngine engine = StorageEngine.create(type, STORE + "_bulk");
+			try {
+				for (int i = 0; i < 50; i++) {
+					engine.putKV("k" + i, "old" + i);
+				}
+
+				List<Pair<String, String>> entries = new ArrayList<>();
+				for (int i = 0; i < 100; i++) {
+					entries.add(new Pair<>("k" + i, "new" + i));
+				}
+				for (int i = 0; i < 100; i += 10) {
+					entries.add(new Pair<>("k" + i, null));
+				}
+				entries.add(new Pair<>("missing", null));
+				entries.add(new Pair<>("k1", "last"));
+				engine.putAll(entries);
+
+				StorageEngine reopened = StorageEngine.create(type, STORE + "_bulk");
+				for (StorageEngine e : Arrays.asList(engine, reopened)) {
+					assertEquals("last", e.getKV("k1"));
+					assertEquals("new2", e.getKV("k2"));
+					assertEquals("new99", e.getKV("k99"));
+					assertNull(e.getKV("k0"));
+					assertNull(e.getKV("k50"));
+					assertNull(e.getKV("missing"));
+					assertEquals(90, e.getAll().size());
+				}
+			} finally {
+				engine.destroy();
+			}
+		}
+	}
+
+	@Test
+	public void testCompactorShutdown() throws Exception {
+		/*
+		 * Shutting the compactor down wakes it from its rest, and
+		 * leaves the stores it compacted readable.
+		 */
+		disk.putKV("a", "1");
+		Compactor compactor = new Compactor(60 * 1000, Compactor.BYTES_PER_SEC, 0.5);
+		compactor.register(disk);
+		compactor.start();
+		Thread.sleep(100);
+
+		compactor.shutdown();
+		compactor.join(5000);
+		assertFalse(compactor.isAlive());
+		assertEquals("1", disk.getKV("a"));
+		assertFalse(disk.putKV("b", "2"));
+		assertEquals("2", disk.getKV("b"));
+	}
+
+	@Test
+	public void testTransferKeepsExpiry() throws Exception {
+		/*
+		 * Pairs streamed off a store, sent as a data set and bulk
+		 * loaded into another store keep their expiry; pairs that
+		 * have already expired are not sent.
+		 */
+		long past = System.currentTimeMillis() - 1;
+		long future = System.currentTimeMillis() + 60 * 60 * 1000;
+		for (IServer.StorageEngineType type : IServer.StorageEngineType.values()) {
+			StorageEngine src = StorageEngine.create(type, STORE + "_src");
+			StorageEngine dest = StorageEngine.create(type, STORE + "_dest");
+			try {
+				src.putKV("plain", "1");
+				src.putKV("ttl", "2", future);
+				src.putKV("gone", "3", past);
+
+				KVDataSet sent = new KVDataSet();
+				try (KVCursor cursor = src.cursor()) {
+					while (cursor.next()) {
+						sent.addEntry(new Pair<>(cursor.key(), cursor.value()), cursor.expiresAt());
+					}
+				}
+				assertEquals(2, sent.size());
+
+				KVDataSet received = new KVDataSet().deserialize(sent.serialize());
+				dest.putAll(received.getEntries(), received.getExpiresAt());
+				assertEquals(0L, (long) dest.getWithExpiry("plain").getValue());
+				assertEquals(future, (long) dest.getWithExpiry("ttl").getValue());
+				assertNull(dest.getKV("gone"));
+			} finally {
+				src.destroy();
+				dest.destroy();
+			}
+		}
+
+		/* Data sets without expiry keep their format */
+		KVDataSet plain = new KVDataSet();
+		plain.addEntry(new Pair<>("a", "1"), 0);
+		KVDataSet received = new KVDataSet().deserialize(plain.serialize());
+		assertEquals("a", received.getEntries().get(0).getKey());
+		assertNull(received.getExpiresAt());
+	}
+
+	@Test
+	public void testExpiry() {
+		/*
+		 * Expired keys read as DNE right away, everywhere; the
+		 * reaper and compaction reclaim them. Keys that have not
+		 * expired yet are unaffected, also across a reopen.
+		 */
+		Disk small = new Disk(STORE, 4 * 1024);
+		long past = System.currentTimeMillis() - 1;
+		long future = System.currentTimeMillis() + 60 * 60 * 1000;
+		for (int i = 0; i < 100; i++) {
+			small.putKV("gone" + i, UUID.randomUUID().toString(), past);
+			small.putKV("kept" + i, UUID.randomUUID().toString(), future);
+		}
+		small.putKV("plain", "value");
+
+		assertNull(small.getKV("gone0"));
+		assertFalse(small.inStorage("gone0"));
+		assertNotNull(small.getKV("kept0"));
+		/* Overwriting an expired key is a fresh put */
+		assertFalse(small.putKV("gone1", "back"));
+		assertEquals("back", small.getKV("gone1"));
+
+		List<Pair<String, String>> entries = small.getAll();
+		assertEquals(102, entries.size());
+		for (Pair<String, String> entry : entries) {
+			assertFalse(entry.getKey().startsWith("gone") && !entry.getKey().equals("gone1"));
+		}
+
+		assertEquals(99, small.reapExpired());
+		assertEquals(0, small.reapExpired());
+		assertTrue(small.compact());
+
+		Disk reopened = new Disk(STORE, 4 * 1024);
+		assertNull(reopened.getKV("gone0"));
+		assertEquals("back", reopened.getKV("gone1"));
+		assertNotNull(reopened.getKV("kept99"));
+		assertEquals("value", reopened.getKV("plain"));
+		assertEquals(102, reopened.getAll().size());
+	}
+}
@@ -0,0 +1,47 @@
+package testing;
+
+import server.IServer;
+import server.StorageEngine;
+
+import java.io.File;
+import java.util.Objects;
+
+/**
+ * Store directories created by tests in the working directory.
+ */
+public class TestStores {
+    private TestStores() {
+    }
+
+    /**
+     * Deletes every directory in the working directory whose name
+     * starts with /prefix/, along with its files.
+     *
+     * Each store is destroyed through its engine first: a test may
+     * leave instances of a store behind whose files are still mapped
+     * (see server.MmapPool), and only the engine drops the mappings
+     * of the files it deletes.
+     */
+    public static void delete(String prefix) {
+        File[] dirs = new File(".").listFiles(
+            f -> f.isDirectory() && f.getName().startsWith(prefix));
+        for (File dir : Objects.requireNonNull(dirs)) {
+            try {
+                StorageEngine.open(IServer.StorageEngineType.LOG, dir.getName()).destroy();
+            } catch (Exception e) {
+                /* Not a store, or one that cannot be opened */
+            }
+            deleteRecursively(dir);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (Objects.nonNull(children)) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}